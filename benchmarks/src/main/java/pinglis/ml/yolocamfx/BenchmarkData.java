@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.zoo.model.TinyYOLO;
+import org.deeplearning4j.zoo.model.YOLO2;
+
+/**
+ * The fixed inputs shared by the benchmarks: synthetic frames and the 
+ * networks.
+ * <p>
+ * The benchmarks never download anything. A network is read from the 
+ * local zoo file named by its system property, e.g. 
+ * {@code -Dyolocamfx.model.tiny_yolo=tiny-yolo-voc_dl4j_inference.v2.zip}. 
+ * Without one the same architecture is built with random weights, which
+ * times the forward pass just the same but makes the number of detections
+ * meaningless.
+ */
+final class BenchmarkData
+{
+    private BenchmarkData()
+    {
+    }
+    
+    /**
+     * A synthetic frame, always the same for the same resolution
+     * @param resolution width x height, e.g. "1280x720"
+     * @return BufferedImage
+     * @throws IOException 
+     */
+    static BufferedImage frame(String resolution) throws IOException
+    {
+        String[] size = resolution.split("x");
+        try (SyntheticFrameSource source = new SyntheticFrameSource(
+                Integer.parseInt(size[0]), Integer.parseInt(size[1]), 0, 1, 42))
+        {
+            source.open();
+            return source.grab().getImage();
+        }
+    }
+    
+    /**
+     * The network for a model, from its local file if given or else with 
+     * random weights
+     * @param model
+     * @return ComputationGraph
+     * @throws IOException 
+     */
+    static ComputationGraph graph(YoloModel model) throws IOException
+    {
+        if ( System.getProperty(model.getFileProperty()) != null )
+        {
+            return model.load();
+        }
+        
+        System.err.println("No -D" + model.getFileProperty() + "=<file> given, using random weights");
+        switch (model)
+        {
+            case TINY_YOLO:
+                return TinyYOLO.builder().numClasses(model.getClassCount()).build().init();
+            default:
+                return YOLO2.builder().numClasses(model.getClassCount()).build().init();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converting the candidates the decoder finds into labelled bounding boxes,
+ * without removing duplicates
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertBenchmark
+{
+    @Param({"10", "100", "1000"})
+    public int candidates;
+    
+    private YoloDetector detector;
+    private CandidateBoxes boxes;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        YoloModel model = YoloModel.TINY_YOLO;
+        detector = new YoloDetector(model, BenchmarkData.graph(model));
+        
+        Random random = new Random(42);
+        boxes = new CandidateBoxes(candidates);
+        for (int i = 0; i < candidates; i++)
+        {
+            float x = random.nextFloat() * 0.8f;
+            float y = random.nextFloat() * 0.8f;
+            boxes.add(random.nextInt(model.getClassCount()), 0.3f + random.nextFloat() * 0.7f, 
+                    x, y, x + 0.05f + random.nextFloat() * 0.15f, y + 0.05f + random.nextFloat() * 0.15f);
+        }
+    }
+    
+    @Benchmark
+    public List<BoundingBox> convert()
+    {
+        return detector.convert(boxes);
+    }
+}
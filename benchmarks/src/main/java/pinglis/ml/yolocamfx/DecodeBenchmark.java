@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
+import org.deeplearning4j.nn.layers.objdetect.Yolo2OutputLayer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the predicted objects out of the network output with 
+ * {@link Yolo2OutputLayer#getPredictedObjects} and with {@link YoloDecoder}
+ * at several thresholds
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark
+{
+    @Param({"TINY_YOLO", "YOLO2"})
+    public YoloModel model;
+    
+    @Param({"0.1", "0.3", "0.5", "0.7"})
+    public double threshold;
+    
+    private Yolo2OutputLayer outputLayer;
+    private INDArray output;
+    private final YoloDecoder decoder = new YoloDecoder();
+    private final CandidateBoxes candidates = new CandidateBoxes();
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        YoloDetector detector = new YoloDetector(model, BenchmarkData.graph(model));
+        outputLayer = (Yolo2OutputLayer) detector.getGraph().getOutputLayer(0);
+        output = detector.forward(detector.newPreprocessor().preprocess(BenchmarkData.frame("1280x720")));
+    }
+    
+    @Benchmark
+    public List<DetectedObject> getPredictedObjects()
+    {
+        return outputLayer.getPredictedObjects(output, threshold);
+    }
+    
+    @Benchmark
+    public CandidateBoxes yoloDecoder()
+    {
+        decoder.decode(output, model.getClasses().length, threshold, candidates);
+        return candidates;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The forward pass through each network for one preprocessed frame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ForwardBenchmark
+{
+    @Param({"TINY_YOLO", "YOLO2"})
+    public YoloModel model;
+    
+    private YoloDetector detector;
+    private INDArray input;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        detector = new YoloDetector(model, BenchmarkData.graph(model));
+        input = detector.newPreprocessor().preprocess(BenchmarkData.frame("1280x720"));
+    }
+    
+    @Benchmark
+    public INDArray forward()
+    {
+        return detector.forward(input);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Removing duplicates with {@link NonMaxSuppression}, which replaced the old 
+ * filterDuplicates, over 10 to 1000 candidates.
+ * <p>
+ * The candidates are clusters of jittered boxes around a few objects, as 
+ * the network produces. Suppression works in place so each call refills
+ * the candidates first, which is a small part of the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NmsBenchmark
+{
+    @Param({"10", "100", "1000"})
+    public int candidates;
+    
+    @Param({"hard", "soft"})
+    public String mode;
+    
+    @Param({"true", "false"})
+    public boolean perClass;
+    
+    private NonMaxSuppression nms;
+    private final CandidateBoxes boxes = new CandidateBoxes();
+    private int[] classIndex;
+    private float[] score;
+    private float[] x1;
+    private float[] y1;
+    private float[] x2;
+    private float[] y2;
+    
+    @Setup
+    public void setup()
+    {
+        nms = new NonMaxSuppression(0.5f, perClass, "soft".equals(mode), 0.5f);
+        classIndex = new int[candidates];
+        score = new float[candidates];
+        x1 = new float[candidates];
+        y1 = new float[candidates];
+        x2 = new float[candidates];
+        y2 = new float[candidates];
+        
+        // About ten candidates per object
+        Random random = new Random(42);
+        int objects = Math.max(1, candidates / 10);
+        float[][] centres = new float[objects][4];
+        for (float[] centre : centres)
+        {
+            centre[0] = random.nextFloat();
+            centre[1] = random.nextFloat();
+            centre[2] = 0.05f + random.nextFloat() * 0.2f;
+            centre[3] = random.nextInt(20);
+        }
+        
+        for (int i = 0; i < candidates; i++)
+        {
+            float[] centre = centres[random.nextInt(objects)];
+            float cx = centre[0] + (float) random.nextGaussian() * 0.01f;
+            float cy = centre[1] + (float) random.nextGaussian() * 0.01f;
+            float half = centre[2] / 2 * (1 + (float) random.nextGaussian() * 0.1f);
+            classIndex[i] = random.nextInt(4) == 0 ? random.nextInt(20) : (int) centre[3];
+            score[i] = 0.3f + random.nextFloat() * 0.7f;
+            x1[i] = cx - half;
+            y1[i] = cy - half;
+            x2[i] = cx + half;
+            y2[i] = cy + half;
+        }
+    }
+    
+    @Benchmark
+    public int suppress()
+    {
+        boxes.clear();
+        for (int i = 0; i < candidates; i++)
+        {
+            boxes.add(classIndex[i], score[i], x1[i], y1[i], x2[i], y2[i]);
+        }
+        nms.apply(boxes, 0.3f);
+        return boxes.size();
+    }
+}
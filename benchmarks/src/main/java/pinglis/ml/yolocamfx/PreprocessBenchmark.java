@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resizing a frame into the network input, on the fast and the native path
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreprocessBenchmark
+{
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+    
+    @Param({"fast", "native"})
+    public String path;
+    
+    private BufferedImage image;
+    private ImagePreprocessor preprocessor;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        image = BenchmarkData.frame(resolution);
+        preprocessor = "fast".equals(path) 
+                ? new FastImagePreprocessor(YoloDetector.INPUT_WIDTH, YoloDetector.INPUT_HEIGHT)
+                : new NativeImagePreprocessor(YoloDetector.INPUT_WIDTH, YoloDetector.INPUT_HEIGHT);
+    }
+    
+    @Benchmark
+    public INDArray preprocess() throws IOException
+    {
+        return preprocessor.preprocess(image);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Base class for frame sources that numbers and timestamps the frames they
+ * produce.
+ * <p>
+ * If asked for a lower resolution the images are scaled down as they are 
+ * wrapped in frames, sources that can capture at a lower resolution should
+ * override {@link #setResolutionScale(double)} instead.
+ */
+public abstract class AbstractFrameSource
+        implements FrameSource
+{
+    private long nextSequence = 0;
+    private volatile double resolutionScale = 1;
+    
+    @Override
+    public void setResolutionScale(double scale)
+    {
+        if ( scale <= 0 || scale > 1 )
+        {
+            throw new IllegalArgumentException("Scale must be greater than 0 and at most 1 but was " + scale);
+        }
+        this.resolutionScale = scale;
+    }
+
+    @Override
+    public double getResolutionScale()
+    {
+        return resolutionScale;
+    }
+    
+    /**
+     * Wrap the given image in a Frame with the next sequence number and the
+     * current time
+     * @param image
+     * @return Frame
+     */
+    protected Frame newFrame(BufferedImage image)
+    {
+        double scale = resolutionScale;
+        
+        if ( scale < 1 )
+        {
+            image = scale(image, scale);
+        }
+        return new Frame(image, nextSequence++, System.currentTimeMillis());
+    }
+    
+    private static BufferedImage scale(BufferedImage image, double scale)
+    {
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = scaled.createGraphics();
+        
+        try
+        {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+        }
+        finally
+        {
+            g.dispose();
+        }
+        return scaled;
+    }
+    
+    /**
+     * Restart the sequence numbering, for sources that can be reopened
+     */
+    protected void resetSequence()
+    {
+        nextSequence = 0;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects images submitted from one or more streams into minibatches and 
+ * runs each minibatch through a {@link YoloDetector} in a single forward 
+ * pass.
+ * <p>
+ * A batch is run as soon as it holds batch size images or when the oldest 
+ * image in it has waited for the maximum wait time, whichever comes first. 
+ * A larger batch size gives more throughput and a longer wait gives fuller
+ * batches, both at the cost of latency.
+ */
+public class BatchingDetector
+        implements AutoCloseable
+{
+    private final YoloDetector detector;
+    private final int batchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean closed = false;
+    
+    /**
+     * @param detector the detector to run the batches through
+     * @param batchSize the largest number of images to run in one pass
+     * @param maxWaitMillis the longest to hold an image while waiting for 
+     * the batch to fill
+     */
+    public BatchingDetector(YoloDetector detector, int batchSize, long maxWaitMillis)
+    {
+        if ( batchSize < 1 )
+        {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.detector = detector;
+        this.batchSize = batchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.thread = new Thread(this::run);
+        this.thread.setDaemon(true);
+        this.thread.setName("BatchingDetector");
+        this.thread.start();
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+    
+    /**
+     * Queue an image for detection using the detector's current threshold 
+     * and filter settings
+     * @param image
+     * @return a future completed with the detections for the image
+     */
+    public CompletableFuture<List<BoundingBox>> submit(BufferedImage image)
+    {
+        return submit(image, detector.getThreshold(), detector.isFilterDuplicates());
+    }
+    
+    /**
+     * Queue an image for detection
+     * @param image
+     * @param threshold confidence threshold between 0 and 1
+     * @param filter whether to remove duplicate detections of the same object
+     * @return a future completed with the detections for the image
+     */
+    public CompletableFuture<List<BoundingBox>> submit(BufferedImage image, double threshold, boolean filter)
+    {
+        Request request = new Request(image, threshold, filter);
+        
+        // Checked and queued under the lock so close cannot drain the queue
+        // in between and leave the request behind
+        synchronized (queue)
+        {
+            if ( closed )
+            {
+                request.result.completeExceptionally(new IllegalStateException("BatchingDetector is closed"));
+            }
+            else
+            {
+                queue.add(request);
+            }
+        }
+        return request.result;
+    }
+    
+    /**
+     * Stop the batching thread. Any images still queued are failed.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (queue)
+        {
+            closed = true;
+        }
+        thread.interrupt();
+        
+        Request request;
+        while ((request = queue.poll()) != null)
+        {
+            request.result.completeExceptionally(new IllegalStateException("BatchingDetector is closed"));
+        }
+    }
+    
+    private void run()
+    {
+        List<Request> batch = new ArrayList<>(batchSize);
+        
+        try
+        {
+            while (!closed)
+            {
+                batch.add(queue.take());
+                
+                long deadline = System.nanoTime() + maxWaitNanos;
+                
+                while (batch.size() < batchSize)
+                {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    
+                    long remaining = deadline - System.nanoTime();
+                    
+                    if ( batch.size() >= batchSize || remaining <= 0 )
+                    {
+                        break;
+                    }
+                    
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    
+                    if ( next != null )
+                    {
+                        batch.add(next);
+                    }
+                }
+                
+                runBatch(batch);
+                batch.clear();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Closed
+        }
+        
+        for (Request request : batch)
+        {
+            request.result.completeExceptionally(new IllegalStateException("BatchingDetector is closed"));
+        }
+    }
+    
+    private void runBatch(List<Request> batch)
+    {
+        List<BufferedImage> images = new ArrayList<>(batch.size());
+        double[] thresholds = new double[batch.size()];
+        boolean[] filters = new boolean[batch.size()];
+        
+        for (int i = 0; i < batch.size(); i++)
+        {
+            Request request = batch.get(i);
+            images.add(request.image);
+            thresholds[i] = request.threshold;
+            filters[i] = request.filter;
+        }
+        
+        try
+        {
+            List<List<BoundingBox>> results = detector.detect(images, thresholds, filters);
+            
+            for (int i = 0; i < batch.size(); i++)
+            {
+                batch.get(i).result.complete(results.get(i));
+            }
+        }
+        catch (Exception e)
+        {
+            for (Request request : batch)
+            {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+    
+    /**
+     * An image waiting to be batched
+     */
+    private static class Request
+    {
+        private final BufferedImage image;
+        private final double threshold;
+        private final boolean filter;
+        private final CompletableFuture<List<BoundingBox>> result = new CompletableFuture<>();
+
+        Request(BufferedImage image, double threshold, boolean filter)
+        {
+            this.image = image;
+            this.threshold = threshold;
+            this.filter = filter;
+        }
+    }
+}
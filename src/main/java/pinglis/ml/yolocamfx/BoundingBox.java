@@ -15,32 +15,41 @@
  */
 package pinglis.ml.yolocamfx;
 
-import javafx.scene.paint.Paint;
-
 /**
- * This object represents the bounding box of a class detected in an image
+ * This object represents the bounding box of a class detected in an image.
+ * The coordinates are fractions of the image width and height and the
+ * confidence is a percentage.
  */
 public class BoundingBox
 {
+    private final int classIndex;
     private final String label;
     private final double confidence;
-    private final Paint paint;
     private final double x1;
     private final double y1;
     private final double x2;
     private final double y2;
 
-    public BoundingBox(String label, double confidence, Paint paint, double x1, double y1, double x2, double y2)
+    public BoundingBox(int classIndex, String label, double confidence, double x1, double y1, double x2, double y2)
     {
+        this.classIndex = classIndex;
         this.label = label;
         this.confidence = confidence;
-        this.paint = paint;
         this.x1 = x1;
         this.y1 = y1;
         this.x2 = x2;
         this.y2 = y2;
     }
 
+    /**
+     * The index of the class in the model's class table
+     * @return int
+     */
+    public int getClassIndex()
+    {
+        return classIndex;
+    }
+    
     public String getLabel()
     {
         return label;
@@ -51,11 +60,6 @@ public class BoundingBox
         return confidence;
     }
 
-    public Paint getPaint()
-    {
-        return paint;
-    }
-
     public double getX1()
     {
         return x1;
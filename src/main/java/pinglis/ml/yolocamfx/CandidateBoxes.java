@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.Arrays;
+
+/**
+ * A reusable list of candidate detections held as parallel primitive 
+ * arrays, so the boxes found in a frame can be decoded, filtered and 
+ * sorted without creating an object per box.
+ * <p>
+ * The arrays grow as needed and are kept between frames. Not thread safe.
+ */
+public class CandidateBoxes
+{
+    private int count;
+    private int[] classIndex;
+    private float[] score;
+    private float[] x1;
+    private float[] y1;
+    private float[] x2;
+    private float[] y2;
+    
+    public CandidateBoxes()
+    {
+        this(64);
+    }
+    
+    public CandidateBoxes(int capacity)
+    {
+        allocate(Math.max(1, capacity));
+    }
+    
+    public void clear()
+    {
+        count = 0;
+    }
+    
+    public int size()
+    {
+        return count;
+    }
+    
+    /**
+     * Add a candidate
+     * @param cls class index
+     * @param s score
+     * @param left
+     * @param top
+     * @param right
+     * @param bottom 
+     */
+    public void add(int cls, float s, float left, float top, float right, float bottom)
+    {
+        if ( count == score.length )
+        {
+            grow(count * 2);
+        }
+        
+        classIndex[count] = cls;
+        score[count] = s;
+        x1[count] = left;
+        y1[count] = top;
+        x2[count] = right;
+        y2[count] = bottom;
+        count++;
+    }
+    
+    public int getClassIndex(int i)
+    {
+        return classIndex[i];
+    }
+    
+    public float getScore(int i)
+    {
+        return score[i];
+    }
+    
+    public void setScore(int i, float s)
+    {
+        score[i] = s;
+    }
+    
+    public float getX1(int i)
+    {
+        return x1[i];
+    }
+    
+    public float getY1(int i)
+    {
+        return y1[i];
+    }
+    
+    public float getX2(int i)
+    {
+        return x2[i];
+    }
+    
+    public float getY2(int i)
+    {
+        return y2[i];
+    }
+    
+    public float area(int i)
+    {
+        return Math.max(0, x2[i] - x1[i]) * Math.max(0, y2[i] - y1[i]);
+    }
+    
+    /**
+     * The intersection over union of two candidates
+     * @param a
+     * @param b
+     * @return between 0 and 1
+     */
+    public float iou(int a, int b)
+    {
+        float w = Math.min(x2[a], x2[b]) - Math.max(x1[a], x1[b]);
+        float h = Math.min(y2[a], y2[b]) - Math.max(y1[a], y1[b]);
+        
+        if ( w <= 0 || h <= 0 )
+        {
+            return 0;
+        }
+        
+        float intersection = w * h;
+        float union = area(a) + area(b) - intersection;
+        return union <= 0 ? 0 : intersection / union;
+    }
+    
+    /**
+     * Sort the candidates into descending order of score, in place
+     */
+    public void sortByScore()
+    {
+        sort(0, count - 1);
+    }
+    
+    private void sort(int lo, int hi)
+    {
+        while (hi - lo > 16)
+        {
+            float pivot = median(score[lo], score[(lo + hi) >>> 1], score[hi]);
+            
+            // Three way partition into scores above, equal to and below the
+            // pivot, so runs of equal scores are not sorted again
+            int above = lo;
+            int below = hi;
+            int i = lo;
+            
+            while (i <= below)
+            {
+                if ( score[i] > pivot )
+                {
+                    swap(i, above);
+                    above++;
+                    i++;
+                }
+                else if ( score[i] < pivot )
+                {
+                    swap(i, below);
+                    below--;
+                }
+                else
+                {
+                    i++;
+                }
+            }
+            
+            // Recurse into the smaller side to bound the stack depth
+            if ( above - lo < hi - below )
+            {
+                sort(lo, above - 1);
+                lo = below + 1;
+            }
+            else
+            {
+                sort(below + 1, hi);
+                hi = above - 1;
+            }
+        }
+        
+        // Insertion sort for short runs
+        for (int i = lo + 1; i <= hi; i++)
+        {
+            for (int j = i; j > lo && score[j] > score[j - 1]; j--)
+            {
+                swap(j, j - 1);
+            }
+        }
+    }
+    
+    /**
+     * Copy candidate from into position to, used to compact the list
+     */
+    void move(int from, int to)
+    {
+        classIndex[to] = classIndex[from];
+        score[to] = score[from];
+        x1[to] = x1[from];
+        y1[to] = y1[from];
+        x2[to] = x2[from];
+        y2[to] = y2[from];
+    }
+    
+    /**
+     * Swap two candidates
+     */
+    void swap(int a, int b)
+    {
+        int c = classIndex[a];
+        classIndex[a] = classIndex[b];
+        classIndex[b] = c;
+        
+        swap(score, a, b);
+        swap(x1, a, b);
+        swap(y1, a, b);
+        swap(x2, a, b);
+        swap(y2, a, b);
+    }
+    
+    private static void swap(float[] values, int a, int b)
+    {
+        float t = values[a];
+        values[a] = values[b];
+        values[b] = t;
+    }
+    
+    private static float median(float a, float b, float c)
+    {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+    
+    /**
+     * Keep only the first n candidates
+     */
+    void truncate(int n)
+    {
+        count = n;
+    }
+    
+    private void allocate(int capacity)
+    {
+        classIndex = new int[capacity];
+        score = new float[capacity];
+        x1 = new float[capacity];
+        y1 = new float[capacity];
+        x2 = new float[capacity];
+        y2 = new float[capacity];
+    }
+    
+    private void grow(int capacity)
+    {
+        classIndex = Arrays.copyOf(classIndex, capacity);
+        score = Arrays.copyOf(score, capacity);
+        x1 = Arrays.copyOf(x1, capacity);
+        y1 = Arrays.copyOf(y1, capacity);
+        x2 = Arrays.copyOf(x2, capacity);
+        y2 = Arrays.copyOf(y2, capacity);
+    }
+}
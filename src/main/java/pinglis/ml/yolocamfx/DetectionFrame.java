@@ -0,0 +1,291 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The detections found in one frame, held as parallel primitive arrays of
+ * class index, score and box corners rather than an object per detection.
+ * Labels and colours are looked up from the class index when drawn.
+ * <p>
+ * A frame never changes once created, so it can be handed between threads
+ * through a volatile field or an atomic reference. Its arrays come from a 
+ * {@link Pool} and go back to it once the frame has been released by its 
+ * creator and everyone who {@link #retain() retained} it. A frame must not 
+ * be read after its last release.
+ */
+public final class DetectionFrame
+{
+    private final Pool pool;
+    private final Columns columns;
+    private final int size;
+    private final long generation;
+    private final long sequence;
+    private final long timestamp;
+    private final YoloModel model;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private DetectionFrame(Pool pool, Columns columns, int size, long generation, long sequence, long timestamp, 
+            YoloModel model)
+    {
+        this.pool = pool;
+        this.columns = columns;
+        this.size = size;
+        this.generation = generation;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.model = model;
+    }
+    
+    /**
+     * The number of detections
+     * @return int
+     */
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * The position of this result among those published, from 1
+     * @return long
+     */
+    public long getGeneration()
+    {
+        return generation;
+    }
+    
+    /**
+     * The sequence number of the frame the detections were found in
+     * @return long
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+    
+    /**
+     * The capture time of the frame, in milliseconds
+     * @return long
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+    
+    /**
+     * The model that found the detections, for their class names
+     * @return YoloModel
+     */
+    public YoloModel getModel()
+    {
+        return model;
+    }
+    
+    public int getClassIndex(int i)
+    {
+        return columns.classIndex[i];
+    }
+    
+    /**
+     * The score of a detection
+     * @param i
+     * @return between 0 and 1
+     */
+    public float getScore(int i)
+    {
+        return columns.score[i];
+    }
+    
+    public float getX1(int i)
+    {
+        return columns.x1[i];
+    }
+    
+    public float getY1(int i)
+    {
+        return columns.y1[i];
+    }
+    
+    public float getX2(int i)
+    {
+        return columns.x2[i];
+    }
+    
+    public float getY2(int i)
+    {
+        return columns.y2[i];
+    }
+    
+    /**
+     * The class name of a detection
+     * @param i
+     * @return String
+     */
+    public String getLabel(int i)
+    {
+        return model.getClassName(columns.classIndex[i]);
+    }
+    
+    /**
+     * The detections as bounding boxes, for code that wants objects
+     * @return List of BoundingBox
+     */
+    public List<BoundingBox> toBoxes()
+    {
+        List<BoundingBox> boxes = new ArrayList<>(size);
+        
+        for (int i = 0; i < size; i++)
+        {
+            boxes.add(new BoundingBox(getClassIndex(i), getLabel(i), getScore(i) * 100.0, 
+                    getX1(i), getY1(i), getX2(i), getY2(i)));
+        }
+        return boxes;
+    }
+    
+    /**
+     * Keep the frame from being recycled until a matching {@link #release()}
+     * @return false if it has already been recycled, in which case it must
+     * not be read
+     */
+    public boolean retain()
+    {
+        while (true)
+        {
+            int count = references.get();
+            if ( count <= 0 )
+            {
+                return false;
+            }
+            if ( references.compareAndSet(count, count + 1) )
+            {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Give up a reference, returning the arrays to the pool after the last
+     */
+    public void release()
+    {
+        if ( references.decrementAndGet() == 0 && pool != null )
+        {
+            pool.recycle(columns);
+        }
+    }
+    
+    /**
+     * The arrays of a frame
+     */
+    private static class Columns
+    {
+        private final int[] classIndex;
+        private final float[] score;
+        private final float[] x1;
+        private final float[] y1;
+        private final float[] x2;
+        private final float[] y2;
+
+        Columns(int capacity)
+        {
+            this.classIndex = new int[capacity];
+            this.score = new float[capacity];
+            this.x1 = new float[capacity];
+            this.y1 = new float[capacity];
+            this.x2 = new float[capacity];
+            this.y2 = new float[capacity];
+        }
+        
+        int capacity()
+        {
+            return score.length;
+        }
+    }
+    
+    /**
+     * A small pool of arrays for frames to be built in. Safe to share 
+     * between threads.
+     */
+    public static class Pool
+    {
+        private static final int MIN_CAPACITY = 32;
+        
+        private final ArrayBlockingQueue<Columns> free;
+        
+        /**
+         * @param size the most sets of arrays to keep
+         */
+        public Pool(int size)
+        {
+            this.free = new ArrayBlockingQueue<>(size);
+        }
+        
+        /**
+         * Copy bounding boxes into a new frame
+         * @param generation
+         * @param sequence
+         * @param timestamp
+         * @param model
+         * @param boxes
+         * @return DetectionFrame holding one reference, for the caller to 
+         * release
+         */
+        public DetectionFrame create(long generation, long sequence, long timestamp, YoloModel model, 
+                List<? extends BoundingBox> boxes)
+        {
+            int size = boxes == null ? 0 : boxes.size();
+            Columns columns = take(size);
+            
+            for (int i = 0; i < size; i++)
+            {
+                BoundingBox box = boxes.get(i);
+                columns.classIndex[i] = box.getClassIndex();
+                columns.score[i] = (float) (box.getConfidence() / 100);
+                columns.x1[i] = (float) box.getX1();
+                columns.y1[i] = (float) box.getY1();
+                columns.x2[i] = (float) box.getX2();
+                columns.y2[i] = (float) box.getY2();
+            }
+            return new DetectionFrame(this, columns, size, generation, sequence, timestamp, model);
+        }
+        
+        /**
+         * Arrays that hold at least size detections, reused if there are 
+         * any free
+         */
+        private Columns take(int size)
+        {
+            Columns columns = free.poll();
+            
+            if ( columns == null || columns.capacity() < size )
+            {
+                // Too small ones are dropped and replaced by a larger set
+                columns = new Columns(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size)) << 1));
+            }
+            return columns;
+        }
+        
+        private void recycle(Columns columns)
+        {
+            free.offer(columns);
+        }
+    }
+}
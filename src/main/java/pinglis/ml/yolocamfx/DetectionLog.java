@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An append only binary log of every detection result, so they can be 
+ * replayed or exported after they have been drawn.
+ * <p>
+ * The log is a directory of numbered segment files, each memory mapped at 
+ * a fixed size and written sequentially. When a record does not fit in 
+ * what is left of a segment the next segment is started. Each record holds
+ * one frame: its sequence number, timestamp, model and the class, score and
+ * box of each detection, 22 bytes per detection. A record's length is 
+ * written after its contents so a reader never sees half a record, and a 
+ * length of zero marks the end of the written part of a segment.
+ * <p>
+ * Alongside each segment is an index of the position of a record at most
+ * once a second, used by {@link DetectionLogReader} to seek to a time 
+ * without scanning the whole log. Each index entry is written out as it
+ * is made, so a reader opened while the log is being written finds it. 
+ * Timestamps are expected to only go forward. Opening a log that already 
+ * has segments starts a new segment after them.
+ * <p>
+ * Appends are synchronized so one log may be shared between threads.
+ */
+public class DetectionLog
+        implements AutoCloseable
+{
+    static final int MAGIC = 0x59444C31;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int FRAME_BYTES = 8 + 8 + 1 + 2;
+    static final int DETECTION_BYTES = 2 + 4 * 5;
+    private static final long INDEX_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    
+    private final File directory;
+    private final int segmentBytes;
+    private int segment;
+    private MappedByteBuffer buffer;
+    private DataOutputStream index;
+    private long lastIndexed;
+    private long records;
+    private boolean closed;
+
+    /**
+     * Open a log with 64MB segments
+     * @param directory created if it does not exist
+     * @throws IOException 
+     */
+    public DetectionLog(File directory) throws IOException
+    {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+    
+    /**
+     * @param directory created if it does not exist
+     * @param segmentBytes the size of each segment file
+     * @throws IOException 
+     */
+    public DetectionLog(File directory, int segmentBytes) throws IOException
+    {
+        if ( segmentBytes < HEADER_BYTES + 4 + FRAME_BYTES + 4 )
+        {
+            throw new IllegalArgumentException("Segments of " + segmentBytes + " bytes are too small");
+        }
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+        {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        
+        int[] existing = segments(directory);
+        openSegment(existing.length == 0 ? 0 : existing[existing.length - 1] + 1);
+    }
+    
+    /**
+     * The numbers of the segments in a log directory, in order
+     */
+    static int[] segments(File directory)
+    {
+        File[] files = directory.listFiles((dir, name) -> name.matches("\\d{8}\\.seg"));
+        if ( files == null )
+        {
+            return new int[0];
+        }
+        
+        int[] numbers = new int[files.length];
+        for (int i = 0; i < files.length; i++)
+        {
+            numbers[i] = Integer.parseInt(files[i].getName().substring(0, 8));
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+    
+    static File segmentFile(File directory, int segment)
+    {
+        return new File(directory, String.format("%08d.seg", segment));
+    }
+    
+    static File indexFile(File directory, int segment)
+    {
+        return new File(directory, String.format("%08d.idx", segment));
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+    
+    /**
+     * The number of records appended since the log was opened
+     * @return long
+     */
+    public synchronized long getRecordCount()
+    {
+        return records;
+    }
+    
+    /**
+     * Append the detections of a frame
+     * @param sequence the frame sequence number
+     * @param timestamp the frame capture time in milliseconds
+     * @param model the model that found the detections
+     * @param boxes the detections, may be empty
+     * @throws IOException 
+     */
+    public synchronized void append(long sequence, long timestamp, YoloModel model, List<? extends BoundingBox> boxes) 
+            throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException("DetectionLog is closed");
+        }
+        
+        int length = FRAME_BYTES + boxes.size() * DETECTION_BYTES;
+        if ( HEADER_BYTES + 4 + length + 4 > segmentBytes || boxes.size() > Short.MAX_VALUE )
+        {
+            throw new IOException(boxes.size() + " detections do not fit in a segment");
+        }
+        
+        // Leave room for the zero length that ends the segment
+        if ( buffer.remaining() < 4 + length + 4 )
+        {
+            roll();
+        }
+        
+        int position = buffer.position();
+        if ( lastIndexed == Long.MIN_VALUE || timestamp - lastIndexed >= INDEX_INTERVAL_MILLIS )
+        {
+            index.writeLong(timestamp);
+            index.writeInt(position);
+            index.flush();
+            lastIndexed = timestamp;
+        }
+        
+        buffer.position(position + 4);
+        buffer.putLong(sequence);
+        buffer.putLong(timestamp);
+        buffer.put((byte) model.ordinal());
+        buffer.putShort((short) boxes.size());
+        
+        for (BoundingBox box : boxes)
+        {
+            buffer.putShort((short) box.getClassIndex());
+            buffer.putFloat((float) (box.getConfidence() / 100));
+            buffer.putFloat((float) box.getX1());
+            buffer.putFloat((float) box.getY1());
+            buffer.putFloat((float) box.getX2());
+            buffer.putFloat((float) box.getY2());
+        }
+        
+        // Publish the record by writing its length last
+        buffer.putInt(position, length);
+        records++;
+    }
+    
+    /**
+     * Write the mapped segment and index out to disk
+     * @throws IOException 
+     */
+    public synchronized void flush() throws IOException
+    {
+        if ( !closed )
+        {
+            buffer.force();
+            index.flush();
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if ( !closed )
+        {
+            flush();
+            index.close();
+            closed = true;
+        }
+    }
+    
+    private void roll() throws IOException
+    {
+        buffer.force();
+        index.close();
+        openSegment(segment + 1);
+    }
+    
+    private void openSegment(int number) throws IOException
+    {
+        File file = segmentFile(directory, number);
+        
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException("Cannot replace " + file);
+        }
+        
+        // The mapping stays valid after the channel is closed, and a new 
+        // file reads as zeros so the segment is already terminated
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(directory, number))));
+        lastIndexed = Long.MIN_VALUE;
+        segment = number;
+    }
+}
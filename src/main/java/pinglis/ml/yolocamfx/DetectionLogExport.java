@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Exports the records of a {@link DetectionLog} as JSON Lines or CSV using
+ * a {@link DetectionWriter}.
+ * <p>
+ * Usage:
+ * <pre>
+ * java pinglis.ml.yolocamfx.DetectionLogExport --log=&lt;dir&gt; [options]
+ * 
+ *   --log=&lt;dir&gt;          the log directory
+ *   --format=jsonl|csv    output format (default jsonl)
+ *   --output=&lt;file&gt;      output file (default standard out)
+ *   --from=&lt;ms&gt;          earliest timestamp to export (default the start)
+ *   --to=&lt;ms&gt;            latest timestamp to export (default the end)
+ * </pre>
+ */
+public class DetectionLogExport
+{
+    public static void main(String[] args) 
+            throws Exception
+    {
+        Map<String, String> options = YoloHeadless.parse(args);
+        
+        if ( !options.containsKey("log") )
+        {
+            System.err.println("Usage: DetectionLogExport --log=<dir> [--format=jsonl|csv] [--output=<file>] "
+                    + "[--from=<ms>] [--to=<ms>]");
+            System.exit(2);
+        }
+        
+        DetectionLogReader reader = new DetectionLogReader(new File(options.get("log")));
+        long from = Long.parseLong(options.getOrDefault("from", String.valueOf(Long.MIN_VALUE)));
+        long to = Long.parseLong(options.getOrDefault("to", String.valueOf(Long.MAX_VALUE)));
+        OutputStream out = options.containsKey("output") ? new FileOutputStream(options.get("output")) : System.out;
+        
+        try (DetectionWriter writer = DetectionWriter.create(options.getOrDefault("format", "jsonl"),
+                new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))))
+        {
+            long count = export(reader, from, to, writer);
+            System.err.printf("Exported %d frames%n", count);
+        }
+    }
+    
+    /**
+     * Write the records in a time range
+     * @param reader
+     * @param from the earliest timestamp, inclusive
+     * @param to the latest timestamp, inclusive
+     * @param writer
+     * @return the number of frames written
+     * @throws IOException 
+     */
+    public static long export(DetectionLogReader reader, long from, long to, DetectionWriter writer) 
+            throws IOException
+    {
+        try
+        {
+            return reader.forEach(from, to, record->{
+                try
+                {
+                    writer.write(record.getSequence(), record.getTimestamp(), record.getBoxes());
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads the records of a {@link DetectionLog} back in a time range.
+ * <p>
+ * The segment holding the start of the range is found from the first 
+ * timestamp in each segment's index, and the position to start scanning 
+ * from by a binary search of that index. Segments are memory mapped read 
+ * only as they are needed. A log that is still being written can be read, 
+ * records appended after the reader was opened to segments it knows about
+ * are seen but new segments are not.
+ * <p>
+ * A reader is not thread safe.
+ */
+public class DetectionLogReader
+{
+    private final File directory;
+    private final List<Segment> segments = new ArrayList<>();
+    private final YoloModel[] models = YoloModel.values();
+
+    /**
+     * @param directory a log directory
+     * @throws IOException if there are no segments or an index cannot be 
+     * read
+     */
+    public DetectionLogReader(File directory) throws IOException
+    {
+        this.directory = directory;
+        
+        for (int number : DetectionLog.segments(directory))
+        {
+            segments.add(new Segment(number));
+        }
+        
+        if ( segments.isEmpty() )
+        {
+            throw new IOException("No detection log in " + directory);
+        }
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+    
+    /**
+     * The timestamp of the first record, or Long.MAX_VALUE if the log is 
+     * empty
+     * @return long
+     */
+    public long getFirstTimestamp()
+    {
+        for (Segment segment : segments)
+        {
+            if ( segment.times.length > 0 )
+            {
+                return segment.times[0];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+    
+    /**
+     * Read the records in a time range
+     * @param from the earliest timestamp, inclusive
+     * @param to the latest timestamp, inclusive
+     * @return List of LoggedDetections in log order
+     * @throws IOException 
+     */
+    public List<LoggedDetections> read(long from, long to) throws IOException
+    {
+        List<LoggedDetections> records = new ArrayList<>();
+        forEach(from, to, records::add);
+        return records;
+    }
+    
+    /**
+     * Pass each record in a time range to the consumer without holding them 
+     * all in memory
+     * @param from the earliest timestamp, inclusive
+     * @param to the latest timestamp, inclusive
+     * @param consumer
+     * @return the number of records passed on
+     * @throws IOException 
+     */
+    public long forEach(long from, long to, Consumer<LoggedDetections> consumer) throws IOException
+    {
+        // Start from the last segment that begins at or before the range
+        int first = 0;
+        for (int i = 0; i < segments.size(); i++)
+        {
+            long[] times = segments.get(i).times;
+            if ( times.length > 0 && times[0] <= from )
+            {
+                first = i;
+            }
+        }
+        
+        long count = 0;
+        for (int i = first; i < segments.size(); i++)
+        {
+            Segment segment = segments.get(i);
+            MappedByteBuffer buffer = segment.map();
+            int position = i == first ? segment.seek(from) : DetectionLog.HEADER_BYTES;
+            
+            while (position + 4 <= buffer.limit())
+            {
+                int length = buffer.getInt(position);
+                
+                if ( length <= 0 || position + 4 + length > buffer.limit() )
+                {
+                    break;
+                }
+                
+                long timestamp = buffer.getLong(position + 4 + 8);
+                if ( timestamp > to )
+                {
+                    return count;
+                }
+                if ( timestamp >= from )
+                {
+                    consumer.accept(decode(buffer, position + 4));
+                    count++;
+                }
+                position += 4 + length;
+            }
+        }
+        return count;
+    }
+    
+    private LoggedDetections decode(MappedByteBuffer buffer, int position)
+    {
+        long sequence = buffer.getLong(position);
+        long timestamp = buffer.getLong(position + 8);
+        YoloModel model = models[buffer.get(position + 16)];
+        int count = buffer.getShort(position + 17);
+        List<BoundingBox> boxes = new ArrayList<>(count);
+        int p = position + DetectionLog.FRAME_BYTES;
+        
+        for (int i = 0; i < count; i++, p += DetectionLog.DETECTION_BYTES)
+        {
+            int classIndex = buffer.getShort(p);
+            String label = classIndex < model.getClassCount() ? model.getClassName(classIndex) : String.valueOf(classIndex);
+            boxes.add(new BoundingBox(classIndex, label, buffer.getFloat(p + 2) * 100.0, 
+                    buffer.getFloat(p + 6), buffer.getFloat(p + 10), buffer.getFloat(p + 14), buffer.getFloat(p + 18)));
+        }
+        return new LoggedDetections(sequence, timestamp, model, boxes);
+    }
+    
+    /**
+     * A segment file with its index of timestamps and record positions
+     */
+    private class Segment
+    {
+        final File file;
+        final long[] times;
+        final int[] positions;
+        MappedByteBuffer buffer;
+        
+        Segment(int number) throws IOException
+        {
+            this.file = DetectionLog.segmentFile(directory, number);
+            
+            File indexFile = DetectionLog.indexFile(directory, number);
+            int entries = indexFile.exists() ? (int) (indexFile.length() / 12) : 0;
+            this.times = new long[entries];
+            this.positions = new int[entries];
+            
+            if ( entries > 0 )
+            {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile))))
+                {
+                    for (int i = 0; i < entries; i++)
+                    {
+                        times[i] = in.readLong();
+                        positions[i] = in.readInt();
+                    }
+                }
+                catch (EOFException e)
+                {
+                    throw new IOException("Truncated index " + indexFile, e);
+                }
+            }
+        }
+        
+        MappedByteBuffer map() throws IOException
+        {
+            if ( buffer == null )
+            {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+                {
+                    buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                }
+                
+                if ( buffer.limit() < DetectionLog.HEADER_BYTES || buffer.getInt(0) != DetectionLog.MAGIC )
+                {
+                    throw new IOException(file + " is not a detection log segment");
+                }
+            }
+            return buffer;
+        }
+        
+        /**
+         * The position of the last indexed record at or before the time, 
+         * or the first record
+         */
+        int seek(long timestamp)
+        {
+            int i = Arrays.binarySearch(times, timestamp);
+            if ( i < 0 )
+            {
+                i = -i - 2;
+            }
+            return i < 0 ? DetectionLog.HEADER_BYTES : positions[i];
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Where the time goes: a latency histogram for each stage of getting a frame
+ * from the camera to boxes on the screen, the capture, inference and render
+ * frame rates and the number of frames dropped.
+ * <p>
+ * There is one shared instance, see {@link #get()}, that the stages record 
+ * into. Recording is lock free and costs a couple of calls to 
+ * System.nanoTime() and a few atomic adds, so it is always on. The figures 
+ * can be read directly, through JMX once {@link #register()} has been 
+ * called, or drawn over the video by the application.
+ */
+public class DetectionMetrics
+        implements DetectionMetricsMXBean
+{
+    /**
+     * The stages that are timed
+     */
+    public enum Stage
+    {
+        /** Grabbing a frame from the source */
+        CAPTURE,
+        /** Resizing a frame into the network input, on either path */
+        PREPROCESS,
+        /** The datavec image load on the native preprocessing path */
+        IMAGE_LOAD,
+        /** The pixel scaling on the native preprocessing path */
+        SCALE,
+        /** The forward pass through the network */
+        INFERENCE,
+        /** Reading the predicted objects from the network output */
+        DECODE,
+        /** Removing duplicates */
+        NMS,
+        /** Building the bounding boxes */
+        CONVERT,
+        /** Drawing the boxes over the video */
+        RENDER
+    }
+    
+    public static final String OBJECT_NAME = "pinglis.ml.yolocamfx:type=DetectionMetrics";
+    private static final DetectionMetrics INSTANCE = new DetectionMetrics();
+    
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final RateMeter captureRate = new RateMeter();
+    private final RateMeter inferenceRate = new RateMeter();
+    private final RateMeter renderRate = new RateMeter();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    
+    DetectionMetrics()
+    {
+        for (Stage stage : Stage.values())
+        {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+    
+    /**
+     * The shared metrics
+     * @return DetectionMetrics
+     */
+    public static DetectionMetrics get()
+    {
+        return INSTANCE;
+    }
+    
+    /**
+     * Publish the metrics on the platform MBean server. Safe to call more 
+     * than once.
+     */
+    public void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (InstanceAlreadyExistsException e)
+        {
+            // Already registered
+        }
+        catch (JMException e)
+        {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    public LatencyHistogram getHistogram(Stage stage)
+    {
+        return histograms.get(stage);
+    }
+    
+    /**
+     * Record the time since the start of a stage
+     * @param stage
+     * @param startNanos from System.nanoTime()
+     */
+    public void record(Stage stage, long startNanos)
+    {
+        histograms.get(stage).recordSince(startNanos);
+    }
+    
+    public RateMeter getCaptureRate()
+    {
+        return captureRate;
+    }
+    
+    public RateMeter getInferenceRate()
+    {
+        return inferenceRate;
+    }
+    
+    public RateMeter getRenderRate()
+    {
+        return renderRate;
+    }
+    
+    /**
+     * Count a frame that was replaced or dropped before it was run
+     */
+    public void frameDropped()
+    {
+        droppedFrames.incrementAndGet();
+    }
+
+    @Override
+    public double getCaptureFps()
+    {
+        return captureRate.getRate();
+    }
+
+    @Override
+    public double getInferenceFps()
+    {
+        return inferenceRate.getRate();
+    }
+
+    @Override
+    public double getRenderFps()
+    {
+        return renderRate.getRate();
+    }
+
+    @Override
+    public long getDroppedFrames()
+    {
+        return droppedFrames.get();
+    }
+
+    @Override
+    public List<StageStatistics> getStages()
+    {
+        List<StageStatistics> stages = new ArrayList<>();
+        for (Map.Entry<Stage, LatencyHistogram> entry : histograms.entrySet())
+        {
+            if ( entry.getValue().getCount() > 0 )
+            {
+                stages.add(StageStatistics.of(entry.getKey().name(), entry.getValue()));
+            }
+        }
+        return stages;
+    }
+
+    @Override
+    public void reset()
+    {
+        for (LatencyHistogram histogram : histograms.values())
+        {
+            histogram.reset();
+        }
+        captureRate.reset();
+        inferenceRate.reset();
+        renderRate.reset();
+        droppedFrames.set(0);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.List;
+
+/**
+ * The JMX view of {@link DetectionMetrics}
+ */
+public interface DetectionMetricsMXBean
+{
+    double getCaptureFps();
+    
+    double getInferenceFps();
+    
+    double getRenderFps();
+    
+    long getDroppedFrames();
+    
+    /**
+     * The latency of each stage
+     * @return List of StageStatistics
+     */
+    List<StageStatistics> getStages();
+    
+    /**
+     * Clear the latency histograms, frame rates and dropped frame count
+     */
+    void reset();
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import pinglis.ml.yolocamfx.DetectionMetrics.Stage;
+
+/**
+ * Runs detection as a pipeline of stages so that the work on one frame 
+ * overlaps with the work on the next.
+ * <p>
+ * The frames pass through three stages, each on its own threads and joined 
+ * by bounded queues:
+ * <ol>
+ * <li>preprocess - resize the image into the network's input array</li>
+ * <li>inference - the forward pass through the network</li>
+ * <li>decode - turn the network output into bounding boxes and remove 
+ * duplicates</li>
+ * </ol>
+ * So while frame N is in the network frame N+1 is being preprocessed and 
+ * frame N-1 decoded. Capture happens before the pipeline on the thread that 
+ * submits the frames, which blocks when the first queue is full, and 
+ * rendering after it on whatever completes the returned futures.
+ * <p>
+ * The number of preprocess and decode threads and the depth of the queues 
+ * between stages can be set. There is only one inference thread as a 
+ * network only runs one forward pass at a time. With more than one 
+ * preprocess or decode thread, frames may complete out of order.
+ * <p>
+ * The detector is given with each frame, so the model can be changed 
+ * between frames without emptying the pipeline.
+ */
+public class DetectionPipeline
+        implements AutoCloseable
+{
+    private static final long OFFER_MILLIS = 100;
+    
+    private final int preprocessThreads;
+    private final int decodeThreads;
+    private final int queueDepth;
+    private final BlockingQueue<Job> preprocessQueue;
+    private final BlockingQueue<Job> inferenceQueue;
+    private final BlockingQueue<Job> decodeQueue;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean closed = false;
+    
+    /**
+     * Create a pipeline with one thread per stage and a queue of one frame
+     * between each
+     */
+    public DetectionPipeline()
+    {
+        this(1, 1, 1);
+    }
+    
+    /**
+     * @param preprocessThreads the number of threads preprocessing images
+     * @param decodeThreads the number of threads decoding the network output
+     * @param queueDepth the number of frames each queue between stages holds
+     */
+    public DetectionPipeline(int preprocessThreads, int decodeThreads, int queueDepth)
+    {
+        if ( preprocessThreads < 1 || decodeThreads < 1 || queueDepth < 1 )
+        {
+            throw new IllegalArgumentException("Stages need at least one thread and queues a depth of one");
+        }
+        
+        this.preprocessThreads = preprocessThreads;
+        this.decodeThreads = decodeThreads;
+        this.queueDepth = queueDepth;
+        this.preprocessQueue = new ArrayBlockingQueue<>(queueDepth);
+        this.inferenceQueue = new ArrayBlockingQueue<>(queueDepth);
+        this.decodeQueue = new ArrayBlockingQueue<>(queueDepth);
+        
+        for (int i = 0; i < preprocessThreads; i++)
+        {
+            startThread("preprocess-" + i, this::preprocess);
+        }
+        startThread("inference", this::inference);
+        for (int i = 0; i < decodeThreads; i++)
+        {
+            startThread("decode-" + i, this::decode);
+        }
+    }
+
+    public int getPreprocessThreads()
+    {
+        return preprocessThreads;
+    }
+
+    public int getDecodeThreads()
+    {
+        return decodeThreads;
+    }
+
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+    
+    /**
+     * The most frames that can be in the pipeline at once, queued or being
+     * worked on
+     * @return int
+     */
+    public int getCapacity()
+    {
+        return 3 * queueDepth + preprocessThreads + 1 + decodeThreads;
+    }
+    
+    /**
+     * Submit an image for detection using the detector's current threshold 
+     * and filter settings
+     * @param detector
+     * @param image
+     * @return a future completed with the detections for the image
+     * @throws InterruptedException 
+     */
+    public CompletableFuture<List<BoundingBox>> submit(YoloDetector detector, BufferedImage image) 
+            throws InterruptedException
+    {
+        return submit(detector, image, detector.getThreshold(), detector.isFilterDuplicates());
+    }
+    
+    /**
+     * Submit an image for detection, waiting if the first stage is full
+     * @param detector the detector to run the image through
+     * @param image
+     * @param threshold confidence threshold between 0 and 1
+     * @param filter whether to remove duplicate detections of the same object
+     * @return a future completed with the detections for the image
+     * @throws InterruptedException 
+     */
+    public CompletableFuture<List<BoundingBox>> submit(YoloDetector detector, BufferedImage image, double threshold, boolean filter) 
+            throws InterruptedException
+    {
+        Job job = new Job(detector, image, threshold, filter);
+        
+        // Queued under the lock close drains the queues with, so the job 
+        // cannot be left behind. A full queue is waited on a little at a 
+        // time to notice a close.
+        synchronized (this)
+        {
+            while (!closed)
+            {
+                if ( preprocessQueue.offer(job, OFFER_MILLIS, TimeUnit.MILLISECONDS) )
+                {
+                    return job.future;
+                }
+            }
+        }
+        throw new IllegalStateException("Pipeline is closed");
+    }
+    
+    private void preprocess()
+    {
+        // A preprocessor reuses its output array, so cycle through enough of
+        // them that an array is never written while a frame that uses it is
+        // still queued for or in the network
+        ImagePreprocessor[] ring = new ImagePreprocessor[queueDepth + 2];
+        int next = 0;
+        
+        while (!closed)
+        {
+            Job job = null;
+            try
+            {
+                job = preprocessQueue.take();
+                ImagePreprocessor preprocessor = ring[next];
+                if ( preprocessor == null || (preprocessor instanceof FastImagePreprocessor) != job.detector.isFastPreprocessing()
+                        || preprocessor.getWidth() != job.detector.getInputSize() )
+                {
+                    preprocessor = job.detector.newPreprocessor();
+                    ring[next] = preprocessor;
+                }
+                next = (next + 1) % ring.length;
+                
+                long start = System.nanoTime();
+                job.input = preprocessor.preprocess(job.image);
+                DetectionMetrics.get().record(Stage.PREPROCESS, start);
+                inferenceQueue.put(job);
+            }
+            catch (InterruptedException e)
+            {
+                fail(job, e);
+                return;
+            }
+            catch (Exception e)
+            {
+                fail(job, e);
+            }
+        }
+    }
+    
+    private void inference()
+    {
+        while (!closed)
+        {
+            Job job = null;
+            try
+            {
+                job = inferenceQueue.take();
+                job.output = job.detector.forward(job.input);
+                job.input = null;
+                decodeQueue.put(job);
+            }
+            catch (InterruptedException e)
+            {
+                fail(job, e);
+                return;
+            }
+            catch (Exception e)
+            {
+                fail(job, e);
+            }
+        }
+    }
+    
+    private void decode()
+    {
+        while (!closed)
+        {
+            Job job = null;
+            try
+            {
+                job = decodeQueue.take();
+                job.future.complete(job.detector.decode(job.output, job.threshold, job.filter));
+            }
+            catch (InterruptedException e)
+            {
+                fail(job, e);
+                return;
+            }
+            catch (Exception e)
+            {
+                fail(job, e);
+            }
+        }
+    }
+    
+    private static void fail(Job job, Exception e)
+    {
+        if ( job != null )
+        {
+            job.future.completeExceptionally(e);
+        }
+    }
+    
+    private void startThread(String name, Runnable stage)
+    {
+        Thread th = new Thread(stage);
+        th.setDaemon(true);
+        th.setName("DetectionPipeline-" + name);
+        th.start();
+        threads.add(th);
+    }
+    
+    /**
+     * Stop the stages and wait for them to finish, cancelling any frames 
+     * still in the pipeline
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        for (Thread th : threads)
+        {
+            th.interrupt();
+        }
+        
+        // Once the stages have stopped nothing moves a frame on to the next
+        // queue, so the drain below is final
+        for (Thread th : threads)
+        {
+            try
+            {
+                th.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        
+        List<Job> remaining = new ArrayList<>();
+        synchronized (this)
+        {
+            preprocessQueue.drainTo(remaining);
+            inferenceQueue.drainTo(remaining);
+            decodeQueue.drainTo(remaining);
+        }
+        for (Job job : remaining)
+        {
+            job.future.cancel(false);
+        }
+    }
+    
+    /**
+     * A frame on its way through the pipeline
+     */
+    private static class Job
+    {
+        private final YoloDetector detector;
+        private final BufferedImage image;
+        private final double threshold;
+        private final boolean filter;
+        private final CompletableFuture<List<BoundingBox>> future = new CompletableFuture<>();
+        private INDArray input;
+        private INDArray output;
+
+        Job(YoloDetector detector, BufferedImage image, double threshold, boolean filter)
+        {
+            this.detector = detector;
+            this.image = image;
+            this.threshold = threshold;
+            this.filter = filter;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Plays the detections in a {@link DetectionLog} back in real time, or 
+ * faster or slower, so they can be drawn over the video without loading or
+ * running a model.
+ * <p>
+ * A background thread reads the log from the start and waits between 
+ * records for as long as passed between their timestamps, divided by the 
+ * speed. A gap of more than a second, such as between two sessions logged
+ * to the same directory, is played as a second. The latest record's boxes are kept for the UI to draw, like 
+ * {@link YoloTask#getDetectedBoxes()}.
+ */
+public class DetectionReplay
+        implements AutoCloseable
+{
+    private static final long MAX_GAP_MILLIS = 1000;
+    
+    private final DetectionLogReader reader;
+    private final double speed;
+    private final boolean loop;
+    private final Map<YoloModel, LoadedModel> models = new EnumMap<>(YoloModel.class);
+    private volatile List<BoundingBox> detectedBoxes;
+    private volatile LoadedModel activeModel;
+    private volatile long timestamp;
+    private volatile double threshold;
+    private volatile boolean closed;
+    private Thread thread;
+
+    /**
+     * @param directory the log directory
+     * @param speed how many times faster than real time to play
+     * @param loop whether to start again at the end of the log
+     * @throws IOException 
+     */
+    public DetectionReplay(File directory, double speed, boolean loop) throws IOException
+    {
+        if ( speed <= 0 )
+        {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+        this.reader = new DetectionLogReader(directory);
+        this.speed = speed;
+        this.loop = loop;
+    }
+    
+    /**
+     * Only keep detections at or above the confidence threshold, between 0
+     * and 1
+     * @param threshold 
+     */
+    public void setThreshold(double threshold)
+    {
+        this.threshold = threshold;
+    }
+    
+    public List<BoundingBox> getDetectedBoxes()
+    {
+        return detectedBoxes;
+    }
+    
+    /**
+     * The model the current detections came from, without its network
+     * @return LoadedModel or null before the first record
+     */
+    public LoadedModel getActiveModel()
+    {
+        return activeModel;
+    }
+    
+    /**
+     * The log timestamp of the current detections
+     * @return milliseconds
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+    
+    public void start()
+    {
+        thread = new Thread(this::run);
+        thread.setDaemon(true);
+        thread.setName("DetectionReplay");
+        thread.start();
+    }
+    
+    @Override
+    public void close()
+    {
+        closed = true;
+        if ( thread != null )
+        {
+            thread.interrupt();
+        }
+    }
+    
+    private void run()
+    {
+        try
+        {
+            do
+            {
+                // The clock start and the log time it corresponds to, and the
+                // previous record's time
+                long[] start = { 0, 0, 0 };
+                
+                long count = reader.forEach(Long.MIN_VALUE, Long.MAX_VALUE, record->{
+                    long now = System.nanoTime();
+                    
+                    if ( start[0] == 0 )
+                    {
+                        start[0] = now;
+                        start[1] = record.getTimestamp();
+                    }
+                    else
+                    {
+                        // Skip over the time nothing was logged, keeping a 
+                        // second of it
+                        long gap = record.getTimestamp() - start[2];
+                        if ( gap > MAX_GAP_MILLIS )
+                        {
+                            start[1] += gap - MAX_GAP_MILLIS;
+                        }
+                    }
+                    start[2] = record.getTimestamp();
+                    
+                    // Wait until the record is due
+                    long due = start[0] + (long) ((record.getTimestamp() - start[1]) * 1e6 / speed);
+                    try
+                    {
+                        while (!closed && due > System.nanoTime())
+                        {
+                            Thread.sleep(Math.max(1, (due - System.nanoTime()) / 1000000));
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        closed = true;
+                    }
+                    
+                    if ( closed )
+                    {
+                        throw new CancellationException();
+                    }
+                    publish(record);
+                });
+                
+                if ( count == 0 )
+                {
+                    // Nothing logged, so nothing to loop over
+                    break;
+                }
+            }
+            while (loop && !closed);
+        }
+        catch (CancellationException e)
+        {
+            // Closed
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    private void publish(LoggedDetections record)
+    {
+        double min = threshold * 100;
+        List<BoundingBox> boxes = new ArrayList<>(record.getBoxes().size());
+        
+        for (BoundingBox box : record.getBoxes())
+        {
+            if ( box.getConfidence() >= min )
+            {
+                boxes.add(box);
+            }
+        }
+        
+        activeModel = models.computeIfAbsent(record.getModel(), LoadedModel::new);
+        timestamp = record.getTimestamp();
+        detectedBoxes = boxes;
+    }
+}
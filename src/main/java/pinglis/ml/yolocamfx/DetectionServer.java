@@ -0,0 +1,664 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Streams detections live over TCP to other processes.
+ * <p>
+ * Each named stream of detections, such as the camera in the application or
+ * an {@link InferenceStream}, is {@link #publish published} as a new 
+ * generation that replaces the last. Publishing only swaps a reference and
+ * wakes the server's selector thread, so it never waits on a client. The 
+ * selector thread writes the latest generation of each stream to every 
+ * client that has not had it, through a send buffer of a fixed size per 
+ * client. A slow client is not sent anything new until its buffer drains 
+ * and then gets only the latest generation, skipping the ones in between.
+ * <p>
+ * A client may send a line of text at any time to choose what it is sent:
+ * <pre>
+ * streams=camera,door classes=person,car
+ * </pre>
+ * Streams are chosen by name and classes by name or index, {@code *} or 
+ * leaving one out means all of them. Until a client sends a line it gets 
+ * everything.
+ * <p>
+ * Every frame sent is big endian:
+ * <pre>
+ *   int    length of the rest of the frame
+ *   byte   frame type, 1 for detections
+ *   short  length of the stream name, then the name in UTF-8
+ *   long   generation of the stream, from 1
+ *   long   frame sequence number
+ *   long   frame timestamp in milliseconds
+ *   byte   model, the ordinal of {@link YoloModel}
+ *   short  number of detections, then for each
+ *     short  class index
+ *     float  score, 0 to 1
+ *     float  x1, y1, x2, y2 as fractions of the frame
+ * </pre>
+ * A gap in the generations of a stream shows how many were skipped. A 
+ * frame carries at most as many detections as fit in a client's buffer.
+ * <p>
+ * The connection and throughput counters can be read directly or through 
+ * JMX once {@link #register()} has been called.
+ */
+public class DetectionServer
+        implements DetectionServerMXBean, AutoCloseable
+{
+    public static final int DEFAULT_PORT = 7416;
+    /** The stream the application and headless runner publish as */
+    public static final String DEFAULT_STREAM = "camera";
+    public static final String OBJECT_NAME = "pinglis.ml.yolocamfx:type=DetectionServer";
+    static final byte FRAME_DETECTIONS = 1;
+    private static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_REQUEST_BYTES = 1024;
+    
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final int bufferBytes;
+    private final Map<String, Generation> latest = new ConcurrentHashMap<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final RateMeter sendRate = new RateMeter();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Listen on the loopback address with 64KB send buffers
+     * @param port the port, or 0 for any free port
+     * @throws IOException 
+     */
+    public DetectionServer(int port) throws IOException
+    {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), DEFAULT_BUFFER_BYTES);
+    }
+    
+    /**
+     * @param address the address to listen on
+     * @param bufferBytes the size of each client's send buffer
+     * @throws IOException 
+     */
+    public DetectionServer(InetSocketAddress address, int bufferBytes) throws IOException
+    {
+        if ( bufferBytes < 64 )
+        {
+            throw new IllegalArgumentException("Buffers of " + bufferBytes + " bytes are too small");
+        }
+        this.bufferBytes = bufferBytes;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(address);
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        
+        this.thread = new Thread(this::run);
+        this.thread.setDaemon(true);
+        this.thread.setName("DetectionServer");
+        this.thread.start();
+    }
+    
+    /**
+     * The port the server is listening on
+     * @return int
+     */
+    public int getPort()
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+    
+    /**
+     * Make the given detections the latest generation of a stream. Never 
+     * blocks. The list must not be changed afterwards.
+     * @param stream the name of the stream
+     * @param sequence the frame sequence number
+     * @param timestamp the frame timestamp
+     * @param model the model that found the detections
+     * @param boxes the detections
+     */
+    public void publish(String stream, long sequence, long timestamp, YoloModel model, List<? extends BoundingBox> boxes)
+    {
+        if ( closed )
+        {
+            return;
+        }
+        
+        latest.compute(stream, (name, previous)->new Generation(name, 
+                previous == null ? 1 : previous.generation + 1, sequence, timestamp, model, boxes));
+        published.incrementAndGet();
+        
+        // One wakeup is enough however many generations arrive before the
+        // selector gets to them
+        if ( wakeupPending.compareAndSet(false, true) )
+        {
+            selector.wakeup();
+        }
+    }
+    
+    /**
+     * A listener that publishes each result of an {@link InferenceStream}
+     * under its name
+     * @param stream the name to publish under
+     * @param model the model the stream runs
+     * @return BiConsumer to set as the stream's listener
+     */
+    public BiConsumer<Frame, List<BoundingBox>> listener(String stream, YoloModel model)
+    {
+        return (frame, boxes)->publish(stream, frame.getSequence(), frame.getTimestamp(), model, boxes);
+    }
+    
+    /**
+     * Publish the counters on the platform MBean server. Safe to call more 
+     * than once.
+     */
+    public void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME + ",port=" + getPort()));
+        }
+        catch (InstanceAlreadyExistsException e)
+        {
+            // Already registered
+        }
+        catch (JMException e)
+        {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    @Override
+    public int getConnectionCount()
+    {
+        return connections.get();
+    }
+
+    @Override
+    public long getAcceptedCount()
+    {
+        return accepted.get();
+    }
+
+    @Override
+    public long getPublishedCount()
+    {
+        return published.get();
+    }
+
+    @Override
+    public long getSentFrames()
+    {
+        return sendRate.getTotal();
+    }
+
+    @Override
+    public long getSentBytes()
+    {
+        return sentBytes.get();
+    }
+
+    @Override
+    public double getSendRate()
+    {
+        return sendRate.getRate();
+    }
+
+    @Override
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+    
+    /**
+     * Stop listening and disconnect the clients
+     */
+    @Override
+    public void close()
+    {
+        if ( closed )
+        {
+            return;
+        }
+        closed = true;
+        selector.wakeup();
+        
+        try
+        {
+            thread.join(1000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME + ",port=" + getPort());
+            if ( server.isRegistered(name) )
+            {
+                server.unregisterMBean(name);
+            }
+        }
+        catch (JMException e)
+        {
+            e.printStackTrace(System.err);
+        }
+    }
+    
+    private void run()
+    {
+        try
+        {
+            while (!closed)
+            {
+                selector.select();
+                
+                // Clear before looking at the latest generations so one 
+                // published from here on wakes the next select
+                wakeupPending.set(false);
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                
+                for (SelectionKey key : selector.keys())
+                {
+                    if ( key.isValid() && key.attachment() instanceof Client )
+                    {
+                        send(key, (Client) key.attachment());
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(System.err);
+        }
+        finally
+        {
+            for (SelectionKey key : selector.keys())
+            {
+                disconnect(key);
+            }
+            
+            try
+            {
+                serverChannel.close();
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+    
+    private void handle(SelectionKey key) throws IOException
+    {
+        if ( !key.isValid() )
+        {
+            return;
+        }
+        
+        if ( key.isAcceptable() )
+        {
+            SocketChannel channel = serverChannel.accept();
+            if ( channel != null )
+            {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(selector, SelectionKey.OP_READ, new Client(channel, bufferBytes));
+                connections.incrementAndGet();
+                accepted.incrementAndGet();
+            }
+            return;
+        }
+        
+        Client client = (Client) key.attachment();
+        try
+        {
+            if ( key.isReadable() && !client.read() )
+            {
+                disconnect(key);
+            }
+            else if ( key.isValid() && key.isWritable() )
+            {
+                write(key, client);
+            }
+        }
+        catch (IOException e)
+        {
+            // The client went away
+            disconnect(key);
+        }
+    }
+    
+    /**
+     * Fill an idle client's buffer with the generations it has not had and
+     * start writing it
+     */
+    private void send(SelectionKey key, Client client)
+    {
+        if ( client.out.hasRemaining() )
+        {
+            return;
+        }
+        
+        client.out.clear();
+        int frames = 0;
+        for (Generation generation : latest.values())
+        {
+            long sent = client.sent.getOrDefault(generation.stream, 0L);
+            if ( generation.generation <= sent || !client.wantsStream(generation.stream) )
+            {
+                continue;
+            }
+            if ( !client.encode(generation) )
+            {
+                // Full, the rest go once this has been written
+                break;
+            }
+            
+            if ( sent > 0 )
+            {
+                coalesced.addAndGet(generation.generation - sent - 1);
+            }
+            client.sent.put(generation.stream, generation.generation);
+            frames++;
+        }
+        client.out.flip();
+        
+        if ( frames > 0 )
+        {
+            sendRate.mark(frames);
+            try
+            {
+                write(key, client);
+            }
+            catch (IOException e)
+            {
+                disconnect(key);
+            }
+        }
+    }
+    
+    private void write(SelectionKey key, Client client) throws IOException
+    {
+        sentBytes.addAndGet(client.channel.write(client.out));
+        
+        // Only wait to write when the socket is full
+        int ops = client.out.hasRemaining() 
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE 
+                : SelectionKey.OP_READ;
+        if ( key.interestOps() != ops )
+        {
+            key.interestOps(ops);
+        }
+    }
+    
+    private void disconnect(SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            key.channel().close();
+        }
+        catch (IOException e)
+        {
+            // Closing anyway
+        }
+        
+        if ( key.attachment() instanceof Client )
+        {
+            key.attach(null);
+            connections.decrementAndGet();
+        }
+    }
+    
+    /**
+     * The latest detections of a stream
+     */
+    private static class Generation
+    {
+        private final String stream;
+        private final byte[] name;
+        private final long generation;
+        private final long sequence;
+        private final long timestamp;
+        private final YoloModel model;
+        private final List<? extends BoundingBox> boxes;
+
+        Generation(String stream, long generation, long sequence, long timestamp, YoloModel model, 
+                List<? extends BoundingBox> boxes)
+        {
+            this.stream = stream;
+            this.name = stream.getBytes(StandardCharsets.UTF_8);
+            this.generation = generation;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.model = model;
+            this.boxes = boxes;
+        }
+    }
+    
+    /**
+     * A connected client, its subscription and send buffer. Only used on 
+     * the selector thread.
+     */
+    private static class Client
+    {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        private final ByteBuffer out;
+        private final Map<String, Long> sent = new HashMap<>();
+        private Set<String> streams;
+        private Set<String> classes;
+
+        Client(SocketChannel channel, int bufferBytes)
+        {
+            this.channel = channel;
+            this.out = ByteBuffer.allocateDirect(bufferBytes);
+            this.out.flip();
+        }
+        
+        boolean wantsStream(String stream)
+        {
+            return streams == null || streams.contains(stream);
+        }
+        
+        boolean wantsClass(BoundingBox box)
+        {
+            return classes == null 
+                    || classes.contains(String.valueOf(box.getClassIndex()))
+                    || (box.getLabel() != null && classes.contains(box.getLabel().toLowerCase(Locale.ROOT)));
+        }
+        
+        /**
+         * Read any subscription lines
+         * @return false if the client has gone or sent too long a line
+         */
+        boolean read() throws IOException
+        {
+            if ( channel.read(in) < 0 )
+            {
+                return false;
+            }
+            
+            in.flip();
+            int start = 0;
+            for (int i = 0; i < in.limit(); i++)
+            {
+                if ( in.get(i) == '\n' )
+                {
+                    subscribe(new String(in.array(), start, i - start, StandardCharsets.UTF_8).trim());
+                    start = i + 1;
+                }
+            }
+            in.position(start);
+            in.compact();
+            
+            return in.hasRemaining();
+        }
+        
+        private void subscribe(String line)
+        {
+            Set<String> newStreams = null;
+            Set<String> newClasses = null;
+            
+            for (String token : line.split("\\s+"))
+            {
+                int eq = token.indexOf('=');
+                if ( eq < 0 )
+                {
+                    continue;
+                }
+                
+                String key = token.substring(0, eq);
+                String value = token.substring(eq + 1);
+                if ( "streams".equals(key) )
+                {
+                    newStreams = names(value, false);
+                }
+                else if ( "classes".equals(key) )
+                {
+                    newClasses = names(value, true);
+                }
+                else
+                {
+                    System.err.println("DetectionServer ignoring " + token);
+                }
+            }
+            
+            streams = newStreams;
+            classes = newClasses;
+            
+            // Send the new subscription the current state of its streams
+            sent.clear();
+        }
+        
+        private static Set<String> names(String value, boolean ignoreCase)
+        {
+            if ( value.isEmpty() || "*".equals(value) )
+            {
+                return null;
+            }
+            
+            Set<String> names = new HashSet<>();
+            for (String name : value.split(","))
+            {
+                names.add(ignoreCase ? name.trim().toLowerCase(Locale.ROOT) : name.trim());
+            }
+            return names;
+        }
+        
+        /**
+         * Add a frame for the generation to the buffer, with as many of the
+         * wanted detections as fit
+         * @return false if the frame has to wait for the buffer to drain
+         */
+        boolean encode(Generation generation)
+        {
+            int header = 4 + 1 + 2 + generation.name.length + DetectionLog.FRAME_BYTES + 8;
+            if ( out.remaining() < header )
+            {
+                return false;
+            }
+            
+            int count = 0;
+            for (BoundingBox box : generation.boxes)
+            {
+                if ( wantsClass(box) )
+                {
+                    count++;
+                }
+            }
+            
+            // Only cut detections from a frame that has the buffer to itself
+            int room = (out.remaining() - header) / DetectionLog.DETECTION_BYTES;
+            if ( count > room && out.position() > 0 )
+            {
+                return false;
+            }
+            count = Math.min(count, Math.min(Short.MAX_VALUE, room));
+            
+            out.putInt(header - 4 + count * DetectionLog.DETECTION_BYTES);
+            out.put(FRAME_DETECTIONS);
+            out.putShort((short) generation.name.length);
+            out.put(generation.name);
+            out.putLong(generation.generation);
+            out.putLong(generation.sequence);
+            out.putLong(generation.timestamp);
+            out.put((byte) generation.model.ordinal());
+            out.putShort((short) count);
+            
+            int written = 0;
+            for (BoundingBox box : generation.boxes)
+            {
+                if ( written == count )
+                {
+                    break;
+                }
+                if ( wantsClass(box) )
+                {
+                    out.putShort((short) box.getClassIndex());
+                    out.putFloat((float) (box.getConfidence() / 100));
+                    out.putFloat((float) box.getX1());
+                    out.putFloat((float) box.getY1());
+                    out.putFloat((float) box.getX2());
+                    out.putFloat((float) box.getY2());
+                    written++;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+/**
+ * The JMX view of a {@link DetectionServer}
+ */
+public interface DetectionServerMXBean
+{
+    /**
+     * The clients connected now
+     * @return int
+     */
+    int getConnectionCount();
+    
+    /**
+     * The clients connected since the server started
+     * @return long
+     */
+    long getAcceptedCount();
+    
+    /**
+     * The detection generations handed to the server
+     * @return long
+     */
+    long getPublishedCount();
+    
+    /**
+     * The frames written to clients
+     * @return long
+     */
+    long getSentFrames();
+    
+    long getSentBytes();
+    
+    /**
+     * The frames sent per second to all clients
+     * @return double
+     */
+    double getSendRate();
+    
+    /**
+     * The generations a client never saw because a later one replaced them
+     * while it was still sending
+     * @return long
+     */
+    long getCoalescedCount();
+}
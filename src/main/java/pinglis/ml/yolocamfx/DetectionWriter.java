@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes detections to a text stream, either as JSON Lines with one object
+ * per frame or as CSV with one row per detection.
+ */
+public abstract class DetectionWriter
+        implements Closeable
+{
+    protected final Writer out;
+    
+    protected DetectionWriter(Writer out)
+    {
+        this.out = out;
+    }
+    
+    /**
+     * Create a writer for the given format name, "jsonl" or "csv"
+     * @param format
+     * @param out
+     * @return DetectionWriter
+     * @throws IOException 
+     */
+    public static DetectionWriter create(String format, Writer out) throws IOException
+    {
+        switch (format.toLowerCase())
+        {
+            case "jsonl":
+            case "json":
+                return new JsonLines(out);
+            case "csv":
+                return new Csv(out);
+            default:
+                throw new IllegalArgumentException("Unknown output format: " + format);
+        }
+    }
+    
+    /**
+     * Write the detections found in a frame
+     * @param sequence the frame sequence number
+     * @param timestamp the frame capture time in milliseconds
+     * @param boxes the detections, may be empty
+     * @throws IOException 
+     */
+    public abstract void write(long sequence, long timestamp, List<BoundingBox> boxes) throws IOException;
+    
+    @Override
+    public void close() throws IOException
+    {
+        out.close();
+    }
+    
+    protected static String number(double value)
+    {
+        return String.format(Locale.ROOT, "%.4f", value);
+    }
+    
+    /**
+     * One JSON object per line for each frame
+     */
+    private static class JsonLines
+            extends DetectionWriter
+    {
+        JsonLines(Writer out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(long sequence, long timestamp, List<BoundingBox> boxes) throws IOException
+        {
+            StringBuilder sb = new StringBuilder(64 + boxes.size() * 128);
+            sb.append("{\"sequence\":").append(sequence)
+              .append(",\"timestamp\":").append(timestamp)
+              .append(",\"detections\":[");
+            
+            for (int i = 0; i < boxes.size(); i++)
+            {
+                BoundingBox box = boxes.get(i);
+                
+                if ( i > 0 )
+                {
+                    sb.append(',');
+                }
+                sb.append("{\"class\":").append(box.getClassIndex())
+                  .append(",\"label\":\"").append(escape(box.getLabel()))
+                  .append("\",\"confidence\":").append(number(box.getConfidence()))
+                  .append(",\"x1\":").append(number(box.getX1()))
+                  .append(",\"y1\":").append(number(box.getY1()))
+                  .append(",\"x2\":").append(number(box.getX2()))
+                  .append(",\"y2\":").append(number(box.getY2()))
+                  .append('}');
+            }
+            sb.append("]}\n");
+            out.write(sb.toString());
+        }
+        
+        private static String escape(String s)
+        {
+            return s.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+    }
+    
+    /**
+     * One CSV row per detection with a header row
+     */
+    private static class Csv
+            extends DetectionWriter
+    {
+        Csv(Writer out) throws IOException
+        {
+            super(out);
+            out.write("sequence,timestamp,class,label,confidence,x1,y1,x2,y2\n");
+        }
+
+        @Override
+        public void write(long sequence, long timestamp, List<BoundingBox> boxes) throws IOException
+        {
+            for (BoundingBox box : boxes)
+            {
+                out.write(sequence + "," + timestamp + "," + box.getClassIndex() + ",\"" 
+                        + box.getLabel().replace("\"", "\"\"") + "\"," + number(box.getConfidence()) + "," 
+                        + number(box.getX1()) + "," + number(box.getY1()) + "," 
+                        + number(box.getX2()) + "," + number(box.getY2()) + "\n");
+            }
+        }
+    }
+}
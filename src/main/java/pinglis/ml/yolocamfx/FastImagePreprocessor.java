@@ -0,0 +1,349 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.util.List;
+import org.bytedeco.javacpp.FloatPointer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Preprocessing that reads the pixels of TYPE_3BYTE_BGR and TYPE_INT_RGB 
+ * images straight from their rasters and does the bilinear resize, the 
+ * BGR to RGB swap and the scaling to 0-1 in a single pass into a float 
+ * buffer that is reused from frame to frame. The input array handed to the 
+ * network is also reused, so the steady state allocates nothing.
+ * <p>
+ * The resize uses the same pixel centre mapping as OpenCV's linear resize
+ * so the output matches the {@link NativeImagePreprocessor} to within 
+ * rounding. Other image types are passed to the native preprocessor.
+ */
+public class FastImagePreprocessor
+        implements ImagePreprocessor
+{
+    private static final float SCALE = 1f / 255f;
+    
+    private final int width;
+    private final int height;
+    private final int planeSize;
+    private final NativeImagePreprocessor fallback;
+    
+    // Lookup tables for the last source size seen
+    private int sourceWidth = -1;
+    private int sourceHeight = -1;
+    private final int[] x0;
+    private final int[] x1;
+    private final float[] xWeight;
+    private final int[] y0;
+    private final int[] y1;
+    private final float[] yWeight;
+    private final int[] xOffset0;
+    private final int[] xOffset1;
+    private int lastPixelStride = -1;
+    
+    // Reused output, only reallocated when the batch size changes
+    private float[] buffer = new float[0];
+    private INDArray input;
+    private int inputBatch;
+
+    public FastImagePreprocessor(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.planeSize = width * height;
+        this.fallback = new NativeImagePreprocessor(width, height);
+        this.x0 = new int[width];
+        this.x1 = new int[width];
+        this.xWeight = new float[width];
+        this.y0 = new int[height];
+        this.y1 = new int[height];
+        this.yWeight = new float[height];
+        this.xOffset0 = new int[width];
+        this.xOffset1 = new int[width];
+    }
+    
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    /**
+     * Test whether the image can be read directly or will go to the 
+     * fallback
+     * @param image
+     * @return boolean
+     */
+    public static boolean isSupported(BufferedImage image)
+    {
+        switch (image.getType())
+        {
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return image.getRaster().getSampleModel() instanceof ComponentSampleModel;
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                return image.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public INDArray preprocess(BufferedImage image) throws IOException
+    {
+        if ( !isSupported(image) )
+        {
+            return fallback.preprocess(image);
+        }
+        
+        ensureCapacity(1);
+        fill(image, 0);
+        return upload(1);
+    }
+
+    @Override
+    public INDArray preprocess(List<BufferedImage> images) throws IOException
+    {
+        for (BufferedImage image : images)
+        {
+            if ( !isSupported(image) )
+            {
+                return fallback.preprocess(images);
+            }
+        }
+        
+        ensureCapacity(images.size());
+        
+        for (int i = 0; i < images.size(); i++)
+        {
+            fill(images.get(i), i * 3 * planeSize);
+        }
+        return upload(images.size());
+    }
+    
+    private void ensureCapacity(int batch)
+    {
+        if ( buffer.length != batch * 3 * planeSize )
+        {
+            buffer = new float[batch * 3 * planeSize];
+        }
+    }
+    
+    /**
+     * Copy the buffer into the reused input array of the right batch size
+     */
+    private INDArray upload(int batch)
+    {
+        if ( input == null || inputBatch != batch )
+        {
+            input = Nd4j.create(new int[] { batch, 3, height, width }, 'c');
+            inputBatch = batch;
+        }
+        
+        // Bulk copy straight into native memory where we can
+        if ( input.data().pointer() instanceof FloatPointer )
+        {
+            ((FloatPointer) input.data().pointer()).put(buffer, 0, buffer.length);
+        }
+        else
+        {
+            input.data().setData(buffer);
+        }
+        return input;
+    }
+    
+    /**
+     * Resize, reorder and scale one image into the buffer at the offset
+     */
+    private void fill(BufferedImage image, int offset)
+    {
+        prepareTables(image.getWidth(), image.getHeight());
+        
+        Raster raster = image.getRaster();
+        
+        if ( image.getType() == BufferedImage.TYPE_3BYTE_BGR )
+        {
+            fillBgr(raster, offset);
+        }
+        else
+        {
+            fillInt(raster, offset);
+        }
+    }
+    
+    private void fillBgr(Raster raster, int offset)
+    {
+        ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int pixelStride = sm.getPixelStride();
+        int scanlineStride = sm.getScanlineStride();
+        int[] bandOffsets = sm.getBandOffsets();
+        
+        // Sub images share the parent's data so allow for where they start
+        int base = -raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX() * pixelStride;
+        
+        // The sample model bands are red, green, blue whatever the order of
+        // the bytes in memory
+        int rOffset = bandOffsets[0];
+        int gOffset = bandOffsets[1];
+        int bOffset = bandOffsets[2];
+        int rPlane = offset;
+        int gPlane = offset + planeSize;
+        int bPlane = offset + 2 * planeSize;
+        
+        if ( pixelStride != lastPixelStride )
+        {
+            for (int x = 0; x < width; x++)
+            {
+                xOffset0[x] = x0[x] * pixelStride;
+                xOffset1[x] = x1[x] * pixelStride;
+            }
+            lastPixelStride = pixelStride;
+        }
+        
+        for (int y = 0; y < height; y++)
+        {
+            int row0 = base + y0[y] * scanlineStride;
+            int row1 = base + y1[y] * scanlineStride;
+            float wy = yWeight[y];
+            float wy0 = (1 - wy) * SCALE;
+            float wy1 = wy * SCALE;
+            int out = y * width;
+            
+            for (int x = 0; x < width; x++, out++)
+            {
+                int p00 = row0 + xOffset0[x];
+                int p01 = row0 + xOffset1[x];
+                int p10 = row1 + xOffset0[x];
+                int p11 = row1 + xOffset1[x];
+                float wx1 = xWeight[x];
+                float wx0 = 1 - wx1;
+                float w00 = wx0 * wy0;
+                float w01 = wx1 * wy0;
+                float w10 = wx0 * wy1;
+                float w11 = wx1 * wy1;
+                
+                buffer[rPlane + out] = (data[p00 + rOffset] & 0xFF) * w00 + (data[p01 + rOffset] & 0xFF) * w01
+                        + (data[p10 + rOffset] & 0xFF) * w10 + (data[p11 + rOffset] & 0xFF) * w11;
+                buffer[gPlane + out] = (data[p00 + gOffset] & 0xFF) * w00 + (data[p01 + gOffset] & 0xFF) * w01
+                        + (data[p10 + gOffset] & 0xFF) * w10 + (data[p11 + gOffset] & 0xFF) * w11;
+                buffer[bPlane + out] = (data[p00 + bOffset] & 0xFF) * w00 + (data[p01 + bOffset] & 0xFF) * w01
+                        + (data[p10 + bOffset] & 0xFF) * w10 + (data[p11 + bOffset] & 0xFF) * w11;
+            }
+        }
+    }
+    
+    private void fillInt(Raster raster, int offset)
+    {
+        SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int scanlineStride = sm.getScanlineStride();
+        int base = -raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX();
+        int rPlane = offset;
+        int gPlane = offset + planeSize;
+        int bPlane = offset + 2 * planeSize;
+        
+        for (int y = 0; y < height; y++)
+        {
+            int row0 = base + y0[y] * scanlineStride;
+            int row1 = base + y1[y] * scanlineStride;
+            float wy = yWeight[y];
+            float wy0 = (1 - wy) * SCALE;
+            float wy1 = wy * SCALE;
+            int out = y * width;
+            
+            for (int x = 0; x < width; x++, out++)
+            {
+                int c00 = data[row0 + x0[x]];
+                int c01 = data[row0 + x1[x]];
+                int c10 = data[row1 + x0[x]];
+                int c11 = data[row1 + x1[x]];
+                float wx1 = xWeight[x];
+                float wx0 = 1 - wx1;
+                float w00 = wx0 * wy0;
+                float w01 = wx1 * wy0;
+                float w10 = wx0 * wy1;
+                float w11 = wx1 * wy1;
+                
+                buffer[rPlane + out] = ((c00 >> 16) & 0xFF) * w00 + ((c01 >> 16) & 0xFF) * w01
+                        + ((c10 >> 16) & 0xFF) * w10 + ((c11 >> 16) & 0xFF) * w11;
+                buffer[gPlane + out] = ((c00 >> 8) & 0xFF) * w00 + ((c01 >> 8) & 0xFF) * w01
+                        + ((c10 >> 8) & 0xFF) * w10 + ((c11 >> 8) & 0xFF) * w11;
+                buffer[bPlane + out] = (c00 & 0xFF) * w00 + (c01 & 0xFF) * w01
+                        + (c10 & 0xFF) * w10 + (c11 & 0xFF) * w11;
+            }
+        }
+    }
+    
+    /**
+     * Work out which source pixels and weights each output pixel uses. Only
+     * redone when the source size changes.
+     */
+    private void prepareTables(int srcWidth, int srcHeight)
+    {
+        if ( srcWidth == sourceWidth && srcHeight == sourceHeight )
+        {
+            return;
+        }
+        
+        prepareAxis(srcWidth, width, x0, x1, xWeight);
+        prepareAxis(srcHeight, height, y0, y1, yWeight);
+        lastPixelStride = -1;
+        sourceWidth = srcWidth;
+        sourceHeight = srcHeight;
+    }
+    
+    private static void prepareAxis(int src, int dst, int[] i0, int[] i1, float[] weight)
+    {
+        double scale = (double) src / dst;
+        
+        for (int d = 0; d < dst; d++)
+        {
+            // Map pixel centres, as OpenCV does for INTER_LINEAR
+            double s = (d + 0.5) * scale - 0.5;
+            int lo = (int) Math.floor(s);
+            float w = (float) (s - lo);
+            
+            if ( lo < 0 )
+            {
+                lo = 0;
+                w = 0;
+            }
+            if ( lo >= src - 1 )
+            {
+                lo = src - 1;
+                w = 0;
+            }
+            
+            i0[d] = lo;
+            i1[d] = Math.min(lo + 1, src - 1);
+            weight[d] = w;
+        }
+    }
+}
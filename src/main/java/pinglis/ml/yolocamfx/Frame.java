@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A single image grabbed from a {@link FrameSource} along with the sequence
+ * number the source gave it and the time it was captured.
+ */
+public class Frame
+{
+    private final BufferedImage image;
+    private final long sequence;
+    private final long timestamp;
+
+    public Frame(BufferedImage image, long sequence, long timestamp)
+    {
+        this.image = image;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+    }
+
+    public BufferedImage getImage()
+    {
+        return image;
+    }
+
+    /**
+     * The position of this frame in its source, starting at zero
+     * @return long
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * The wall clock time the frame was captured, in milliseconds
+     * @return long
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands frames from a capture thread to a single consumer thread.
+ * <p>
+ * By default the mailbox holds one frame and a new frame replaces any frame
+ * the consumer has not taken yet, so the consumer always gets the latest
+ * frame. Alternatively it can queue a fixed number of frames, dropping the 
+ * oldest when full. Either way the producer never blocks and every frame 
+ * replaced or dropped is counted.
+ * <p>
+ * The consumer parks while the mailbox is empty rather than polling. A 
+ * {@link #wake()} while the consumer is busy is remembered, so its next 
+ * {@link #take()} returns straight away.
+ */
+public class FrameMailbox
+{
+    private final AtomicReference<Frame> slot = new AtomicReference<>();
+    private final ArrayBlockingQueue<Frame> queue;
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private volatile Thread waiter;
+    private volatile boolean closed = false;
+    
+    /**
+     * Create a mailbox that only keeps the latest frame
+     */
+    public FrameMailbox()
+    {
+        this.queue = null;
+    }
+    
+    /**
+     * Create a mailbox that queues up to capacity frames, dropping the 
+     * oldest when it is full
+     * @param capacity 
+     */
+    public FrameMailbox(int capacity)
+    {
+        this.queue = capacity > 1 ? new ArrayBlockingQueue<>(capacity) : null;
+    }
+    
+    /**
+     * Post a frame, replacing or dropping older frames as needed. Never 
+     * blocks.
+     * @param frame 
+     */
+    public void offer(Frame frame)
+    {
+        if ( closed )
+        {
+            return;
+        }
+        
+        offered.incrementAndGet();
+        
+        if ( queue == null )
+        {
+            if ( slot.getAndSet(frame) != null )
+            {
+                dropped.incrementAndGet();
+                DetectionMetrics.get().frameDropped();
+            }
+        }
+        else
+        {
+            while (!queue.offer(frame))
+            {
+                if ( queue.poll() != null )
+                {
+                    dropped.incrementAndGet();
+                    DetectionMetrics.get().frameDropped();
+                }
+            }
+        }
+        
+        unpark();
+    }
+    
+    /**
+     * Take the next frame, parking until one arrives.
+     * 
+     * @return the next Frame, or null if the mailbox was closed or woken by
+     * {@link #wake()} with no frame waiting
+     * @throws InterruptedException 
+     */
+    public Frame take() throws InterruptedException
+    {
+        Frame frame = poll();
+        
+        // A frame will be run anyway, so a wake waiting does not matter
+        if ( frame != null || closed || woken.getAndSet(false) )
+        {
+            woken.set(false);
+            return frame;
+        }
+        
+        waiter = Thread.currentThread();
+        
+        try
+        {
+            // Check again now we are registered as the waiter in case a frame
+            // or a wake arrived in between
+            frame = poll();
+            
+            if ( frame == null && !closed && !woken.getAndSet(false) )
+            {
+                LockSupport.park(this);
+                frame = poll();
+            }
+        }
+        finally
+        {
+            waiter = null;
+        }
+        
+        if ( frame == null && Thread.interrupted() )
+        {
+            throw new InterruptedException();
+        }
+        return frame;
+    }
+    
+    /**
+     * Take the next frame if there is one
+     * @return Frame or null
+     */
+    public Frame poll()
+    {
+        return queue == null ? slot.getAndSet(null) : queue.poll();
+    }
+    
+    /**
+     * Wake the consumer if it is parked in {@link #take()}, or make its next
+     * take return straight away if not
+     */
+    public void wake()
+    {
+        woken.set(true);
+        unpark();
+    }
+    
+    private void unpark()
+    {
+        Thread t = waiter;
+        
+        if ( t != null )
+        {
+            LockSupport.unpark(t);
+        }
+    }
+    
+    /**
+     * Stop accepting frames and wake the consumer
+     */
+    public void close()
+    {
+        closed = true;
+        unpark();
+    }
+    
+    public boolean isClosed()
+    {
+        return closed;
+    }
+    
+    public long getOfferedCount()
+    {
+        return offered.get();
+    }
+    
+    /**
+     * The number of frames replaced or dropped before the consumer took them
+     * @return long
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+}
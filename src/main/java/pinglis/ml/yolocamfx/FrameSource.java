@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.IOException;
+
+/**
+ * A source of frames such as a webcam, a video file, a directory of images
+ * or a synthetic generator.
+ * <p>
+ * Sources are not thread safe and are expected to be read by a single
+ * capture thread.
+ */
+public interface FrameSource
+        extends AutoCloseable
+{
+    /**
+     * Open the underlying device or file
+     * @throws IOException 
+     */
+    void open() throws IOException;
+    
+    /**
+     * Grab the next frame, blocking until it is available.
+     * 
+     * @return the next Frame or null if the source has no more frames
+     * @throws IOException 
+     */
+    Frame grab() throws IOException;
+    
+    /**
+     * Ask for frames smaller than the source's full resolution, to take 
+     * load off everything downstream when the system cannot keep up. 
+     * Sources that cannot change their resolution ignore this.
+     * @param scale fraction of the full width and height, greater than 0 
+     * and at most 1
+     */
+    default void setResolutionScale(double scale)
+    {
+    }
+    
+    /**
+     * The fraction of the full resolution frames are delivered at
+     * @return double, 1 by default
+     */
+    default double getResolutionScale()
+    {
+        return 1;
+    }
+    
+    /**
+     * Release the underlying device or file
+     */
+    @Override
+    void close();
+}
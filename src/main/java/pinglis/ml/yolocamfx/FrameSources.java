@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.File;
+
+/**
+ * Creates frame sources from a short text description so they can be chosen
+ * on the command line. The supported forms are:
+ * <ul>
+ * <li>{@code webcam} - the default webcam</li>
+ * <li>{@code dir:<path>} - every image in a directory</li>
+ * <li>{@code video:<path>} - a Motion JPEG file</li>
+ * <li>{@code synthetic[:<width>x<height>[@<fps>]]} - generated frames, 640x480 
+ * as fast as possible by default</li>
+ * </ul>
+ */
+public final class FrameSources
+{
+    private static final long SYNTHETIC_SEED = 42;
+    
+    private FrameSources()
+    {
+    }
+    
+    /**
+     * Create a frame source from its description
+     * 
+     * @param spec the source description
+     * @param loop whether file based sources restart when they reach the end
+     * @return FrameSource
+     * @throws IllegalArgumentException if the description is not recognised
+     */
+    public static FrameSource create(String spec, boolean loop)
+    {
+        if ( spec == null || spec.equals("webcam") )
+        {
+            return new WebCamFrameSource();
+        }
+        if ( spec.startsWith("dir:") )
+        {
+            return new ImageDirectoryFrameSource(new File(spec.substring(4)), loop);
+        }
+        if ( spec.startsWith("video:") )
+        {
+            return new VideoFileFrameSource(new File(spec.substring(6)), loop);
+        }
+        if ( spec.equals("synthetic") || spec.startsWith("synthetic:") )
+        {
+            int width = 640;
+            int height = 480;
+            double fps = 0;
+            
+            if ( spec.startsWith("synthetic:") )
+            {
+                String size = spec.substring(10);
+                int at = size.indexOf('@');
+                
+                if ( at >= 0 )
+                {
+                    fps = Double.parseDouble(size.substring(at + 1));
+                    size = size.substring(0, at);
+                }
+                
+                int x = size.indexOf('x');
+                
+                if ( x < 0 )
+                {
+                    throw new IllegalArgumentException("Expected <width>x<height> in " + spec);
+                }
+                width = Integer.parseInt(size.substring(0, x));
+                height = Integer.parseInt(size.substring(x + 1));
+            }
+            
+            return new SyntheticFrameSource(width, height, fps, 0, SYNTHETIC_SEED);
+        }
+        
+        throw new IllegalArgumentException("Unknown frame source: " + spec);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.IntBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Copies frames into a JavaFX image for display without allocating for 
+ * every frame, unlike SwingFXUtils.toFXImage().
+ * <p>
+ * One WritableImage is kept and only replaced when the frame size changes. 
+ * ARGB frames are written straight from their raster, BGR and RGB frames are
+ * converted through a reused int buffer and anything else goes through 
+ * BufferedImage.getRGB() into the same buffer.
+ * <p>
+ * Only to be used on the FX thread.
+ */
+public class FxImageWriter
+{
+    private static final PixelFormat<IntBuffer> ARGB = PixelFormat.getIntArgbInstance();
+    
+    private WritableImage image;
+    private int[] pixels = new int[0];
+
+    /**
+     * Write the frame into the reused image
+     * @param frame
+     * @return the image, a new one only if the size has changed
+     */
+    public WritableImage write(BufferedImage frame)
+    {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        
+        if ( image == null || (int) image.getWidth() != width || (int) image.getHeight() != height )
+        {
+            image = new WritableImage(width, height);
+        }
+        
+        Raster raster = frame.getRaster();
+        
+        if ( frame.getType() == BufferedImage.TYPE_INT_ARGB && raster.getSampleModel() instanceof SinglePixelPackedSampleModel )
+        {
+            // Already in the right format, so no copy needed
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int scanlineStride = sm.getScanlineStride();
+            int base = -raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX();
+            image.getPixelWriter().setPixels(0, 0, width, height, ARGB, data, base, scanlineStride);
+            return image;
+        }
+        
+        if ( pixels.length != width * height )
+        {
+            pixels = new int[width * height];
+        }
+        
+        if ( frame.getType() == BufferedImage.TYPE_3BYTE_BGR && raster.getSampleModel() instanceof ComponentSampleModel )
+        {
+            copyBgr(raster, width, height);
+        }
+        else if ( frame.getType() == BufferedImage.TYPE_INT_RGB && raster.getSampleModel() instanceof SinglePixelPackedSampleModel )
+        {
+            copyRgb(raster, width, height);
+        }
+        else
+        {
+            frame.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        
+        image.getPixelWriter().setPixels(0, 0, width, height, ARGB, pixels, 0, width);
+        return image;
+    }
+    
+    private void copyBgr(Raster raster, int width, int height)
+    {
+        ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int pixelStride = sm.getPixelStride();
+        int scanlineStride = sm.getScanlineStride();
+        int[] bandOffsets = sm.getBandOffsets();
+        
+        // Sub images share the parent's data so allow for where they start
+        int base = -raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX() * pixelStride;
+        
+        // The sample model bands are red, green, blue whatever the order of
+        // the bytes in memory
+        int rOffset = bandOffsets[0];
+        int gOffset = bandOffsets[1];
+        int bOffset = bandOffsets[2];
+        int out = 0;
+        
+        for (int y = 0; y < height; y++)
+        {
+            int in = base + y * scanlineStride;
+            for (int x = 0; x < width; x++, in += pixelStride)
+            {
+                pixels[out++] = 0xFF000000 
+                        | (data[in + rOffset] & 0xFF) << 16 
+                        | (data[in + gOffset] & 0xFF) << 8 
+                        | (data[in + bOffset] & 0xFF);
+            }
+        }
+    }
+    
+    private void copyRgb(Raster raster, int width, int height)
+    {
+        SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int scanlineStride = sm.getScanlineStride();
+        int base = -raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX();
+        int out = 0;
+        
+        for (int y = 0; y < height; y++)
+        {
+            int in = base + y * scanlineStride;
+            for (int x = 0; x < width; x++)
+            {
+                pixels[out++] = 0xFF000000 | data[in + x];
+            }
+        }
+    }
+}
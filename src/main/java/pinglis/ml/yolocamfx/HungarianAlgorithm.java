@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.Arrays;
+
+/**
+ * Solves the assignment problem with the Hungarian (Kuhn-Munkres) algorithm,
+ * finding the pairing of rows to columns with the lowest total cost.
+ * <p>
+ * This is the O(n^3) shortest augmenting path form of the algorithm. The cost
+ * matrix does not have to be square.
+ */
+final class HungarianAlgorithm
+{
+    private HungarianAlgorithm()
+    {
+    }
+    
+    /**
+     * Assign each row to at most one column
+     * @param cost the cost of assigning each row to each column
+     * @param columns the number of columns, used when there are no rows
+     * @return the column assigned to each row, or -1 if the row is unassigned
+     */
+    static int[] solve(double[][] cost, int columns)
+    {
+        int rows = cost.length;
+        int[] result = new int[rows];
+        Arrays.fill(result, -1);
+        
+        if ( rows == 0 || columns == 0 )
+        {
+            return result;
+        }
+        
+        // Work on a square matrix, padding with zero cost dummy rows or
+        // columns that are dropped from the result
+        int n = Math.max(rows, columns);
+        double[] u = new double[n + 1];
+        double[] v = new double[n + 1];
+        int[] p = new int[n + 1];
+        int[] way = new int[n + 1];
+        double[] minv = new double[n + 1];
+        boolean[] used = new boolean[n + 1];
+        
+        for (int i = 1; i <= n; i++)
+        {
+            p[0] = i;
+            int j0 = 0;
+            Arrays.fill(minv, Double.POSITIVE_INFINITY);
+            Arrays.fill(used, false);
+            
+            do
+            {
+                used[j0] = true;
+                int i0 = p[j0];
+                double delta = Double.POSITIVE_INFINITY;
+                int j1 = 0;
+                
+                for (int j = 1; j <= n; j++)
+                {
+                    if ( !used[j] )
+                    {
+                        double c = i0 <= rows && j <= columns ? cost[i0 - 1][j - 1] : 0;
+                        double cur = c - u[i0] - v[j];
+                        if ( cur < minv[j] )
+                        {
+                            minv[j] = cur;
+                            way[j] = j0;
+                        }
+                        if ( minv[j] < delta )
+                        {
+                            delta = minv[j];
+                            j1 = j;
+                        }
+                    }
+                }
+                
+                for (int j = 0; j <= n; j++)
+                {
+                    if ( used[j] )
+                    {
+                        u[p[j]] += delta;
+                        v[j] -= delta;
+                    }
+                    else
+                    {
+                        minv[j] -= delta;
+                    }
+                }
+                j0 = j1;
+            }
+            while (p[j0] != 0);
+            
+            // Flip the augmenting path
+            do
+            {
+                int j1 = way[j0];
+                p[j0] = p[j1];
+                j0 = j1;
+            }
+            while (j0 != 0);
+        }
+        
+        for (int j = 1; j <= columns; j++)
+        {
+            if ( p[j] != 0 && p[j] <= rows )
+            {
+                result[p[j] - 1] = j - 1;
+            }
+        }
+        return result;
+    }
+}
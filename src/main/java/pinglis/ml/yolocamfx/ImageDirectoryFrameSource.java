@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.imageio.ImageIO;
+
+/**
+ * Frame source that reads every image in a directory in file name order.
+ * Files that ImageIO cannot read are skipped.
+ */
+public class ImageDirectoryFrameSource
+        extends AbstractFrameSource
+{
+    private final File directory;
+    private final boolean loop;
+    private File[] files;
+    private int index;
+    private File current;
+
+    /**
+     * @param directory the directory to read images from
+     * @param loop if true start again from the first image after the last
+     */
+    public ImageDirectoryFrameSource(File directory, boolean loop)
+    {
+        this.directory = directory;
+        this.loop = loop;
+    }
+    
+    @Override
+    public void open() throws IOException
+    {
+        Set<String> suffixes = new HashSet<>();
+        
+        for (String suffix : ImageIO.getReaderFileSuffixes())
+        {
+            suffixes.add(suffix.toLowerCase());
+        }
+        
+        files = directory.listFiles(f -> f.isFile() && suffixes.contains(suffixOf(f)));
+        
+        if ( files == null )
+        {
+            throw new IOException("Not a directory: " + directory);
+        }
+        
+        Arrays.sort(files);
+        index = 0;
+        resetSequence();
+    }
+
+    @Override
+    public Frame grab() throws IOException
+    {
+        if ( files == null || files.length == 0 )
+        {
+            return null;
+        }
+        
+        // Try at most every file once before giving up so a directory of
+        // unreadable files does not loop forever
+        for (int attempts = 0; attempts < files.length; attempts++)
+        {
+            if ( index >= files.length )
+            {
+                if ( !loop )
+                {
+                    return null;
+                }
+                index = 0;
+            }
+            
+            current = files[index++];
+            BufferedImage image = ImageIO.read(current);
+            
+            if ( image != null )
+            {
+                return newFrame(image);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * The file the last frame was read from
+     * @return File
+     */
+    public File getCurrentFile()
+    {
+        return current;
+    }
+
+    @Override
+    public void close()
+    {
+        files = null;
+    }
+    
+    private static String suffixOf(File f)
+    {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Turns images into the input tensor for the network: resized to the 
+ * network input size, in RGB channel order, NCHW layout and scaled to 
+ * between 0 and 1.
+ * <p>
+ * Preprocessors are not thread safe and may return the same array from 
+ * each call, so the result is only valid until the next call.
+ */
+public interface ImagePreprocessor
+{
+    /**
+     * The width images are scaled to
+     * @return int
+     */
+    int getWidth();
+    
+    /**
+     * The height images are scaled to
+     * @return int
+     */
+    int getHeight();
+    
+    /**
+     * Convert one image into a 1 x 3 x height x width array
+     * @param image
+     * @return INDArray
+     * @throws IOException 
+     */
+    INDArray preprocess(BufferedImage image) throws IOException;
+    
+    /**
+     * Convert several images into one n x 3 x height x width minibatch
+     * @param images
+     * @return INDArray
+     * @throws IOException 
+     */
+    INDArray preprocess(List<BufferedImage> images) throws IOException;
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * A stream of frames registered with a {@link StreamScheduler}. 
+ * <p>
+ * Only the latest frame offered is kept. If a new frame arrives before the
+ * scheduler has run the previous one then the previous one is dropped, so 
+ * a stream that falls behind skips frames rather than building a backlog.
+ * Each stream has its own threshold and duplicate filter settings and can
+ * have a {@link MotionGate} to skip frames where nothing has changed and a
+ * {@link RegionMask} to run only the parts of the frame that matter.
+ */
+public class InferenceStream
+{
+    private final String name;
+    private final int weight;
+    private final StreamScheduler scheduler;
+    private final AtomicReference<Frame> pending = new AtomicReference<>();
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile double threshold = 0.45;
+    private volatile boolean filterDuplicates = true;
+    private volatile BiConsumer<Frame, List<BoundingBox>> listener;
+    private volatile List<BoundingBox> latestDetections;
+    private volatile MotionGate motionGate;
+    private volatile RegionMask regionMask;
+    private volatile boolean settingsChanged;
+    private volatile double averageIntervalNanos;
+    private volatile long lastResultNanos;
+    
+    // Only touched by the scheduler thread
+    double credit;
+    private Frame lastFrame;
+
+    InferenceStream(StreamScheduler scheduler, String name, int weight)
+    {
+        if ( weight < 1 )
+        {
+            throw new IllegalArgumentException("Weight must be at least 1");
+        }
+        this.scheduler = scheduler;
+        this.name = name;
+        this.weight = weight;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * The share of the scheduler this stream gets relative to the other 
+     * streams when they all have frames waiting
+     * @return int
+     */
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    public double getThreshold()
+    {
+        return threshold;
+    }
+
+    public void setThreshold(double threshold)
+    {
+        this.threshold = threshold;
+        this.settingsChanged = true;
+    }
+
+    public boolean isFilterDuplicates()
+    {
+        return filterDuplicates;
+    }
+
+    public void setFilterDuplicates(boolean filterDuplicates)
+    {
+        this.filterDuplicates = filterDuplicates;
+        this.settingsChanged = true;
+    }
+
+    public MotionGate getMotionGate()
+    {
+        return motionGate;
+    }
+
+    /**
+     * Set a motion gate to skip frames that have not changed since the last
+     * frame run, or null to run every frame
+     * @param motionGate 
+     */
+    public void setMotionGate(MotionGate motionGate)
+    {
+        this.motionGate = motionGate;
+        this.settingsChanged = true;
+    }
+    
+    public RegionMask getRegionMask()
+    {
+        return regionMask;
+    }
+    
+    /**
+     * Set a mask to run only the regions of the frame that matter, or null
+     * to run the whole frame
+     * @param regionMask 
+     */
+    public void setRegionMask(RegionMask regionMask)
+    {
+        this.regionMask = regionMask;
+        this.settingsChanged = true;
+    }
+    
+    /**
+     * Set the listener called on the scheduler thread with each frame's 
+     * detections
+     * @param listener 
+     */
+    public void setListener(BiConsumer<Frame, List<BoundingBox>> listener)
+    {
+        this.listener = listener;
+    }
+    
+    /**
+     * The detections for the last frame run on this stream
+     * @return List of BoundingBox or null if no frame has been run yet
+     */
+    public List<BoundingBox> getLatestDetections()
+    {
+        return latestDetections;
+    }
+    
+    /**
+     * Offer a new frame to the stream, replacing any frame still waiting
+     * @param frame 
+     */
+    public void offer(Frame frame)
+    {
+        offered.incrementAndGet();
+        
+        if ( pending.getAndSet(frame) != null )
+        {
+            dropped.incrementAndGet();
+            DetectionMetrics.get().frameDropped();
+        }
+        scheduler.signal();
+    }
+    
+    public long getOfferedCount()
+    {
+        return offered.get();
+    }
+    
+    /**
+     * The number of frames replaced by a newer one before they were run
+     * @return long
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+    
+    public long getProcessedCount()
+    {
+        return processed.get();
+    }
+    
+    /**
+     * The number of frames not run because they were the same frame as 
+     * last time or the motion gate found nothing had changed
+     * @return long
+     */
+    public long getSkippedCount()
+    {
+        return skipped.get();
+    }
+    
+    /**
+     * The rate at which this stream's frames are being run, smoothed over 
+     * the last few frames. Falls towards zero once frames stop being run.
+     * @return frames per second
+     */
+    public double getFps()
+    {
+        double interval = averageIntervalNanos;
+        long last = lastResultNanos;
+        
+        // Waiting longer than usual for the next result means the rate has
+        // dropped at least that far
+        if ( last != 0 )
+        {
+            interval = Math.max(interval, System.nanoTime() - last);
+        }
+        return interval > 0 ? 1e9 / interval : 0;
+    }
+    
+    boolean hasPending()
+    {
+        return pending.get() != null;
+    }
+    
+    Frame takePending()
+    {
+        return pending.getAndSet(null);
+    }
+    
+    /**
+     * Decide whether a frame needs to be run. If not, the last detections 
+     * are passed on again for it. Called on the scheduler thread.
+     */
+    boolean shouldRun(Frame frame)
+    {
+        MotionGate gate = motionGate;
+        
+        if ( settingsChanged )
+        {
+            settingsChanged = false;
+            lastFrame = null;
+            
+            if ( gate != null )
+            {
+                gate.reset();
+            }
+        }
+        
+        boolean run = frame != lastFrame && (gate == null || latestDetections == null || gate.hasChanged(frame.getImage()));
+        lastFrame = frame;
+        
+        if ( !run )
+        {
+            skipped.incrementAndGet();
+            
+            BiConsumer<Frame, List<BoundingBox>> l = listener;
+            
+            if ( l != null )
+            {
+                l.accept(frame, latestDetections);
+            }
+        }
+        return run;
+    }
+    
+    /**
+     * Record the result of running a frame. Called on the scheduler thread.
+     */
+    void complete(Frame frame, List<BoundingBox> detections)
+    {
+        long now = System.nanoTime();
+        
+        if ( lastResultNanos != 0 )
+        {
+            long interval = now - lastResultNanos;
+            averageIntervalNanos = averageIntervalNanos == 0 ? interval : averageIntervalNanos * 0.9 + interval * 0.1;
+        }
+        lastResultNanos = now;
+        processed.incrementAndGet();
+        latestDetections = detections;
+        
+        BiConsumer<Frame, List<BoundingBox>> l = listener;
+        
+        if ( l != null )
+        {
+            l.accept(frame, detections);
+        }
+    }
+}
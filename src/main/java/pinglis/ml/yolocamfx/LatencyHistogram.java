@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies, cheap enough to record every frame 
+ * from several threads at once.
+ * <p>
+ * Latencies are kept in microseconds in log-linear buckets: exact below 16us
+ * and then 16 buckets for each power of two, so any percentile is within 
+ * about 6% of the true value. Latencies of 2^37us, about 38 hours, or 
+ * more are counted in the last bucket. The maximum is kept exactly.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    /**
+     * Record a latency
+     * @param nanos 
+     */
+    public void record(long nanos)
+    {
+        if ( nanos < 0 )
+        {
+            return;
+        }
+        
+        counts.incrementAndGet(bucket(nanos / 1000));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+        {
+            max = maxNanos.get();
+        }
+    }
+    
+    /**
+     * Record the time since the given start
+     * @param startNanos from System.nanoTime()
+     */
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+    
+    public long getCount()
+    {
+        return count.get();
+    }
+    
+    public double getMeanMillis()
+    {
+        long n = count.get();
+        return n > 0 ? totalNanos.get() / 1e6 / n : 0;
+    }
+    
+    public double getMaxMillis()
+    {
+        return maxNanos.get() / 1e6;
+    }
+    
+    /**
+     * The latency below which the given fraction of the recorded latencies 
+     * fall
+     * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the latency in milliseconds, 0 if nothing has been recorded
+     */
+    public double getPercentileMillis(double fraction)
+    {
+        // Counts are read without a lock so total them here rather than 
+        // trusting count to match
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        
+        if ( total == 0 )
+        {
+            return 0;
+        }
+        
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if ( seen >= rank )
+            {
+                // Report the middle of the bucket, but never more than the
+                // largest latency actually seen
+                double micros = (lowerBound(i) + lowerBound(i + 1)) / 2.0;
+                return Math.min(micros / 1000, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+    
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+    
+    private static int bucket(long micros)
+    {
+        if ( micros < SUB_BUCKETS )
+        {
+            return (int) micros;
+        }
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if ( exponent > MAX_EXPONENT )
+        {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    private static long lowerBound(int bucket)
+    {
+        if ( bucket < SUB_BUCKETS )
+        {
+            return bucket;
+        }
+        
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import javafx.scene.paint.Color;
+
+/**
+ * A model held in memory by the {@link ModelRegistry}, ready to run. It keeps
+ * the detector for the network together with the class table and the colour
+ * used to draw each class, so everything needed for a frame can be swapped in
+ * one step.
+ */
+public class LoadedModel
+{
+    private final YoloModel model;
+    private final YoloDetector detector;
+    private final String[] classes;
+    private final Color[] colors;
+    private final long sizeBytes;
+
+    /**
+     * @param model the model
+     * @param detector a detector over the model's loaded network
+     */
+    public LoadedModel(YoloModel model, YoloDetector detector)
+    {
+        this(model, detector, detector.getGraph().numParams() * Precision.of(detector.getGraph()).getBytes());
+    }
+
+    /**
+     * A model without its network, for drawing detections that were found
+     * earlier such as those replayed from a {@link DetectionLog}
+     * @param model 
+     */
+    public LoadedModel(YoloModel model)
+    {
+        this(model, null, 0);
+    }
+
+    private LoadedModel(YoloModel model, YoloDetector detector, long sizeBytes)
+    {
+        this.model = model;
+        this.detector = detector;
+        this.classes = model.getClasses();
+        this.colors = new Color[classes.length];
+        for (int i = 0; i < colors.length; i++)
+        {
+            colors[i] = colorFor(i);
+        }
+        this.sizeBytes = sizeBytes;
+    }
+
+    /**
+     * Load the pretrained network for the model
+     * @param model
+     * @return LoadedModel
+     * @throws IOException 
+     */
+    public static LoadedModel load(YoloModel model) throws IOException
+    {
+        return new LoadedModel(model, new YoloDetector(model));
+    }
+    
+    /**
+     * The colour used to draw boxes of the given class
+     * @param classIndex
+     * @return Color
+     */
+    public static Color colorFor(int classIndex)
+    {
+        return Color.hsb((classIndex + 1) * 20, 0.6, 1.0);
+    }
+    
+    public YoloModel getModel()
+    {
+        return model;
+    }
+
+    /**
+     * The detector over the network, null if the network is not loaded
+     * @return YoloDetector
+     */
+    public YoloDetector getDetector()
+    {
+        return detector;
+    }
+
+    public String getClassName(int classIndex)
+    {
+        return classes[classIndex];
+    }
+    
+    public int getClassCount()
+    {
+        return classes.length;
+    }
+    
+    /**
+     * The colour used to draw boxes of the given class. Boxes from a model 
+     * that has just been swapped out may have class indices past the end of 
+     * the table so are given the colour they would have had.
+     * @param classIndex
+     * @return Color
+     */
+    public Color getColor(int classIndex)
+    {
+        return classIndex < colors.length ? colors[classIndex] : colorFor(classIndex);
+    }
+    
+    /**
+     * The memory taken by the network's parameters
+     * @return long
+     */
+    public long getSizeBytes()
+    {
+        return sizeBytes;
+    }
+    
+    /**
+     * Run a blank image through the network so the first real frame does not
+     * pay for the lazy set up of the graph, native libraries and JIT
+     * @throws IOException 
+     */
+    public void warmUp() throws IOException
+    {
+        BufferedImage blank = new BufferedImage(YoloDetector.INPUT_WIDTH, YoloDetector.INPUT_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        detector.detect(blank, 1.0, false);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return model.getDisplayName();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.List;
+
+/**
+ * The detections of one frame read back from a {@link DetectionLog}
+ */
+public class LoggedDetections
+{
+    private final long sequence;
+    private final long timestamp;
+    private final YoloModel model;
+    private final List<BoundingBox> boxes;
+
+    public LoggedDetections(long sequence, long timestamp, YoloModel model, List<BoundingBox> boxes)
+    {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.model = model;
+        this.boxes = boxes;
+    }
+
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public YoloModel getModel()
+    {
+        return model;
+    }
+
+    public List<BoundingBox> getBoxes()
+    {
+        return boxes;
+    }
+}
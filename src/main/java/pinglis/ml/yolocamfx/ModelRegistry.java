@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads models and keeps them warm in memory so that switching between them
+ * does not mean loading the network again.
+ * <p>
+ * Models are loaded one at a time on a background thread and given a warm-up
+ * pass before they are handed out. The registry keeps the most recently used
+ * models up to a memory budget, measured as the size of their parameters, and
+ * drops the least recently used ones beyond it. The model just requested is 
+ * always kept, even if it alone is over the budget. A dropped model that is
+ * still in use carries on working, it is just loaded again the next time it 
+ * is asked for.
+ */
+public class ModelRegistry
+        implements AutoCloseable
+{
+    /**
+     * Enough for both Tiny Yolo and YOLO2
+     */
+    public static final long DEFAULT_BUDGET_BYTES = 1024L * 1024 * 1024;
+    
+    private final long budgetBytes;
+    // Access ordered, so the first entry is the least recently used
+    private final Map<YoloModel, CompletableFuture<LoadedModel>> models = new LinkedHashMap<>(4, 0.75f, true);
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r->{
+        Thread th = new Thread(r);
+        th.setDaemon(true);
+        th.setName("ModelRegistry");
+        return th;
+    });
+    
+    public ModelRegistry()
+    {
+        this(DEFAULT_BUDGET_BYTES);
+    }
+    
+    /**
+     * @param budgetBytes the most memory to hold models in
+     */
+    public ModelRegistry(long budgetBytes)
+    {
+        this.budgetBytes = budgetBytes;
+    }
+
+    public long getBudgetBytes()
+    {
+        return budgetBytes;
+    }
+    
+    /**
+     * Get a model, loading and warming it up in the background if it is not
+     * already held
+     * @param model
+     * @return a future completed with the model once it is ready
+     */
+    public synchronized CompletableFuture<LoadedModel> load(YoloModel model)
+    {
+        CompletableFuture<LoadedModel> future = models.get(model);
+        if ( future == null || future.isCompletedExceptionally() )
+        {
+            future = CompletableFuture.supplyAsync(()->{
+                try
+                {
+                    LoadedModel loaded = LoadedModel.load(model);
+                    loaded.warmUp();
+                    return loaded;
+                }
+                catch (Exception e)
+                {
+                    throw new CompletionException(e);
+                }
+            }, loader);
+            models.put(model, future);
+            future.thenRun(()->evict(model));
+        }
+        return future;
+    }
+    
+    /**
+     * Start loading a model ahead of when it is needed
+     * @param model 
+     */
+    public void preload(YoloModel model)
+    {
+        load(model);
+    }
+    
+    /**
+     * Get a model, waiting for it to load if needed
+     * @param model
+     * @return LoadedModel
+     */
+    public LoadedModel get(YoloModel model)
+    {
+        return load(model).join();
+    }
+    
+    /**
+     * The models that are loaded, most recently used last
+     * @return List of LoadedModel
+     */
+    public synchronized List<LoadedModel> getLoaded()
+    {
+        List<LoadedModel> loaded = new ArrayList<>();
+        for (CompletableFuture<LoadedModel> future : models.values())
+        {
+            if ( future.isDone() && !future.isCompletedExceptionally() )
+            {
+                loaded.add(future.join());
+            }
+        }
+        return loaded;
+    }
+    
+    /**
+     * The memory taken by the loaded models
+     * @return long
+     */
+    public synchronized long getUsedBytes()
+    {
+        long used = 0;
+        for (LoadedModel loaded : getLoaded())
+        {
+            used += loaded.getSizeBytes();
+        }
+        return used;
+    }
+    
+    /**
+     * Drop the least recently used models until the loaded models fit the
+     * budget, keeping the given one
+     * @param keep 
+     */
+    private synchronized void evict(YoloModel keep)
+    {
+        long used = getUsedBytes();
+        Iterator<Map.Entry<YoloModel, CompletableFuture<LoadedModel>>> it = models.entrySet().iterator();
+        while (used > budgetBytes && it.hasNext())
+        {
+            Map.Entry<YoloModel, CompletableFuture<LoadedModel>> entry = it.next();
+            CompletableFuture<LoadedModel> future = entry.getValue();
+            if ( entry.getKey() != keep && future.isDone() && !future.isCompletedExceptionally() )
+            {
+                used -= future.join().getSizeBytes();
+                it.remove();
+            }
+        }
+    }
+    
+    @Override
+    public void close()
+    {
+        loader.shutdownNow();
+        synchronized (this)
+        {
+            models.clear();
+        }
+    }
+}
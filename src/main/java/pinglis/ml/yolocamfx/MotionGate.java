@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A cheap test of whether a frame has changed enough to be worth running 
+ * through the network.
+ * <p>
+ * Each frame is reduced to a small grid of brightness samples and compared 
+ * with the grid of the last frame that passed the gate. A cell counts as 
+ * changed if its brightness moved by more than the pixel delta and the 
+ * frame counts as changed if more than the threshold fraction of the cells 
+ * changed. Comparing against the last frame that passed, rather than the 
+ * previous frame, means slow changes still add up and open the gate.
+ * <p>
+ * A gate is not thread safe and should only be used by one inference thread.
+ */
+public class MotionGate
+{
+    private static final int GRID_W = 32;
+    private static final int GRID_H = 24;
+    
+    private final int[] reference = new int[GRID_W * GRID_H];
+    private final int[] current = new int[GRID_W * GRID_H];
+    private volatile double threshold;
+    private volatile int pixelDelta;
+    private boolean hasReference = false;
+
+    /**
+     * @param threshold the fraction of the frame, between 0 and 1, that must 
+     * change to open the gate. Smaller values are more sensitive.
+     * @param pixelDelta the change in brightness, between 0 and 255, for a
+     * cell to count as changed
+     */
+    public MotionGate(double threshold, int pixelDelta)
+    {
+        this.threshold = threshold;
+        this.pixelDelta = pixelDelta;
+    }
+
+    public double getThreshold()
+    {
+        return threshold;
+    }
+
+    public void setThreshold(double threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    public int getPixelDelta()
+    {
+        return pixelDelta;
+    }
+
+    public void setPixelDelta(int pixelDelta)
+    {
+        this.pixelDelta = pixelDelta;
+    }
+    
+    /**
+     * Forget the reference frame so the next frame always passes
+     */
+    public void reset()
+    {
+        hasReference = false;
+    }
+    
+    /**
+     * Test whether the image has changed since the last image that passed.
+     * If it has it becomes the new reference.
+     * @param image
+     * @return true if the image should be run through the network
+     */
+    public boolean hasChanged(BufferedImage image)
+    {
+        sample(image, current);
+        
+        if ( hasReference )
+        {
+            int delta = pixelDelta;
+            int changed = 0;
+            
+            for (int i = 0; i < current.length; i++)
+            {
+                if ( Math.abs(current[i] - reference[i]) > delta )
+                {
+                    changed++;
+                }
+            }
+            
+            if ( changed <= threshold * current.length )
+            {
+                return false;
+            }
+        }
+        
+        System.arraycopy(current, 0, reference, 0, current.length);
+        hasReference = true;
+        return true;
+    }
+    
+    /**
+     * Reduce the image to a grid of brightness values by averaging a few
+     * pixels from each cell
+     */
+    private static void sample(BufferedImage image, int[] grid)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        
+        for (int gy = 0; gy < GRID_H; gy++)
+        {
+            for (int gx = 0; gx < GRID_W; gx++)
+            {
+                int sum = 0;
+                
+                // 2x2 samples from the middle of each cell
+                for (int sy = 1; sy <= 3; sy += 2)
+                {
+                    for (int sx = 1; sx <= 3; sx += 2)
+                    {
+                        int x = (gx * 4 + sx) * w / (GRID_W * 4);
+                        int y = (gy * 4 + sy) * h / (GRID_H * 4);
+                        int rgb = image.getRGB(x, y);
+                        
+                        // Integer approximation of luma
+                        sum += (((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+                    }
+                }
+                grid[gy * GRID_W + gx] = sum >> 2;
+            }
+        }
+    }
+}
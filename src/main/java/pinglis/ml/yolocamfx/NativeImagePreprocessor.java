@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGR2RGB;
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.datavec.image.transform.ColorConversionTransform;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.factory.Nd4j;
+import pinglis.ml.yolocamfx.DetectionMetrics.Stage;
+
+/**
+ * The original preprocessing path using the datavec image loader, an
+ * OpenCV colour conversion and the ND4J image scaler. Handles any image 
+ * type but allocates several OpenCV mats and a new array for every image.
+ */
+public class NativeImagePreprocessor
+        implements ImagePreprocessor
+{
+    private final int width;
+    private final int height;
+    private final Java2DNativeImageLoader bufferLoader;
+    private final ImagePreProcessingScaler scaler = new ImagePreProcessingScaler(0, 1);
+    private final DetectionMetrics metrics = DetectionMetrics.get();
+
+    public NativeImagePreprocessor(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.bufferLoader = new Java2DNativeImageLoader(height, width, 3, new ColorConversionTransform(COLOR_BGR2RGB));
+    }
+    
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    @Override
+    public INDArray preprocess(BufferedImage image) throws IOException
+    {
+        long start = System.nanoTime();
+        INDArray img = bufferLoader.asMatrix(image);
+        metrics.record(Stage.IMAGE_LOAD, start);
+        
+        start = System.nanoTime();
+        scaler.transform(img);
+        metrics.record(Stage.SCALE, start);
+        return img;
+    }
+
+    @Override
+    public INDArray preprocess(List<BufferedImage> images) throws IOException
+    {
+        if ( images.size() == 1 )
+        {
+            return preprocess(images.get(0));
+        }
+        
+        INDArray[] inputs = new INDArray[images.size()];
+        
+        for (int i = 0; i < inputs.length; i++)
+        {
+            inputs[i] = preprocess(images.get(i));
+        }
+        return Nd4j.concat(0, inputs);
+    }
+}
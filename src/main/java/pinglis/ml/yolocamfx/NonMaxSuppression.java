@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+/**
+ * Removes duplicate detections of the same object. 
+ * <p>
+ * The candidates are sorted by score once and then each surviving box, 
+ * from the highest score down, suppresses the lower scoring boxes that 
+ * overlap it by more than the IoU threshold. By default only boxes of the
+ * same class suppress each other.
+ * <p>
+ * In Soft-NMS mode overlapping boxes are not removed outright but have 
+ * their scores decayed by a gaussian of their overlap, and are only 
+ * dropped once their score falls below the minimum score. This keeps 
+ * genuinely separate objects that happen to overlap.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class NonMaxSuppression
+{
+    private final float iouThreshold;
+    private final boolean perClass;
+    private final boolean soft;
+    private final float sigma;
+
+    /**
+     * Hard per class non-max suppression at an IoU of 0.5
+     */
+    public NonMaxSuppression()
+    {
+        this(0.5f, true, false, 0.5f);
+    }
+    
+    /**
+     * @param iouThreshold overlap above which a lower scoring box is 
+     * suppressed, in hard mode
+     * @param perClass if true only boxes of the same class suppress each other
+     * @param soft if true use Soft-NMS
+     * @param sigma the width of the gaussian used to decay scores in Soft-NMS
+     */
+    public NonMaxSuppression(float iouThreshold, boolean perClass, boolean soft, float sigma)
+    {
+        this.iouThreshold = iouThreshold;
+        this.perClass = perClass;
+        this.soft = soft;
+        this.sigma = sigma;
+    }
+
+    public float getIouThreshold()
+    {
+        return iouThreshold;
+    }
+
+    public boolean isPerClass()
+    {
+        return perClass;
+    }
+
+    public boolean isSoft()
+    {
+        return soft;
+    }
+
+    public float getSigma()
+    {
+        return sigma;
+    }
+    
+    /**
+     * Suppress duplicates in place. Afterwards the candidates hold only the
+     * survivors, sorted by descending score.
+     * 
+     * @param candidates
+     * @param minScore in Soft-NMS mode, boxes whose score decays below this 
+     * are dropped
+     */
+    public void apply(CandidateBoxes candidates, float minScore)
+    {
+        if ( candidates.size() < 2 )
+        {
+            return;
+        }
+        
+        if ( soft )
+        {
+            applySoft(candidates, minScore);
+        }
+        else
+        {
+            applyHard(candidates);
+        }
+    }
+    
+    private void applyHard(CandidateBoxes c)
+    {
+        int n = c.size();
+        
+        c.sortByScore();
+        
+        // Suppressed boxes are marked with a negative score
+        for (int i = 0; i < n; i++)
+        {
+            if ( c.getScore(i) < 0 )
+            {
+                continue;
+            }
+            
+            int cls = c.getClassIndex(i);
+            
+            for (int j = i + 1; j < n; j++)
+            {
+                if ( c.getScore(j) >= 0 && (!perClass || c.getClassIndex(j) == cls) && c.iou(i, j) > iouThreshold )
+                {
+                    c.setScore(j, -1);
+                }
+            }
+        }
+        
+        int kept = 0;
+        
+        for (int i = 0; i < n; i++)
+        {
+            if ( c.getScore(i) >= 0 )
+            {
+                if ( i != kept )
+                {
+                    c.move(i, kept);
+                }
+                kept++;
+            }
+        }
+        c.truncate(kept);
+    }
+    
+    private void applySoft(CandidateBoxes c, float minScore)
+    {
+        int n = c.size();
+        
+        for (int i = 0; i < n; i++)
+        {
+            // Scores change as we go so find the best remaining each time
+            int best = i;
+            
+            for (int j = i + 1; j < n; j++)
+            {
+                if ( c.getScore(j) > c.getScore(best) )
+                {
+                    best = j;
+                }
+            }
+            
+            if ( c.getScore(best) < minScore )
+            {
+                c.truncate(i);
+                return;
+            }
+            
+            c.swap(i, best);
+            int cls = c.getClassIndex(i);
+            
+            for (int j = i + 1; j < n; j++)
+            {
+                if ( !perClass || c.getClassIndex(j) == cls )
+                {
+                    float iou = c.iou(i, j);
+                    
+                    if ( iou > 0 )
+                    {
+                        c.setScore(j, c.getScore(j) * (float) Math.exp(-(iou * iou) / sigma));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Follows detected objects from one detection run to the next, giving each a
+ * persistent id and predicting where it is between runs.
+ * <p>
+ * Each track keeps a constant velocity Kalman filter over the box centre and
+ * size. When new detections arrive the tracks are predicted forward to the
+ * frame time and matched to the detections of the same class by IoU, using
+ * the Hungarian algorithm to find the best overall pairing. Unmatched
+ * detections start new tracks and tracks that go unmatched for too many runs
+ * are dropped.
+ * <p>
+ * Between runs {@link #predict(long)} extrapolates the tracks to the time of
+ * the frame being shown, which lets detection run on only some of the frames
+ * while the boxes still follow the objects. The tracker is thread safe so the
+ * detection thread can update it while the UI predicts from it.
+ */
+public class ObjectTracker
+{
+    private final List<Track> tracks = new ArrayList<>();
+    private double minIou = 0.2;
+    private int maxMisses = 3;
+    private int minHits = 1;
+    private long maxPredictMillis = 1000;
+    private int nextId = 1;
+    private long lastTimestamp = -1;
+    
+    /**
+     * The lowest IoU between a predicted track and a detection for them to be
+     * matched
+     * @param minIou 
+     */
+    public synchronized void setMinIou(double minIou)
+    {
+        this.minIou = minIou;
+    }
+    
+    public synchronized double getMinIou()
+    {
+        return minIou;
+    }
+    
+    /**
+     * The number of detection runs in a row a track can go unmatched before
+     * it is dropped
+     * @param maxMisses 
+     */
+    public synchronized void setMaxMisses(int maxMisses)
+    {
+        this.maxMisses = maxMisses;
+    }
+    
+    public synchronized int getMaxMisses()
+    {
+        return maxMisses;
+    }
+    
+    /**
+     * The number of times a track must be matched before it is reported
+     * @param minHits 
+     */
+    public synchronized void setMinHits(int minHits)
+    {
+        this.minHits = minHits;
+    }
+    
+    public synchronized int getMinHits()
+    {
+        return minHits;
+    }
+    
+    /**
+     * The furthest a track is extrapolated past its last detection
+     * @param maxPredictMillis 
+     */
+    public synchronized void setMaxPredictMillis(long maxPredictMillis)
+    {
+        this.maxPredictMillis = maxPredictMillis;
+    }
+    
+    public synchronized long getMaxPredictMillis()
+    {
+        return maxPredictMillis;
+    }
+    
+    /**
+     * Drop all tracks, e.g. when the model or source changes
+     */
+    public synchronized void reset()
+    {
+        tracks.clear();
+        lastTimestamp = -1;
+    }
+    
+    /**
+     * The number of live tracks
+     * @return int
+     */
+    public synchronized int size()
+    {
+        return tracks.size();
+    }
+    
+    /**
+     * Update the tracks with the detections from a frame
+     * @param detections the detections
+     * @param timestamp the time the frame was captured, in milliseconds
+     * @return the tracked boxes at the frame time
+     */
+    public synchronized List<TrackedBox> update(List<BoundingBox> detections, long timestamp)
+    {
+        // Frames from a looping source can go back in time, start again
+        if ( timestamp < lastTimestamp )
+        {
+            tracks.clear();
+        }
+        lastTimestamp = timestamp;
+        
+        for (Track track : tracks)
+        {
+            track.predict(timestamp);
+        }
+        
+        // Cost is 1 - IoU, with pairs of different classes or too little
+        // overlap priced out so they are never worth matching
+        int rows = tracks.size();
+        int columns = detections.size();
+        double[][] cost = new double[rows][columns];
+        for (int i = 0; i < rows; i++)
+        {
+            Track track = tracks.get(i);
+            for (int j = 0; j < columns; j++)
+            {
+                BoundingBox box = detections.get(j);
+                double iou = box.getClassIndex() == track.classIndex ? track.iou(box) : 0;
+                cost[i][j] = iou >= minIou ? 1 - iou : 2;
+            }
+        }
+        
+        int[] assignment = HungarianAlgorithm.solve(cost, columns);
+        boolean[] matched = new boolean[columns];
+        for (int i = 0; i < rows; i++)
+        {
+            int j = assignment[i];
+            Track track = tracks.get(i);
+            if ( j >= 0 && cost[i][j] <= 1 )
+            {
+                track.correct(detections.get(j));
+                matched[j] = true;
+            }
+            else
+            {
+                track.misses++;
+            }
+        }
+        
+        Iterator<Track> it = tracks.iterator();
+        while (it.hasNext())
+        {
+            if ( it.next().misses > maxMisses )
+            {
+                it.remove();
+            }
+        }
+        
+        for (int j = 0; j < columns; j++)
+        {
+            if ( !matched[j] )
+            {
+                tracks.add(new Track(nextId++, detections.get(j), timestamp));
+            }
+        }
+        
+        return predict(timestamp);
+    }
+    
+    /**
+     * Predict where the tracked objects are at the given time without
+     * changing the tracks
+     * @param timestamp the time the frame was captured, in milliseconds
+     * @return the tracked boxes
+     */
+    public synchronized List<TrackedBox> predict(long timestamp)
+    {
+        List<TrackedBox> boxes = new ArrayList<>(tracks.size());
+        for (Track track : tracks)
+        {
+            if ( track.hits >= minHits )
+            {
+                boxes.add(track.toBox(timestamp, maxPredictMillis));
+            }
+        }
+        return boxes;
+    }
+    
+    /**
+     * A tracked object. The state is the centre and size of the box, each
+     * with its own velocity, in image fractions per second.
+     */
+    private static class Track
+    {
+        // Process noise, how far the velocity may wander per second
+        private static final double POSITION_NOISE = 0.05;
+        private static final double SIZE_NOISE = 0.02;
+        // Measurement noise of the detector's boxes
+        private static final double MEASUREMENT_NOISE = 0.01;
+        
+        private final int id;
+        private final int classIndex;
+        private String label;
+        private double confidence;
+        private final double[] x = new double[4];
+        private final double[] v = new double[4];
+        // Covariance of each coordinate, [pos,pos], [pos,vel], [vel,vel]
+        private final double[] ppp = new double[4];
+        private final double[] ppv = new double[4];
+        private final double[] pvv = new double[4];
+        private long timestamp;
+        private int hits = 1;
+        private int misses;
+        
+        Track(int id, BoundingBox box, long timestamp)
+        {
+            this.id = id;
+            this.classIndex = box.getClassIndex();
+            this.label = box.getLabel();
+            this.confidence = box.getConfidence();
+            this.timestamp = timestamp;
+            measure(box, x);
+            for (int k = 0; k < 4; k++)
+            {
+                ppp[k] = MEASUREMENT_NOISE * MEASUREMENT_NOISE;
+                pvv[k] = 1;
+            }
+        }
+        
+        /**
+         * Move the state forward to the given time
+         */
+        void predict(long time)
+        {
+            double dt = Math.max(0, time - timestamp) / 1000.0;
+            timestamp = Math.max(timestamp, time);
+            for (int k = 0; k < 4; k++)
+            {
+                double q = k < 2 ? POSITION_NOISE : SIZE_NOISE;
+                q *= q;
+                x[k] += v[k] * dt;
+                // P = F P F' + Q for F = [1 dt; 0 1]
+                ppp[k] += dt * (2 * ppv[k] + dt * pvv[k]) + q * dt * dt * dt / 3;
+                ppv[k] += dt * pvv[k] + q * dt * dt / 2;
+                pvv[k] += q * dt;
+            }
+            x[2] = Math.max(x[2], 0);
+            x[3] = Math.max(x[3], 0);
+        }
+        
+        /**
+         * Correct the state with a matched detection
+         */
+        void correct(BoundingBox box)
+        {
+            double[] z = new double[4];
+            measure(box, z);
+            double r = MEASUREMENT_NOISE * MEASUREMENT_NOISE;
+            for (int k = 0; k < 4; k++)
+            {
+                double s = ppp[k] + r;
+                double kp = ppp[k] / s;
+                double kv = ppv[k] / s;
+                double y = z[k] - x[k];
+                x[k] += kp * y;
+                v[k] += kv * y;
+                double p0 = ppp[k];
+                double p1 = ppv[k];
+                ppp[k] = (1 - kp) * p0;
+                ppv[k] = (1 - kp) * p1;
+                pvv[k] -= kv * p1;
+            }
+            label = box.getLabel();
+            confidence = box.getConfidence();
+            hits++;
+            misses = 0;
+        }
+        
+        double iou(BoundingBox box)
+        {
+            double ix1 = Math.max(x[0] - x[2] / 2, box.getX1());
+            double iy1 = Math.max(x[1] - x[3] / 2, box.getY1());
+            double ix2 = Math.min(x[0] + x[2] / 2, box.getX2());
+            double iy2 = Math.min(x[1] + x[3] / 2, box.getY2());
+            double intersection = Math.max(0, ix2 - ix1) * Math.max(0, iy2 - iy1);
+            double union = x[2] * x[3] + (box.getX2() - box.getX1()) * (box.getY2() - box.getY1()) - intersection;
+            return union > 0 ? intersection / union : 0;
+        }
+        
+        TrackedBox toBox(long time, long maxPredictMillis)
+        {
+            double dt = Math.min(Math.max(0, time - timestamp), maxPredictMillis) / 1000.0;
+            double cx = x[0] + v[0] * dt;
+            double cy = x[1] + v[1] * dt;
+            double w = Math.max(0, x[2] + v[2] * dt) / 2;
+            double h = Math.max(0, x[3] + v[3] * dt) / 2;
+            return new TrackedBox(id, classIndex, label, confidence, cx - w, cy - h, cx + w, cy + h);
+        }
+        
+        private static void measure(BoundingBox box, double[] z)
+        {
+            z[0] = (box.getX1() + box.getX2()) / 2;
+            z[1] = (box.getY1() + box.getY2()) / 2;
+            z[2] = box.getX2() - box.getX1();
+            z[3] = box.getY2() - box.getY1();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextAlignment;
+
+/**
+ * Draws the bounding boxes, and optionally the metrics, over the video.
+ * <p>
+ * Called on every pulse but only redraws when something has changed: a new
+ * generation of detections, a different model, a resize of the canvas or, 
+ * when shown, the metrics being due a refresh. A redraw clears just the 
+ * areas drawn last time rather than the whole canvas. The label text and its
+ * size are cached so the same box is not formatted and measured again.
+ * <p>
+ * Only to be used on the FX thread.
+ */
+public class OverlayRenderer
+{
+    private static final long STATS_INTERVAL_NANOS = 250_000_000L;
+    private static final int MAX_CACHED_LABELS = 1024;
+    private static final int MAX_DIRTY_REGIONS = 64;
+    private static final double STATS_LINE_HEIGHT = 15;
+    private static final Font STATS_FONT = Font.font("Monospaced", 12);
+    
+    private final Canvas canvas;
+    private final Map<Long, Label> labels = new HashMap<>();
+    private final Text measure = new Text();
+    
+    // Regions drawn last time as x, y, width, height
+    private double[] regions = new double[4 * 16];
+    private int regionCount;
+    
+    private Object lastGeneration;
+    private LoadedModel lastModel;
+    private double lastWidth = -1;
+    private double lastHeight = -1;
+    private DetectionMetrics metrics;
+    private long lastStatsNanos;
+    private boolean statsShown;
+    private long redraws;
+
+    public OverlayRenderer(Canvas canvas)
+    {
+        this.canvas = canvas;
+        this.measure.setFont(canvas.getGraphicsContext2D().getFont());
+    }
+    
+    /**
+     * Show the metrics in the top left corner, or hide them if null
+     * @param metrics 
+     */
+    public void setMetrics(DetectionMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * The number of times the overlay has actually been redrawn
+     * @return long
+     */
+    public long getRedraws()
+    {
+        return redraws;
+    }
+    
+    /**
+     * Whether {@link #draw} would redraw for the given generation. Use to 
+     * avoid working out the boxes when nothing has changed.
+     * @param generation identifies the set of boxes, compared by identity
+     * @param model the model the boxes came from
+     * @return boolean
+     */
+    public boolean needsRedraw(Object generation, LoadedModel model)
+    {
+        return generation != lastGeneration 
+                || model != lastModel
+                || canvas.getWidth() != lastWidth 
+                || canvas.getHeight() != lastHeight
+                || (metrics != null && System.nanoTime() - lastStatsNanos >= STATS_INTERVAL_NANOS)
+                || (metrics == null && statsShown);
+    }
+    
+    /**
+     * Draw the boxes if anything has changed since the last draw
+     * @param generation identifies the set of boxes, compared by identity
+     * @param boxes the boxes, may be null
+     * @param model the model the boxes came from, nothing is drawn if null
+     * @return true if the overlay was redrawn
+     */
+    public boolean draw(Object generation, List<? extends BoundingBox> boxes, LoadedModel model)
+    {
+        if ( !needsRedraw(generation, model) )
+        {
+            return false;
+        }
+        
+        GraphicsContext ctx = begin(model);
+        if ( boxes != null && model != null )
+        {
+            for (BoundingBox box : boxes)
+            {
+                int trackId = box instanceof TrackedBox ? ((TrackedBox) box).getTrackId() : 0;
+                drawBox(ctx, model, box.getClassIndex(), trackId, box.getLabel(), box.getConfidence(), 
+                        box.getX1(), box.getY1(), box.getX2(), box.getY2());
+            }
+        }
+        finish(ctx, generation, model);
+        return true;
+    }
+    
+    /**
+     * Draw the detections if anything has changed since the last draw, 
+     * looking up their labels and colours by class
+     * @param detections the detections, may be null
+     * @param model the model the detections came from, nothing is drawn if
+     * null
+     * @return true if the overlay was redrawn
+     */
+    public boolean draw(DetectionFrame detections, LoadedModel model)
+    {
+        if ( !needsRedraw(detections, model) )
+        {
+            return false;
+        }
+        
+        GraphicsContext ctx = begin(model);
+        if ( detections != null && model != null )
+        {
+            for (int i = 0; i < detections.size(); i++)
+            {
+                drawBox(ctx, model, detections.getClassIndex(i), 0, detections.getLabel(i), detections.getScore(i) * 100.0, 
+                        detections.getX1(i), detections.getY1(i), detections.getX2(i), detections.getY2(i));
+            }
+        }
+        finish(ctx, detections, model);
+        return true;
+    }
+    
+    /**
+     * Clear what was drawn before, all of it if the canvas changed size or
+     * there is too much to be worth doing piece by piece
+     */
+    private GraphicsContext begin(LoadedModel model)
+    {
+        GraphicsContext ctx = canvas.getGraphicsContext2D();
+        double w = canvas.getWidth();
+        double h = canvas.getHeight();
+        
+        if ( w != lastWidth || h != lastHeight || regionCount > MAX_DIRTY_REGIONS )
+        {
+            ctx.clearRect(0, 0, w, h);
+        }
+        else
+        {
+            for (int i = 0; i < regionCount; i++)
+            {
+                ctx.clearRect(regions[4 * i], regions[4 * i + 1], regions[4 * i + 2], regions[4 * i + 3]);
+            }
+        }
+        regionCount = 0;
+        
+        if ( model != lastModel )
+        {
+            labels.clear();
+        }
+        
+        ctx.setFill(Color.WHITE);
+        ctx.setTextAlign(TextAlignment.LEFT);
+        return ctx;
+    }
+    
+    private void finish(GraphicsContext ctx, Object generation, LoadedModel model)
+    {
+        statsShown = metrics != null;
+        if ( statsShown )
+        {
+            drawStats(ctx);
+            lastStatsNanos = System.nanoTime();
+        }
+        
+        lastGeneration = generation;
+        lastModel = model;
+        lastWidth = canvas.getWidth();
+        lastHeight = canvas.getHeight();
+        redraws++;
+    }
+    
+    /**
+     * Draw one box and its label
+     */
+    private void drawBox(GraphicsContext ctx, LoadedModel model, int classIndex, int trackId, String name, 
+            double confidence, double left, double top, double right, double bottom)
+    {
+        double w = canvas.getWidth();
+        double h = canvas.getHeight();
+        int x1 = (int)Math.max(0, Math.round(left * w));
+        int y1 = (int)Math.max(15, Math.round(top * h));
+        int x2 = (int)Math.min(w-1, Math.round(right * w));
+        int y2 = (int)Math.min(h-1, Math.round(bottom * h));
+
+        int rectW = x2 - x1;
+        int rectH = y2 - y1;
+
+        int tx = x1;
+        int ty = y1 - 2;
+
+        ctx.setLineWidth(2);
+        ctx.setStroke(model.getColor(classIndex));
+        ctx.strokeRect(x1, y1, rectW, rectH);
+
+        Label label = label(classIndex, trackId, name, confidence);
+        ctx.setLineWidth(1);
+        ctx.strokeText(label.text, tx, ty);
+        ctx.fillText(label.text, tx, ty);
+
+        // The box and its label, with room for the line widths
+        double labelTop = ty - label.height - 1;
+        addRegion(x1 - 2, labelTop, Math.max(x2, tx + label.width) + 2 - (x1 - 2), y2 + 2 - labelTop);
+    }
+    
+    private void drawStats(GraphicsContext ctx)
+    {
+        List<StageStatistics> stages = metrics.getStages();
+        double height = STATS_LINE_HEIGHT * (stages.size() + 2) + 10;
+        
+        ctx.save();
+        ctx.setFill(Color.color(0, 0, 0, 0.6));
+        ctx.fillRect(5, 5, 420, height);
+        ctx.setFill(Color.WHITE);
+        ctx.setFont(STATS_FONT);
+        ctx.setTextAlign(TextAlignment.LEFT);
+        
+        double y = 5 + STATS_LINE_HEIGHT;
+        ctx.fillText(String.format("capture %.1f fps  inference %.1f fps  render %.1f fps", 
+                metrics.getCaptureFps(), metrics.getInferenceFps(), metrics.getRenderFps()), 10, y);
+        y += STATS_LINE_HEIGHT;
+        ctx.fillText(String.format("dropped %d frames", metrics.getDroppedFrames()), 10, y);
+        
+        for (StageStatistics stage : stages)
+        {
+            y += STATS_LINE_HEIGHT;
+            ctx.fillText(stage.toString(), 10, y);
+        }
+        ctx.restore();
+        
+        addRegion(5, 5, 420, height);
+    }
+    
+    /**
+     * The label for a box from the cache, keyed on its class, confidence to 
+     * two decimal places and track id
+     */
+    private Label label(int classIndex, int trackId, String name, double confidence)
+    {
+        long hundredths = Math.round(confidence * 100);
+        long key = ((long) trackId << 32) | ((long) classIndex << 16) | hundredths;
+        
+        Label label = labels.get(key);
+        if ( label == null )
+        {
+            if ( labels.size() >= MAX_CACHED_LABELS )
+            {
+                labels.clear();
+            }
+            
+            String text = trackId > 0
+                    ? String.format("#%d %s [%.2f%%]", trackId, name, hundredths / 100.0)
+                    : String.format("%s [%.2f%%]", name, hundredths / 100.0);
+            measure.setText(text);
+            label = new Label(text, measure.getLayoutBounds().getWidth(), measure.getLayoutBounds().getHeight());
+            labels.put(key, label);
+        }
+        return label;
+    }
+    
+    private void addRegion(double x, double y, double width, double height)
+    {
+        if ( 4 * (regionCount + 1) > regions.length )
+        {
+            regions = Arrays.copyOf(regions, regions.length * 2);
+        }
+        regions[4 * regionCount] = x;
+        regions[4 * regionCount + 1] = y;
+        regions[4 * regionCount + 2] = width;
+        regions[4 * regionCount + 3] = height;
+        regionCount++;
+    }
+    
+    /**
+     * A formatted label and its size
+     */
+    private static class Label
+    {
+        private final String text;
+        private final double width;
+        private final double height;
+
+        Label(String text, double width, double height)
+        {
+            this.text = text;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.graph.GraphVertex;
+import org.deeplearning4j.nn.conf.graph.LayerVertex;
+import org.deeplearning4j.nn.conf.layers.objdetect.Yolo2OutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * The floating point precision the networks run in.
+ * <p>
+ * ND4J 1.0.0-beta2 has a single data type for the whole process, so the 
+ * precision must be chosen with {@link #activate(Precision)} before any 
+ * model is loaded and every network then runs in it. Half precision halves
+ * the memory taken by the parameters and can be faster on GPUs, but the CPU
+ * backend does not support it, in which case the precision stays as it was
+ * and the fall back is logged.
+ */
+public enum Precision
+{
+    HALF(DataBuffer.Type.HALF),
+    FLOAT(DataBuffer.Type.FLOAT),
+    DOUBLE(DataBuffer.Type.DOUBLE);
+    
+    private final DataBuffer.Type dataType;
+
+    private Precision(DataBuffer.Type dataType)
+    {
+        this.dataType = dataType;
+    }
+
+    public DataBuffer.Type getDataType()
+    {
+        return dataType;
+    }
+    
+    /**
+     * The size of one parameter
+     * @return bytes
+     */
+    public int getBytes()
+    {
+        return Nd4j.sizeOfDataType(dataType);
+    }
+    
+    /**
+     * The precision the process is running in
+     * @return Precision
+     */
+    public static Precision current()
+    {
+        return of(Nd4j.dataType());
+    }
+    
+    /**
+     * The precision of a network's parameters
+     * @param graph
+     * @return Precision
+     */
+    public static Precision of(ComputationGraph graph)
+    {
+        return of(graph.params().data().dataType());
+    }
+    
+    private static Precision of(DataBuffer.Type dataType)
+    {
+        for (Precision precision : values())
+        {
+            if ( precision.dataType == dataType )
+            {
+                return precision;
+            }
+        }
+        throw new IllegalArgumentException("No precision for " + dataType);
+    }
+    
+    /**
+     * Find a precision by name, accepting the enum name in any case or 
+     * "fp16", "fp32" and "fp64"
+     * @param name
+     * @return Precision
+     */
+    public static Precision forName(String name)
+    {
+        switch (name.toLowerCase())
+        {
+            case "fp16":
+                return HALF;
+            case "fp32":
+                return FLOAT;
+            case "fp64":
+                return DOUBLE;
+            default:
+                return valueOf(name.toUpperCase());
+        }
+    }
+    
+    /**
+     * Test whether the backend can create arrays in this precision. This 
+     * briefly switches the process's data type so must not be called while
+     * networks are running. Serialised with {@link #activate(Precision)} 
+     * as the data type is shared by the whole process.
+     * @return boolean
+     */
+    public boolean isSupported()
+    {
+        synchronized (Precision.class)
+        {
+            DataBuffer.Type previous = Nd4j.dataType();
+
+            try
+            {
+                Nd4j.setDataType(dataType);
+                Nd4j.create(1).addi(1);
+                return true;
+            }
+            catch (RuntimeException e)
+            {
+                return false;
+            }
+            finally
+            {
+                Nd4j.setDataType(previous);
+            }
+        }
+    }
+    
+    /**
+     * Run the process in the requested precision if the backend supports 
+     * it, otherwise stay in the current precision and log why
+     * @param requested
+     * @return the precision now in use
+     */
+    public static synchronized Precision activate(Precision requested)
+    {
+        Precision current = current();
+        
+        if ( requested == current )
+        {
+            return current;
+        }
+        
+        if ( !requested.isSupported() )
+        {
+            System.err.printf("Precision %s is not supported by the %s backend, running in %s%n", 
+                    requested, Nd4j.getBackend().getClass().getSimpleName(), current);
+            return current;
+        }
+        
+        Nd4j.setDataType(requested.dataType);
+        return requested;
+    }
+    
+    /**
+     * Copy a network into this precision, or return it as it is if it is 
+     * already in it. The process must be running in this precision, see
+     * {@link #activate(Precision)}.
+     * @param graph
+     * @return ComputationGraph
+     */
+    public ComputationGraph convert(ComputationGraph graph)
+    {
+        if ( of(graph) == this )
+        {
+            return graph;
+        }
+        if ( current() != this )
+        {
+            throw new IllegalStateException("Cannot convert to " + this + " while running in " + current());
+        }
+        
+        // The anchor boxes of the output layer are arrays held in the 
+        // configuration and must match the parameters
+        ComputationGraphConfiguration conf = graph.getConfiguration().clone();
+        for (GraphVertex vertex : conf.getVertices().values())
+        {
+            if ( vertex instanceof LayerVertex 
+                    && ((LayerVertex) vertex).getLayerConf().getLayer() instanceof Yolo2OutputLayer )
+            {
+                Yolo2OutputLayer output = (Yolo2OutputLayer) ((LayerVertex) vertex).getLayerConf().getLayer();
+                output.setBoundingBoxes(convert(output.getBoundingBoxes()));
+            }
+        }
+        
+        ComputationGraph converted = new ComputationGraph(conf);
+        converted.init(convert(graph.params()), false);
+        return converted;
+    }
+    
+    private INDArray convert(INDArray array)
+    {
+        switch (this)
+        {
+            case HALF:
+                return array.convertToHalfs();
+            case FLOAT:
+                return array.convertToFloats();
+            default:
+                return array.convertToDoubles();
+        }
+    }
+}
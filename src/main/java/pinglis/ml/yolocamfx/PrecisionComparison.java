@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+
+/**
+ * Runs a fixed set of frames through a model in two precisions and reports
+ * the speed, parameter memory and how well the detections agree, to decide
+ * whether a reduced {@link Precision} is safe for a deployment.
+ * <p>
+ * Usage:
+ * <pre>
+ * java pinglis.ml.yolocamfx.PrecisionComparison [options]
+ * 
+ *   --source=&lt;spec&gt;      frame source, see {@link FrameSources} (default synthetic:640x480)
+ *   --frames=&lt;n&gt;         frames to compare (default 20)
+ *   --model=tiny|yolo2    model to run (default tiny)
+ *   --baseline=&lt;p&gt;       reference precision (default float)
+ *   --candidate=&lt;p&gt;      precision to test (default double)
+ *   --threshold=&lt;0..1&gt;   confidence threshold (default 0.45)
+ *   --match-iou=&lt;0..1&gt;   overlap at which two boxes of the same class are
+ *                         the same detection (default 0.5)
+ * </pre>
+ * The precisions are half, float or double. Half needs a backend that 
+ * supports it, such as CUDA, as the CPU backend does not. The baseline is 
+ * run first, then the process is switched to the candidate and the same 
+ * network converted to it. A candidate the backend does not support is 
+ * reported and nothing is compared.
+ */
+public class PrecisionComparison
+{
+    private static final int WARM_UP = 2;
+    
+    public static void main(String[] args) 
+            throws Exception
+    {
+        Map<String, String> options = YoloHeadless.parse(args);
+        String spec = options.getOrDefault("source", "synthetic:640x480");
+        int frames = Integer.parseInt(options.getOrDefault("frames", "20"));
+        YoloModel model = YoloModel.forName(options.getOrDefault("model", "tiny"));
+        Precision baseline = Precision.forName(options.getOrDefault("baseline", "float"));
+        Precision candidate = Precision.forName(options.getOrDefault("candidate", "double"));
+        double threshold = Double.parseDouble(options.getOrDefault("threshold", "0.45"));
+        double matchIou = Double.parseDouble(options.getOrDefault("match-iou", "0.5"));
+        
+        // Read the frames up front so both precisions see exactly the same
+        // images
+        List<BufferedImage> images = new ArrayList<>(frames);
+        try (FrameSource source = FrameSources.create(spec, false))
+        {
+            source.open();
+            Frame frame;
+            
+            while (images.size() < frames && (frame = source.grab()) != null)
+            {
+                images.add(frame.getImage());
+            }
+        }
+        
+        if ( images.isEmpty() )
+        {
+            System.err.println("No frames to compare");
+            return;
+        }
+        
+        if ( Precision.activate(baseline) != baseline )
+        {
+            System.exit(1);
+        }
+        ComputationGraph graph = model.load();
+        Run expected = run(new YoloDetector(model, graph), images, threshold);
+        
+        if ( Precision.activate(candidate) != candidate )
+        {
+            System.exit(1);
+        }
+        Run actual = run(new YoloDetector(model, candidate.convert(graph)), images, threshold);
+        
+        Agreement agreement = new Agreement();
+        for (int i = 0; i < images.size(); i++)
+        {
+            agreement.add(expected.boxes.get(i), actual.boxes.get(i), matchIou);
+        }
+        
+        System.out.printf("Frames compared:        %d of %s with %s%n", images.size(), spec, model);
+        System.out.printf("%-24s%12s%12s%n", "", baseline, candidate);
+        System.out.printf("%-24s%12.2f%12.2f%n", "Time (ms/frame)", expected.millisPerFrame, actual.millisPerFrame);
+        System.out.printf("%-24s%12.1f%12.1f%n", "Parameters (MB)", expected.paramBytes / 1048576.0, actual.paramBytes / 1048576.0);
+        System.out.printf("%-24s%12d%12d%n", "Detections", agreement.expected, agreement.actual);
+        System.out.printf("Matched detections:     %d (%.1f%% agreement)%n", agreement.matched, agreement.getAgreement() * 100);
+        System.out.printf("Only in %-16s%d%n", baseline + ":", agreement.expected - agreement.matched);
+        System.out.printf("Only in %-16s%d%n", candidate + ":", agreement.actual - agreement.matched);
+        System.out.printf("Matched IoU:            mean %.4f, min %.4f%n", agreement.getMeanIou(), agreement.minIou);
+        System.out.printf("Score delta:            mean %.4f, max %.4f (percentage points)%n", 
+                agreement.getMeanScoreDelta(), agreement.maxScoreDelta);
+    }
+    
+    /**
+     * The detections and timings of one precision
+     */
+    private static class Run
+    {
+        final List<List<BoundingBox>> boxes = new ArrayList<>();
+        double millisPerFrame;
+        long paramBytes;
+    }
+    
+    private static Run run(YoloDetector detector, List<BufferedImage> images, double threshold) 
+            throws Exception
+    {
+        Run run = new Run();
+        run.paramBytes = detector.getGraph().numParams() * Precision.of(detector.getGraph()).getBytes();
+        
+        for (int i = 0; i < WARM_UP; i++)
+        {
+            detector.detect(images.get(0), threshold, true);
+        }
+        
+        long start = System.nanoTime();
+        for (BufferedImage image : images)
+        {
+            run.boxes.add(detector.detect(image, threshold, true));
+        }
+        run.millisPerFrame = (System.nanoTime() - start) / 1e6 / images.size();
+        return run;
+    }
+    
+    /**
+     * Matches the detections of two runs frame by frame, pairing boxes of 
+     * the same class greedily from the highest overlap down
+     */
+    private static class Agreement
+    {
+        int expected;
+        int actual;
+        int matched;
+        double sumIou;
+        double minIou = 1;
+        double sumScoreDelta;
+        double maxScoreDelta;
+        
+        void add(List<BoundingBox> expectedBoxes, List<BoundingBox> actualBoxes, double matchIou)
+        {
+            expected += expectedBoxes.size();
+            actual += actualBoxes.size();
+            
+            List<double[]> pairs = new ArrayList<>();
+            for (int i = 0; i < expectedBoxes.size(); i++)
+            {
+                for (int j = 0; j < actualBoxes.size(); j++)
+                {
+                    BoundingBox a = expectedBoxes.get(i);
+                    BoundingBox b = actualBoxes.get(j);
+                    double iou = iou(a, b);
+                    
+                    if ( a.getClassIndex() == b.getClassIndex() && iou >= matchIou )
+                    {
+                        pairs.add(new double[] { iou, i, j });
+                    }
+                }
+            }
+            pairs.sort((p, q) -> Double.compare(q[0], p[0]));
+            
+            boolean[] usedExpected = new boolean[expectedBoxes.size()];
+            boolean[] usedActual = new boolean[actualBoxes.size()];
+            
+            for (double[] pair : pairs)
+            {
+                int i = (int) pair[1];
+                int j = (int) pair[2];
+                
+                if ( usedExpected[i] || usedActual[j] )
+                {
+                    continue;
+                }
+                usedExpected[i] = true;
+                usedActual[j] = true;
+                
+                double delta = Math.abs(expectedBoxes.get(i).getConfidence() - actualBoxes.get(j).getConfidence());
+                matched++;
+                sumIou += pair[0];
+                minIou = Math.min(minIou, pair[0]);
+                sumScoreDelta += delta;
+                maxScoreDelta = Math.max(maxScoreDelta, delta);
+            }
+        }
+        
+        double getAgreement()
+        {
+            return expected + actual == 0 ? 1 : 2.0 * matched / (expected + actual);
+        }
+        
+        double getMeanIou()
+        {
+            return matched == 0 ? 0 : sumIou / matched;
+        }
+        
+        double getMeanScoreDelta()
+        {
+            return matched == 0 ? 0 : sumScoreDelta / matched;
+        }
+        
+        private static double iou(BoundingBox a, BoundingBox b)
+        {
+            double w = Math.min(a.getX2(), b.getX2()) - Math.max(a.getX1(), b.getX1());
+            double h = Math.min(a.getY2(), b.getY2()) - Math.max(a.getY1(), b.getY1());
+            
+            if ( w <= 0 || h <= 0 )
+            {
+                return 0;
+            }
+            double intersection = w * h;
+            double union = (a.getX2() - a.getX1()) * (a.getY2() - a.getY1()) 
+                    + (b.getX2() - b.getX1()) * (b.getY2() - b.getY1()) - intersection;
+            return intersection / union;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+/**
+ * Compares the fast and native preprocessing paths over frames from a 
+ * source, reporting the largest difference between their outputs and the
+ * average time each takes per frame.
+ * <p>
+ * Usage:
+ * <pre>
+ * java pinglis.ml.yolocamfx.PreprocessorComparison [source spec] [frames]
+ * </pre>
+ * The source defaults to 100 synthetic 640x480 frames.
+ */
+public class PreprocessorComparison
+{
+    private static final int WARM_UP = 10;
+    
+    public static void main(String[] args) 
+            throws Exception
+    {
+        String spec = args.length > 0 ? args[0] : "synthetic:640x480";
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        ImagePreprocessor fast = new FastImagePreprocessor(416, 416);
+        ImagePreprocessor nativePath = new NativeImagePreprocessor(416, 416);
+        double maxDiff = 0;
+        double sumDiff = 0;
+        long fastNanos = 0;
+        long nativeNanos = 0;
+        int count = 0;
+        
+        try (FrameSource source = FrameSources.create(spec, false))
+        {
+            source.open();
+            Frame frame;
+            
+            while (count < frames + WARM_UP && (frame = source.grab()) != null)
+            {
+                BufferedImage image = frame.getImage();
+                
+                long t0 = System.nanoTime();
+                INDArray expected = nativePath.preprocess(image);
+                long t1 = System.nanoTime();
+                INDArray actual = fast.preprocess(image);
+                long t2 = System.nanoTime();
+                
+                double diff = Transforms.abs(actual.sub(expected)).maxNumber().doubleValue();
+                
+                if ( count++ < WARM_UP )
+                {
+                    continue;
+                }
+                
+                maxDiff = Math.max(maxDiff, diff);
+                sumDiff += diff;
+                nativeNanos += t1 - t0;
+                fastNanos += t2 - t1;
+            }
+        }
+        
+        int measured = count - WARM_UP;
+        
+        if ( measured <= 0 )
+        {
+            System.err.println("Not enough frames to compare");
+            return;
+        }
+        
+        System.out.printf("Frames compared:        %d%n", measured);
+        System.out.printf("Max abs difference:     %.5f (%.2f grey levels)%n", maxDiff, maxDiff * 255);
+        System.out.printf("Mean max difference:    %.5f%n", sumDiff / measured);
+        System.out.printf("Native preprocess:      %.3f ms/frame%n", nativeNanos / 1e6 / measured);
+        System.out.printf("Fast preprocess:        %.3f ms/frame%n", fastNanos / 1e6 / measured);
+    }
+}
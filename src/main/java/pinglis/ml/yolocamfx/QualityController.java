@@ -0,0 +1,397 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Trades detection quality for speed to meet a latency or frame rate 
+ * target.
+ * <p>
+ * The controller is given the measured time of each run and moves along a
+ * ladder of levels, from the cheapest model and input size to the most 
+ * accurate. When the smoothed time stays over the target it steps down a 
+ * level and when it stays well under it steps up. Stepping up takes three 
+ * times as long to decide as stepping down, a level that was recently 
+ * measured over the target is not tried again until that measurement is 
+ * old, and samples are ignored for a while after each change so the new 
+ * level has warmed up. Together these stop it flapping between two levels.
+ * <p>
+ * If it is already at the cheapest level and still over the target, the 
+ * system is overloaded and it asks the frame source for a lower resolution,
+ * restoring the resolution before stepping back up a level.
+ * <p>
+ * Every decision is logged with the time and the measurements it was made
+ * on.
+ */
+public class QualityController
+{
+    /**
+     * A model run at an input size
+     */
+    public static final class Level
+    {
+        private final YoloModel model;
+        private final int inputSize;
+
+        public Level(YoloModel model, int inputSize)
+        {
+            this.model = model;
+            this.inputSize = inputSize;
+        }
+
+        public YoloModel getModel()
+        {
+            return model;
+        }
+
+        public int getInputSize()
+        {
+            return inputSize;
+        }
+
+        @Override
+        public String toString()
+        {
+            return model + "@" + inputSize;
+        }
+    }
+    
+    private static final double[] RESOLUTION_SCALES = { 1.0, 0.75, 0.5 };
+    private static final double OVER = 1.1;
+    private static final double UNDER = 0.6;
+    private static final double SMOOTHING = 0.2;
+    private static final int PATIENCE = 5;
+    private static final long SETTLE_MILLIS = 2000;
+    private static final long MEMORY_MILLIS = 30000;
+    
+    private final double targetMillis;
+    private final boolean latencyTarget;
+    private final List<Level> levels;
+    private final double[] levelMillis;
+    private final long[] levelMeasured;
+    private volatile Consumer<Level> listener;
+    private volatile FrameSource source;
+    private volatile PrintStream log = System.err;
+    private int level;
+    private int resolution;
+    private double smoothed;
+    private int over;
+    private int under;
+    private long settleUntil;
+    private boolean saturated;
+
+    /**
+     * @param targetMillis the time to keep each run under
+     * @param latencyTarget if true the time is the end to end latency from
+     * capture to result, otherwise the processing time of a run, which 
+     * bounds the frame rate
+     * @param levels the levels from cheapest to most accurate
+     * @param initial the index of the level to start at
+     */
+    public QualityController(double targetMillis, boolean latencyTarget, List<Level> levels, int initial)
+    {
+        if ( targetMillis <= 0 || levels.isEmpty() || initial < 0 || initial >= levels.size() )
+        {
+            throw new IllegalArgumentException("Target must be positive and the initial level one of the levels");
+        }
+        this.targetMillis = targetMillis;
+        this.latencyTarget = latencyTarget;
+        this.levels = Collections.unmodifiableList(new ArrayList<>(levels));
+        this.levelMillis = new double[levels.size()];
+        this.levelMeasured = new long[levels.size()];
+        this.level = initial;
+    }
+    
+    /**
+     * A controller that keeps the end to end latency under the target
+     * @param millis
+     * @return QualityController
+     */
+    public static QualityController forLatency(double millis)
+    {
+        return new QualityController(millis, true, defaultLevels(), 1);
+    }
+    
+    /**
+     * A controller that keeps the processing time short enough for the 
+     * given frame rate
+     * @param fps
+     * @return QualityController
+     */
+    public static QualityController forFps(double fps)
+    {
+        return new QualityController(1000 / fps, false, defaultLevels(), 1);
+    }
+    
+    /**
+     * Tiny Yolo then Yolo 2, each at 320, 416 and 608 pixels
+     * @return List of Level from cheapest to most accurate
+     */
+    public static List<Level> defaultLevels()
+    {
+        return Arrays.asList(
+                new Level(YoloModel.TINY_YOLO, 320), 
+                new Level(YoloModel.TINY_YOLO, 416), 
+                new Level(YoloModel.TINY_YOLO, 608), 
+                new Level(YoloModel.YOLO2, 320), 
+                new Level(YoloModel.YOLO2, 416), 
+                new Level(YoloModel.YOLO2, 608));
+    }
+
+    public double getTargetMillis()
+    {
+        return targetMillis;
+    }
+
+    public boolean isLatencyTarget()
+    {
+        return latencyTarget;
+    }
+
+    public List<Level> getLevels()
+    {
+        return levels;
+    }
+    
+    public synchronized Level getLevel()
+    {
+        return levels.get(level);
+    }
+    
+    /**
+     * The smoothed time of the runs at the current level
+     * @return milliseconds, 0 until measured
+     */
+    public synchronized double getSmoothedMillis()
+    {
+        return smoothed;
+    }
+    
+    /**
+     * Set the listener told of each change of level, which should switch 
+     * the model and input size
+     * @param listener 
+     */
+    public void setListener(Consumer<Level> listener)
+    {
+        this.listener = listener;
+    }
+    
+    /**
+     * Set the source whose resolution is lowered when overloaded, or null
+     * to leave the resolution alone
+     * @param source 
+     */
+    public void setFrameSource(FrameSource source)
+    {
+        this.source = source;
+    }
+    
+    /**
+     * Set where decisions are logged, standard error by default
+     * @param log 
+     */
+    public void setLog(PrintStream log)
+    {
+        this.log = log;
+    }
+    
+    /**
+     * Start again from the level nearest the given model and input size at 
+     * full resolution, forgetting the measurements so far
+     * @param model
+     * @param inputSize 
+     */
+    public synchronized void reset(YoloModel model, int inputSize)
+    {
+        int nearest = level;
+        
+        for (int i = 0; i < levels.size(); i++)
+        {
+            Level l = levels.get(i);
+            if ( l.getModel() == model && (levels.get(nearest).getModel() != model 
+                    || Math.abs(l.getInputSize() - inputSize) < Math.abs(levels.get(nearest).getInputSize() - inputSize)) )
+            {
+                nearest = i;
+            }
+        }
+        
+        FrameSource s = source;
+        if ( resolution != 0 && s != null )
+        {
+            s.setResolutionScale(RESOLUTION_SCALES[0]);
+        }
+        
+        level = nearest;
+        resolution = 0;
+        Arrays.fill(levelMeasured, 0);
+        changed("reset", System.currentTimeMillis());
+        apply();
+    }
+    
+    /**
+     * Record the times of a run. Runs of a model or input size other than 
+     * the current level's, such as those still in flight when the level 
+     * changed, are ignored.
+     * @param model the model that ran
+     * @param inputSize the input size it ran at
+     * @param latencyMillis from the frame being captured to its result
+     * @param processingMillis from the run starting to its result
+     */
+    public synchronized void record(YoloModel model, int inputSize, double latencyMillis, double processingMillis)
+    {
+        Level current = levels.get(level);
+        long now = System.currentTimeMillis();
+        
+        if ( model != current.getModel() || inputSize != current.getInputSize() || now < settleUntil )
+        {
+            return;
+        }
+        
+        double millis = latencyTarget ? latencyMillis : processingMillis;
+        smoothed = smoothed == 0 ? millis : smoothed * (1 - SMOOTHING) + millis * SMOOTHING;
+        levelMillis[level] = smoothed;
+        levelMeasured[level] = now;
+        
+        if ( smoothed > targetMillis * OVER )
+        {
+            over++;
+            under = 0;
+        }
+        else if ( smoothed < targetMillis * UNDER )
+        {
+            under++;
+            over = 0;
+        }
+        else
+        {
+            over = 0;
+            under = 0;
+        }
+        
+        if ( over >= PATIENCE )
+        {
+            stepDown(now);
+        }
+        else if ( under >= PATIENCE * 3 )
+        {
+            stepUp(now);
+        }
+    }
+    
+    private void stepDown(long now)
+    {
+        String from = describe();
+        FrameSource s = source;
+        
+        if ( level > 0 )
+        {
+            level--;
+            changed(from, now);
+            apply();
+        }
+        else if ( resolution < RESOLUTION_SCALES.length - 1 && s != null )
+        {
+            // Already at the cheapest level, so capture less
+            resolution++;
+            changed(from, now);
+            s.setResolutionScale(RESOLUTION_SCALES[resolution]);
+        }
+        else
+        {
+            over = 0;
+            if ( !saturated )
+            {
+                saturated = true;
+                log(String.format("staying at %s, %.0f ms is over the %.0f ms target but there is nothing left to lower", 
+                        from, smoothed, targetMillis));
+            }
+        }
+    }
+    
+    private void stepUp(long now)
+    {
+        String from = describe();
+        FrameSource s = source;
+        
+        if ( resolution > 0 && s != null )
+        {
+            // Restore the resolution before spending more on the model
+            resolution--;
+            changed(from, now);
+            s.setResolutionScale(RESOLUTION_SCALES[resolution]);
+        }
+        else if ( level < levels.size() - 1 )
+        {
+            int next = level + 1;
+            
+            if ( levelMeasured[next] != 0 && now - levelMeasured[next] < MEMORY_MILLIS && levelMillis[next] > targetMillis )
+            {
+                // Recently too slow, wait until that is old news
+                under = 0;
+                return;
+            }
+            level = next;
+            changed(from, now);
+            apply();
+        }
+        else
+        {
+            under = 0;
+        }
+    }
+    
+    private String describe()
+    {
+        return levels.get(level) + " at " + (int) (RESOLUTION_SCALES[resolution] * 100) + "% resolution";
+    }
+    
+    /**
+     * Log a change and start measuring afresh once the new level has 
+     * settled
+     */
+    private void changed(String from, long now)
+    {
+        log(String.format("%s -> %s, %s %.0f ms against a %.0f ms target", from, describe(), 
+                latencyTarget ? "latency" : "processing", smoothed, targetMillis));
+        smoothed = 0;
+        over = 0;
+        under = 0;
+        saturated = false;
+        settleUntil = now + SETTLE_MILLIS;
+    }
+    
+    private void apply()
+    {
+        Consumer<Level> l = listener;
+        
+        if ( l != null )
+        {
+            l.accept(levels.get(level));
+        }
+    }
+    
+    private void log(String message)
+    {
+        log.printf("%tF %<tT QualityController: %s%n", System.currentTimeMillis(), message);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how often something happens, as events per second averaged over 
+ * roughly the last second. Lock free so it can be marked from any thread.
+ */
+public class RateMeter
+{
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+    
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong windowCount = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private volatile double rate;
+    
+    /**
+     * Count one event
+     */
+    public void mark()
+    {
+        mark(1);
+    }
+    
+    /**
+     * Count several events, e.g. the frames in a batch
+     * @param events 
+     */
+    public void mark(int events)
+    {
+        total.addAndGet(events);
+        windowCount.addAndGet(events);
+        roll(System.nanoTime());
+    }
+    
+    /**
+     * The events per second over the last full window, or zero if nothing 
+     * has happened for more than two windows
+     * @return double
+     */
+    public double getRate()
+    {
+        long start = windowStart.get();
+        if ( System.nanoTime() - start > 2 * WINDOW_NANOS )
+        {
+            return 0;
+        }
+        return rate;
+    }
+    
+    /**
+     * The number of events since the meter was created or reset
+     * @return long
+     */
+    public long getTotal()
+    {
+        return total.get();
+    }
+    
+    /**
+     * Forget the events counted so far
+     */
+    public void reset()
+    {
+        windowStart.set(System.nanoTime());
+        windowCount.set(0);
+        total.set(0);
+        rate = 0;
+    }
+    
+    private void roll(long now)
+    {
+        long start = windowStart.get();
+        long elapsed = now - start;
+        
+        // Only the thread that moves the window on works out the rate
+        if ( elapsed >= WINDOW_NANOS && windowStart.compareAndSet(start, now) )
+        {
+            rate = windowCount.getAndSet(0) * 1e9 / elapsed;
+        }
+    }
+}
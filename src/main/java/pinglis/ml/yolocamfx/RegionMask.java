@@ -0,0 +1,377 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Limits detection to the parts of a frame that matter, such as the road 
+ * in a view that is mostly sky and walls.
+ * <p>
+ * A mask has zero or more regions of interest and zero or more excluded 
+ * areas, each a rectangle or polygon in coordinates between 0 and 1 of the 
+ * frame. Only the bounding rectangle of each region is run through the 
+ * network, letterboxed into the network input so its shape is kept, and the
+ * boxes found are mapped back to the whole frame. A box is kept only if its
+ * centre lies inside one of the regions and outside all of the excluded 
+ * areas. With no regions the whole frame is run and only the exclusions 
+ * apply.
+ * <p>
+ * Masks are fixed once made so an instance may be shared between threads.
+ */
+public class RegionMask
+{
+    private static final Color PADDING = new Color(128, 128, 128);
+    
+    private final List<Shape> regions;
+    private final List<Shape> exclusions;
+    private final ThreadLocal<List<BufferedImage>> letterboxes = ThreadLocal.withInitial(ArrayList::new);
+    private final ThreadLocal<CandidateBoxes> candidates = ThreadLocal.withInitial(CandidateBoxes::new);
+
+    /**
+     * @param regions the areas to run, an empty list runs the whole frame
+     * @param exclusions the areas where detections are ignored
+     */
+    public RegionMask(List<? extends Shape> regions, List<? extends Shape> exclusions)
+    {
+        this.regions = Collections.unmodifiableList(new ArrayList<>(regions));
+        this.exclusions = Collections.unmodifiableList(new ArrayList<>(exclusions));
+    }
+    
+    /**
+     * Parse a mask from the command line form. Shapes are separated by 
+     * semicolons and are either four numbers {@code x,y,width,height} for a
+     * rectangle or three or more {@code x,y} pairs for a polygon, all as 
+     * fractions of the frame, for example 
+     * {@code 0,0.4,1,0.6;0.1,0.1,0.3,0.1,0.2,0.3}.
+     * @param regions the regions of interest, null or empty for the whole
+     * frame
+     * @param exclusions the excluded areas, null or empty for none
+     * @return RegionMask
+     */
+    public static RegionMask parse(String regions, String exclusions)
+    {
+        return new RegionMask(parseShapes(regions), parseShapes(exclusions));
+    }
+    
+    private static List<Shape> parseShapes(String spec)
+    {
+        List<Shape> shapes = new ArrayList<>();
+        
+        if ( spec == null || spec.trim().isEmpty() )
+        {
+            return shapes;
+        }
+        
+        for (String part : spec.split(";"))
+        {
+            String[] fields = part.trim().split("\\s*,\\s*");
+            double[] values = new double[fields.length];
+            
+            for (int i = 0; i < fields.length; i++)
+            {
+                values[i] = Double.parseDouble(fields[i]);
+            }
+            
+            if ( values.length == 4 )
+            {
+                shapes.add(new Rectangle2D.Double(values[0], values[1], values[2], values[3]));
+            }
+            else if ( values.length >= 6 && values.length % 2 == 0 )
+            {
+                Path2D.Double polygon = new Path2D.Double();
+                polygon.moveTo(values[0], values[1]);
+                
+                for (int i = 2; i < values.length; i += 2)
+                {
+                    polygon.lineTo(values[i], values[i + 1]);
+                }
+                polygon.closePath();
+                shapes.add(polygon);
+            }
+            else
+            {
+                throw new IllegalArgumentException("Expected x,y,width,height or three or more x,y points but got " + part);
+            }
+        }
+        return shapes;
+    }
+
+    public List<Shape> getRegions()
+    {
+        return regions;
+    }
+
+    public List<Shape> getExclusions()
+    {
+        return exclusions;
+    }
+    
+    /**
+     * The part of a frame of the given size that is run for each region
+     * @param width
+     * @param height
+     * @return List of Rectangle in frame pixels, the whole frame if there
+     * are no regions
+     */
+    public List<Rectangle> crops(int width, int height)
+    {
+        Rectangle frame = new Rectangle(0, 0, width, height);
+        
+        if ( regions.isEmpty() )
+        {
+            return Collections.singletonList(frame);
+        }
+        
+        List<Rectangle> crops = new ArrayList<>(regions.size());
+        for (Shape region : regions)
+        {
+            Rectangle2D bounds = region.getBounds2D();
+            int x1 = (int) Math.floor(bounds.getMinX() * width);
+            int y1 = (int) Math.floor(bounds.getMinY() * height);
+            int x2 = (int) Math.ceil(bounds.getMaxX() * width);
+            int y2 = (int) Math.ceil(bounds.getMaxY() * height);
+            Rectangle crop = new Rectangle(x1, y1, x2 - x1, y2 - y1).intersection(frame);
+            
+            if ( !crop.isEmpty() )
+            {
+                crops.add(crop);
+            }
+        }
+        return crops;
+    }
+    
+    /**
+     * Whether a detection centred on the given point is kept
+     * @param x fraction of the frame width
+     * @param y fraction of the frame height
+     * @return true if inside a region, or there are none, and not excluded
+     */
+    public boolean accepts(double x, double y)
+    {
+        boolean inside = regions.isEmpty();
+        
+        for (int i = 0; i < regions.size() && !inside; i++)
+        {
+            inside = regions.get(i).contains(x, y);
+        }
+        
+        for (int i = 0; i < exclusions.size() && inside; i++)
+        {
+            inside = !exclusions.get(i).contains(x, y);
+        }
+        return inside;
+    }
+    
+    /**
+     * Draw a part of the frame into the network input, scaled to fit with 
+     * its shape kept and the rest padded grey
+     * @param image the whole frame
+     * @param crop the part to draw, in frame pixels
+     * @param target the image to draw into, reused if it is the size of the
+     * network input, may be null
+     * @return the letterboxed image
+     */
+    static BufferedImage letterbox(BufferedImage image, Rectangle crop, BufferedImage target)
+    {
+        int width = YoloDetector.INPUT_WIDTH;
+        int height = YoloDetector.INPUT_HEIGHT;
+        
+        if ( target == null || target.getWidth() != width || target.getHeight() != height )
+        {
+            target = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        }
+        
+        double scale = Math.min((double) width / crop.width, (double) height / crop.height);
+        int w = (int) Math.round(crop.width * scale);
+        int h = (int) Math.round(crop.height * scale);
+        int x = (width - w) / 2;
+        int y = (height - h) / 2;
+        
+        Graphics2D g = target.createGraphics();
+        try
+        {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setColor(PADDING);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(image, x, y, x + w, y + h, 
+                    crop.x, crop.y, crop.x + crop.width, crop.y + crop.height, null);
+        }
+        finally
+        {
+            g.dispose();
+        }
+        return target;
+    }
+    
+    /**
+     * Map the boxes found in a letterboxed crop back to the whole frame, 
+     * adding those the mask accepts to the candidates
+     * @param boxes found in the letterboxed image
+     * @param crop the part of the frame that was letterboxed
+     * @param width frame width
+     * @param height frame height
+     * @param into the candidates to add to
+     */
+    void mapBack(List<BoundingBox> boxes, Rectangle crop, int width, int height, CandidateBoxes into)
+    {
+        // Undo the letterbox, from the network input to crop pixels
+        double scale = Math.min((double) YoloDetector.INPUT_WIDTH / crop.width, (double) YoloDetector.INPUT_HEIGHT / crop.height);
+        double px = (YoloDetector.INPUT_WIDTH - Math.round(crop.width * scale)) / 2 / (double) YoloDetector.INPUT_WIDTH;
+        double py = (YoloDetector.INPUT_HEIGHT - Math.round(crop.height * scale)) / 2 / (double) YoloDetector.INPUT_HEIGHT;
+        double sx = YoloDetector.INPUT_WIDTH / scale / width;
+        double sy = YoloDetector.INPUT_HEIGHT / scale / height;
+        double ox = (double) crop.x / width;
+        double oy = (double) crop.y / height;
+        
+        for (BoundingBox box : boxes)
+        {
+            double x1 = ox + (box.getX1() - px) * sx;
+            double y1 = oy + (box.getY1() - py) * sy;
+            double x2 = ox + (box.getX2() - px) * sx;
+            double y2 = oy + (box.getY2() - py) * sy;
+            
+            if ( accepts((x1 + x2) / 2, (y1 + y2) / 2) )
+            {
+                into.add(box.getClassIndex(), (float) (box.getConfidence() / 100), 
+                        (float) x1, (float) y1, (float) x2, (float) y2);
+            }
+        }
+    }
+    
+    /**
+     * Add the boxes found in the whole frame that the mask accepts to the
+     * candidates
+     */
+    void filter(List<BoundingBox> boxes, CandidateBoxes into)
+    {
+        for (BoundingBox box : boxes)
+        {
+            if ( accepts((box.getX1() + box.getX2()) / 2, (box.getY1() + box.getY2()) / 2) )
+            {
+                into.add(box.getClassIndex(), (float) (box.getConfidence() / 100), 
+                        (float) box.getX1(), (float) box.getY1(), (float) box.getX2(), (float) box.getY2());
+            }
+        }
+    }
+    
+    /**
+     * Prepare the images to run for a frame, reusing the letterbox images 
+     * in the given list from the given index
+     * @param image the whole frame
+     * @param crops from {@link #crops(int, int)}
+     * @param pool letterbox images to reuse, grown as needed, gaps are 
+     * left null
+     * @param offset index of the first image in the pool to use
+     * @return the images to run, one per crop
+     */
+    List<BufferedImage> prepare(BufferedImage image, List<Rectangle> crops, List<BufferedImage> pool, int offset)
+    {
+        if ( regions.isEmpty() )
+        {
+            return Collections.singletonList(image);
+        }
+        
+        while (pool.size() < offset + crops.size())
+        {
+            pool.add(null);
+        }
+        
+        for (int i = 0; i < crops.size(); i++)
+        {
+            pool.set(offset + i, letterbox(image, crops.get(i), pool.get(offset + i)));
+        }
+        return pool.subList(offset, offset + crops.size());
+    }
+    
+    /**
+     * Merge the boxes found in each crop into the frame's detections
+     * @param detector
+     * @param width frame width
+     * @param height frame height
+     * @param crops from {@link #crops(int, int)}
+     * @param results the boxes found in each prepared image
+     * @param threshold confidence threshold between 0 and 1
+     * @param filter whether to remove duplicates across the regions
+     * @return List of BoundingBox in frame coordinates
+     */
+    List<BoundingBox> merge(YoloDetector detector, int width, int height, List<Rectangle> crops, 
+            List<List<BoundingBox>> results, double threshold, boolean filter)
+    {
+        CandidateBoxes boxes = candidates.get();
+        boxes.clear();
+        
+        if ( regions.isEmpty() )
+        {
+            filter(results.get(0), boxes);
+            return detector.convert(boxes);
+        }
+        
+        for (int i = 0; i < crops.size(); i++)
+        {
+            mapBack(results.get(i), crops.get(i), width, height, boxes);
+        }
+        
+        // Regions that overlap can find the same object twice
+        if ( filter && crops.size() > 1 )
+        {
+            detector.getNonMaxSuppression().apply(boxes, (float) threshold);
+        }
+        return detector.convert(boxes);
+    }
+    
+    /**
+     * Detect the objects inside the mask
+     * @param detector
+     * @param image
+     * @param threshold confidence threshold between 0 and 1
+     * @param filter whether to remove duplicates
+     * @return List of BoundingBox in frame coordinates
+     * @throws IOException 
+     */
+    public List<BoundingBox> detect(YoloDetector detector, BufferedImage image, double threshold, boolean filter) 
+            throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        List<Rectangle> crops = crops(width, height);
+        
+        if ( crops.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+        
+        List<BufferedImage> inputs = prepare(image, crops, letterboxes.get(), 0);
+        double[] thresholds = new double[inputs.size()];
+        boolean[] filters = new boolean[inputs.size()];
+        Arrays.fill(thresholds, threshold);
+        Arrays.fill(filters, filter);
+        
+        return merge(detector, width, height, crops, detector.detect(inputs, thresholds, filters), threshold, filter);
+    }
+}
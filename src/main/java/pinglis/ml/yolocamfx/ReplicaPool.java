@@ -0,0 +1,331 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.nativeblas.NativeOpsHolder;
+
+/**
+ * Runs frames on several replicas of one network at once, so a single 
+ * stream can use all the cores of a large machine.
+ * <p>
+ * A network can only run one forward pass at a time, so each replica is a
+ * separate network but they all share the parameters of the original, 
+ * which are only read during inference. Each replica has its own worker 
+ * thread and queue and frames are handed to them in turn. The number of 
+ * threads ND4J uses for each forward pass is set on every worker, so a 
+ * machine can be split into K replicas of T threads. 
+ * <p>
+ * The results complete in the order the frames were submitted, a frame 
+ * that finishes early waits for the frames before it.
+ */
+public class ReplicaPool
+        implements AutoCloseable
+{
+    private static final long OFFER_MILLIS = 100;
+    
+    private final YoloDetector[] replicas;
+    private final int threadsPerReplica;
+    private final int queueDepth;
+    private final List<BlockingQueue<Job>> queues = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Map<Long, Job> finished = new HashMap<>();
+    private long nextSubmitted;
+    private long nextCompleted;
+    private volatile boolean closed = false;
+
+    /**
+     * @param detector the detector to replicate, used as the first replica
+     * @param replicas the number of networks to run at once
+     * @param threadsPerReplica the threads each forward pass may use, 0 to 
+     * leave the ND4J default
+     * @param queueDepth the frames that may wait for each replica
+     */
+    public ReplicaPool(YoloDetector detector, int replicas, int threadsPerReplica, int queueDepth)
+    {
+        if ( replicas < 1 || threadsPerReplica < 0 || queueDepth < 1 )
+        {
+            throw new IllegalArgumentException("Need at least one replica and a queue depth of at least 1");
+        }
+        this.replicas = new YoloDetector[replicas];
+        this.threadsPerReplica = threadsPerReplica;
+        this.queueDepth = queueDepth;
+        
+        for (int i = 0; i < replicas; i++)
+        {
+            this.replicas[i] = i == 0 ? detector : replicate(detector);
+            this.queues.add(new ArrayBlockingQueue<>(queueDepth));
+            
+            int index = i;
+            Thread thread = new Thread(() -> run(index));
+            thread.setDaemon(true);
+            thread.setName("ReplicaPool-" + i);
+            this.threads.add(thread);
+        }
+        
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+    }
+    
+    /**
+     * A copy of the detector with its own network sharing the original's 
+     * parameters and the same settings
+     * @param detector
+     * @return YoloDetector
+     */
+    static YoloDetector replicate(YoloDetector detector)
+    {
+        ComputationGraph original = detector.getGraph();
+        ComputationGraph graph = new ComputationGraph(original.getConfiguration().clone());
+        graph.init(original.params(), false);
+        
+        YoloDetector replica = new YoloDetector(detector.getModel(), graph);
+        replica.setThreshold(detector.getThreshold());
+        replica.setFilterDuplicates(detector.isFilterDuplicates());
+        replica.setFastPreprocessing(detector.isFastPreprocessing());
+        replica.setNonMaxSuppression(detector.getNonMaxSuppression());
+        replica.setDecoder(detector.getDecoder());
+        replica.setInputSize(detector.getInputSize());
+        return replica;
+    }
+
+    public int getReplicas()
+    {
+        return replicas.length;
+    }
+
+    public int getThreadsPerReplica()
+    {
+        return threadsPerReplica;
+    }
+    
+    /**
+     * The most frames that can be queued or running before 
+     * {@link #submit(BufferedImage)} blocks
+     * @return int
+     */
+    public int getCapacity()
+    {
+        return replicas.length * (queueDepth + 1);
+    }
+    
+    /**
+     * Queue an image for detection using the detector's current threshold
+     * and filter settings, blocking while the next replica's queue is full
+     * @param image
+     * @return a future completed with the detections for the image
+     * @throws InterruptedException 
+     */
+    public CompletableFuture<List<BoundingBox>> submit(BufferedImage image) throws InterruptedException
+    {
+        return submit(image, replicas[0].getThreshold(), replicas[0].isFilterDuplicates());
+    }
+    
+    /**
+     * Queue an image for detection, blocking while the next replica's queue
+     * is full
+     * @param image
+     * @param threshold confidence threshold between 0 and 1
+     * @param filter whether to remove duplicate detections of the same object
+     * @return a future completed with the detections for the image
+     * @throws InterruptedException 
+     */
+    public CompletableFuture<List<BoundingBox>> submit(BufferedImage image, double threshold, boolean filter) 
+            throws InterruptedException
+    {
+        // Numbered and queued under the lock close drains the queues with,
+        // so the job cannot be left behind. A full queue is waited on a 
+        // little at a time to notice a close.
+        synchronized (this)
+        {
+            Job job = new Job(nextSubmitted, image, threshold, filter);
+            BlockingQueue<Job> queue = queues.get((int) (job.sequence % replicas.length));
+            
+            while (!closed)
+            {
+                if ( queue.offer(job, OFFER_MILLIS, TimeUnit.MILLISECONDS) )
+                {
+                    nextSubmitted++;
+                    return job.future;
+                }
+            }
+            throw new IllegalStateException("ReplicaPool is closed");
+        }
+    }
+    
+    /**
+     * Stop the workers and wait for them to finish. Frames still queued or
+     * waiting for earlier frames are cancelled.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        
+        for (Thread thread : threads)
+        {
+            thread.interrupt();
+        }
+        
+        // Wait for any forward pass still running so the detector is free
+        for (Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        
+        // Under the submit lock, so a job being queued is either drained 
+        // here or sees the pool is closed
+        synchronized (this)
+        {
+            for (BlockingQueue<Job> queue : queues)
+            {
+                Job job;
+                while ((job = queue.poll()) != null)
+                {
+                    job.future.cancel(false);
+                }
+            }
+        }
+        
+        synchronized (finished)
+        {
+            for (Job job : finished.values())
+            {
+                job.future.cancel(false);
+            }
+            finished.clear();
+        }
+    }
+    
+    private void run(int index)
+    {
+        YoloDetector detector = replicas[index];
+        BlockingQueue<Job> queue = queues.get(index);
+        
+        if ( threadsPerReplica > 0 )
+        {
+            // The OpenMP thread count is per calling thread, so each worker
+            // sets its own. The BLAS library's count is shared but every 
+            // worker sets it the same.
+            NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(threadsPerReplica);
+            Nd4j.factory().blas().setMaxThreads(threadsPerReplica);
+        }
+        
+        while (!closed)
+        {
+            Job job;
+            try
+            {
+                job = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            
+            try
+            {
+                job.boxes = detector.detect(job.image, job.threshold, job.filter);
+            }
+            catch (Exception e)
+            {
+                job.error = e;
+            }
+            finish(job);
+        }
+    }
+    
+    /**
+     * Complete the job's future, and those of any later jobs that were 
+     * waiting for it, in submission order
+     */
+    private void finish(Job job)
+    {
+        List<Job> ready = new ArrayList<>();
+        
+        synchronized (finished)
+        {
+            if ( closed )
+            {
+                job.future.cancel(false);
+                return;
+            }
+            finished.put(job.sequence, job);
+            
+            Job next;
+            while ((next = finished.remove(nextCompleted)) != null)
+            {
+                ready.add(next);
+                nextCompleted++;
+            }
+        }
+        
+        // Complete outside the lock as the callers' callbacks run here
+        for (Job done : ready)
+        {
+            if ( done.error != null )
+            {
+                done.future.completeExceptionally(done.error);
+            }
+            else
+            {
+                done.future.complete(done.boxes);
+            }
+        }
+    }
+    
+    /**
+     * A frame waiting for or running on a replica
+     */
+    private static class Job
+    {
+        final long sequence;
+        final BufferedImage image;
+        final double threshold;
+        final boolean filter;
+        final CompletableFuture<List<BoundingBox>> future = new CompletableFuture<>();
+        List<BoundingBox> boxes;
+        Exception error;
+
+        Job(long sequence, BufferedImage image, double threshold, boolean filter)
+        {
+            this.sequence = sequence;
+            this.image = image;
+            this.threshold = threshold;
+            this.filter = filter;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Measures the throughput of a {@link ReplicaPool} for several layouts of 
+ * replicas and threads per replica, to find the best split of a machine.
+ * <p>
+ * Usage:
+ * <pre>
+ * java pinglis.ml.yolocamfx.ReplicaSweep [options]
+ * 
+ *   --source=&lt;spec&gt;      frame source, see {@link FrameSources} (default synthetic:640x480)
+ *   --frames=&lt;n&gt;         frames timed for each layout (default 50)
+ *   --model=tiny|yolo2    model to run (default tiny)
+ *   --layouts=&lt;KxT,...&gt;  replicas by threads per replica to try, e.g. 
+ *                         1x32,2x16,4x8 (default every power of two 
+ *                         number of replicas filling the processors)
+ *   --queue-depth=&lt;n&gt;    frames queued per replica (default 2)
+ * </pre>
+ * For each layout the frames are run after a short warm up and the frames
+ * per second and mean latency from submission to result are reported, 
+ * followed by the fastest layout.
+ */
+public class ReplicaSweep
+{
+    public static void main(String[] args) 
+            throws Exception
+    {
+        Map<String, String> options = YoloHeadless.parse(args);
+        String spec = options.getOrDefault("source", "synthetic:640x480");
+        int frames = Integer.parseInt(options.getOrDefault("frames", "50"));
+        int queueDepth = Integer.parseInt(options.getOrDefault("queue-depth", "2"));
+        YoloModel model = YoloModel.forName(options.getOrDefault("model", "tiny"));
+        List<int[]> layouts = options.containsKey("layouts") 
+                ? parseLayouts(options.get("layouts")) 
+                : defaultLayouts(Runtime.getRuntime().availableProcessors());
+        
+        // Read a few distinct frames up front and cycle through them so the
+        // source does not limit the rate
+        List<BufferedImage> images = new ArrayList<>();
+        try (FrameSource source = FrameSources.create(spec, false))
+        {
+            source.open();
+            Frame frame;
+            
+            while (images.size() < 10 && (frame = source.grab()) != null)
+            {
+                images.add(frame.getImage());
+            }
+        }
+        
+        if ( images.isEmpty() )
+        {
+            System.err.println("No frames to run");
+            return;
+        }
+        
+        YoloDetector detector = new YoloDetector(model, model.load());
+        int[] best = null;
+        double bestFps = 0;
+        
+        System.out.printf("%-10s%12s%16s%n", "Layout", "Frames/sec", "Latency (ms)");
+        for (int[] layout : layouts)
+        {
+            try (ReplicaPool pool = new ReplicaPool(detector, layout[0], layout[1], queueDepth))
+            {
+                // Warm up every replica
+                run(pool, images, layout[0] * 2);
+                
+                long start = System.nanoTime();
+                double latency = run(pool, images, frames);
+                double fps = frames / ((System.nanoTime() - start) / 1e9);
+                
+                System.out.printf("%-10s%12.2f%16.1f%n", layout[0] + "x" + layout[1], fps, latency);
+                if ( fps > bestFps )
+                {
+                    bestFps = fps;
+                    best = layout;
+                }
+            }
+        }
+        
+        if ( best != null )
+        {
+            System.out.printf("Best layout: %d replicas x %d threads, --replicas=%d --replica-threads=%d%n", 
+                    best[0], best[1], best[0], best[1]);
+        }
+    }
+    
+    /**
+     * Run the frames through the pool keeping it full
+     * @return the mean latency in milliseconds
+     */
+    private static double run(ReplicaPool pool, List<BufferedImage> images, int frames) 
+            throws Exception
+    {
+        Deque<CompletableFuture<List<BoundingBox>>> pending = new ArrayDeque<>();
+        Deque<Long> started = new ArrayDeque<>();
+        double totalMillis = 0;
+        
+        for (int i = 0; i < frames; i++)
+        {
+            if ( pending.size() >= pool.getCapacity() )
+            {
+                pending.remove().get();
+                totalMillis += (System.nanoTime() - started.remove()) / 1e6;
+            }
+            started.add(System.nanoTime());
+            pending.add(pool.submit(images.get(i % images.size())));
+        }
+        
+        while (!pending.isEmpty())
+        {
+            pending.remove().get();
+            totalMillis += (System.nanoTime() - started.remove()) / 1e6;
+        }
+        return totalMillis / frames;
+    }
+    
+    private static List<int[]> parseLayouts(String spec)
+    {
+        List<int[]> layouts = new ArrayList<>();
+        
+        for (String layout : spec.split(","))
+        {
+            String[] parts = layout.trim().toLowerCase().split("x");
+            if ( parts.length != 2 )
+            {
+                throw new IllegalArgumentException("Expected replicas x threads such as 4x8 but got " + layout);
+            }
+            layouts.add(new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) });
+        }
+        return layouts;
+    }
+    
+    /**
+     * One replica with every processor, then twice as many replicas with 
+     * half the threads each, down to a single thread per replica
+     */
+    private static List<int[]> defaultLayouts(int processors)
+    {
+        List<int[]> layouts = new ArrayList<>();
+        
+        for (int replicas = 1; replicas <= processors; replicas *= 2)
+        {
+            layouts.add(new int[] { replicas, Math.max(1, processors / replicas) });
+        }
+        return layouts;
+    }
+}
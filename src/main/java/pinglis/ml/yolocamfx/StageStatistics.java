@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the latency of one stage, in milliseconds
+ */
+public class StageStatistics
+{
+    private final String stage;
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p95;
+    private final double p99;
+    private final double max;
+
+    @ConstructorProperties({"stage", "count", "mean", "p50", "p95", "p99", "max"})
+    public StageStatistics(String stage, long count, double mean, double p50, double p95, double p99, double max)
+    {
+        this.stage = stage;
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+        this.max = max;
+    }
+    
+    /**
+     * Take a snapshot of a histogram
+     * @param stage
+     * @param histogram
+     * @return StageStatistics
+     */
+    public static StageStatistics of(String stage, LatencyHistogram histogram)
+    {
+        return new StageStatistics(stage, histogram.getCount(), histogram.getMeanMillis(),
+                histogram.getPercentileMillis(0.50), histogram.getPercentileMillis(0.95), 
+                histogram.getPercentileMillis(0.99), histogram.getMaxMillis());
+    }
+
+    public String getStage()
+    {
+        return stage;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public double getMean()
+    {
+        return mean;
+    }
+
+    public double getP50()
+    {
+        return p50;
+    }
+
+    public double getP95()
+    {
+        return p95;
+    }
+
+    public double getP99()
+    {
+        return p99;
+    }
+
+    public double getMax()
+    {
+        return max;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format("%-10s p50 %6.1f  p95 %6.1f  p99 %6.1f  max %6.1f ms", stage, p50, p95, p99, max);
+    }
+}
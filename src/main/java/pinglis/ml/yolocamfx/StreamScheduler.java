@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shares one loaded yolo network between several frame streams, such as a
+ * number of cameras on the same machine.
+ * <p>
+ * A single scheduler thread picks the streams that have a frame waiting
+ * using weighted round robin, so streams of equal weight are served fairly 
+ * and a stream of weight 2 gets twice the share of a stream of weight 1.
+ * The frames picked, at most one per stream and no more than the maximum 
+ * batch size, are run through the network together in a single forward 
+ * pass. A stream with a {@link RegionMask} adds one image per region to 
+ * the batch.
+ * <p>
+ * The application and {@link YoloHeadless} each run a single source, so 
+ * this is for programs that embed the detector and have several cameras.
+ * Each stream's results can be sent to other processes with 
+ * {@link DetectionServer#listener(String, YoloModel)}.
+ */
+public class StreamScheduler
+        implements AutoCloseable
+{
+    private final YoloDetector detector;
+    private final int maxBatch;
+    private final List<InferenceStream> streams = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private boolean signalled = false;
+    
+    // Letterboxed regions of masked streams, reused by the scheduler thread
+    private final List<BufferedImage> letterboxes = new ArrayList<>();
+
+    /**
+     * @param detector the detector shared by all the streams
+     * @param maxBatch the most frames to run in one forward pass
+     */
+    public StreamScheduler(YoloDetector detector, int maxBatch)
+    {
+        this.detector = detector;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.thread = new Thread(this::run);
+        this.thread.setDaemon(true);
+        this.thread.setName("StreamScheduler");
+        this.thread.start();
+    }
+    
+    public YoloDetector getDetector()
+    {
+        return detector;
+    }
+    
+    /**
+     * Register a new stream with weight 1
+     * @param name
+     * @return InferenceStream
+     */
+    public InferenceStream register(String name)
+    {
+        return register(name, 1);
+    }
+    
+    /**
+     * Register a new stream
+     * @param name
+     * @param weight relative share of the scheduler when streams compete
+     * @return InferenceStream
+     */
+    public InferenceStream register(String name, int weight)
+    {
+        InferenceStream stream = new InferenceStream(this, name, weight);
+        stream.setThreshold(detector.getThreshold());
+        stream.setFilterDuplicates(detector.isFilterDuplicates());
+        streams.add(stream);
+        return stream;
+    }
+    
+    public void unregister(InferenceStream stream)
+    {
+        streams.remove(stream);
+    }
+    
+    public List<InferenceStream> getStreams()
+    {
+        return new ArrayList<>(streams);
+    }
+    
+    @Override
+    public void close()
+    {
+        closed = true;
+        thread.interrupt();
+    }
+    
+    /**
+     * Wake the scheduler thread as a stream has a new frame
+     */
+    void signal()
+    {
+        synchronized (lock)
+        {
+            signalled = true;
+            lock.notifyAll();
+        }
+    }
+    
+    private void run()
+    {
+        List<InferenceStream> chosen = new ArrayList<>(maxBatch);
+        List<InferenceStream> running = new ArrayList<>(maxBatch);
+        List<Frame> frames = new ArrayList<>(maxBatch);
+        
+        while (!closed)
+        {
+            try
+            {
+                synchronized (lock)
+                {
+                    while (!signalled && !closed)
+                    {
+                        lock.wait();
+                    }
+                    signalled = false;
+                }
+                
+                // Keep running batches until every stream has been caught up
+                while (!closed && choose(chosen))
+                {
+                    for (InferenceStream stream : chosen)
+                    {
+                        Frame frame = stream.takePending();
+                        
+                        if ( frame != null && stream.shouldRun(frame) )
+                        {
+                            running.add(stream);
+                            frames.add(frame);
+                        }
+                    }
+                    
+                    if ( !frames.isEmpty() )
+                    {
+                        runBatch(running, frames);
+                    }
+                    chosen.clear();
+                    running.clear();
+                    frames.clear();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Closed
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace(System.err);
+                chosen.clear();
+                running.clear();
+                frames.clear();
+            }
+        }
+    }
+    
+    /**
+     * Choose up to the maximum batch of streams that have a frame waiting. 
+     * Each ready stream earns credit in proportion to its weight and the 
+     * streams with the most credit are chosen, paying one credit each.
+     * @param chosen filled with the chosen streams
+     * @return true if any stream was chosen
+     */
+    private boolean choose(List<InferenceStream> chosen)
+    {
+        List<InferenceStream> ready = new ArrayList<>();
+        double totalWeight = 0;
+        
+        for (InferenceStream stream : streams)
+        {
+            if ( stream.hasPending() )
+            {
+                ready.add(stream);
+                totalWeight += stream.getWeight();
+            }
+        }
+        
+        int slots = Math.min(maxBatch, ready.size());
+        
+        for (InferenceStream stream : ready)
+        {
+            // Bound the credit so a stream cannot bank an unfair share while
+            // there was room for everyone
+            stream.credit = Math.max(-slots, Math.min(slots, stream.credit + slots * stream.getWeight() / totalWeight));
+        }
+        
+        ready.sort((a, b) -> Double.compare(b.credit, a.credit));
+        
+        for (int i = 0; i < slots; i++)
+        {
+            InferenceStream stream = ready.get(i);
+            stream.credit -= 1;
+            chosen.add(stream);
+        }
+        
+        return !chosen.isEmpty();
+    }
+    
+    private void runBatch(List<InferenceStream> chosen, List<Frame> frames) throws Exception
+    {
+        List<BufferedImage> images = new ArrayList<>(frames.size());
+        List<List<Rectangle>> crops = new ArrayList<>(frames.size());
+        List<RegionMask> masks = new ArrayList<>(frames.size());
+        int[] starts = new int[frames.size() + 1];
+        
+        for (int i = 0; i < frames.size(); i++)
+        {
+            InferenceStream stream = chosen.get(i);
+            BufferedImage image = frames.get(i).getImage();
+            RegionMask mask = stream.getRegionMask();
+            starts[i] = images.size();
+            masks.add(mask);
+            
+            if ( mask == null )
+            {
+                crops.add(null);
+                images.add(image);
+            }
+            else
+            {
+                // Each region of a masked stream is its own image in the 
+                // batch
+                List<Rectangle> regions = mask.crops(image.getWidth(), image.getHeight());
+                crops.add(regions);
+                images.addAll(mask.prepare(image, regions, letterboxes, images.size()));
+            }
+        }
+        starts[frames.size()] = images.size();
+        
+        double[] thresholds = new double[images.size()];
+        boolean[] filters = new boolean[images.size()];
+        double[] streamThresholds = new double[frames.size()];
+        boolean[] streamFilters = new boolean[frames.size()];
+        
+        for (int i = 0; i < frames.size(); i++)
+        {
+            streamThresholds[i] = chosen.get(i).getThreshold();
+            streamFilters[i] = chosen.get(i).isFilterDuplicates();
+            Arrays.fill(thresholds, starts[i], starts[i + 1], streamThresholds[i]);
+            Arrays.fill(filters, starts[i], starts[i + 1], streamFilters[i]);
+        }
+        
+        List<List<BoundingBox>> results = images.isEmpty() 
+                ? new ArrayList<>() 
+                : detector.detect(images, thresholds, filters);
+        
+        for (int i = 0; i < frames.size(); i++)
+        {
+            RegionMask mask = masks.get(i);
+            List<BoundingBox> boxes;
+            
+            if ( mask == null )
+            {
+                boxes = results.get(starts[i]);
+            }
+            else
+            {
+                BufferedImage image = frames.get(i).getImage();
+                boxes = mask.merge(detector, image.getWidth(), image.getHeight(), crops.get(i), 
+                        results.subList(starts[i], starts[i + 1]), streamThresholds[i], streamFilters[i]);
+            }
+            chosen.get(i).complete(frames.get(i), boxes);
+        }
+    }
+}
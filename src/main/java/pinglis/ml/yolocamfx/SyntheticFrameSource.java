@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * Frame source that generates a deterministic sequence of frames of moving
+ * shapes. The same seed always produces the same frames so it can be used 
+ * for repeatable throughput tests without a camera.
+ */
+public class SyntheticFrameSource
+        extends AbstractFrameSource
+{
+    private static final int SHAPES = 6;
+    
+    private final int width;
+    private final int height;
+    private final double fps;
+    private final long frameCount;
+    private final long seed;
+    private final double[][] shapes = new double[SHAPES][];
+    private final Color[] colors = new Color[SHAPES];
+    private long produced;
+    private long startNanos;
+
+    /**
+     * @param width width of the generated frames
+     * @param height height of the generated frames
+     * @param fps frames per second to produce, or 0 to produce them as fast as possible
+     * @param frameCount number of frames before the source ends, or 0 for no limit
+     * @param seed seed for the generated content
+     */
+    public SyntheticFrameSource(int width, int height, double fps, long frameCount, long seed)
+    {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.frameCount = frameCount;
+        this.seed = seed;
+    }
+    
+    @Override
+    public void open() throws IOException
+    {
+        Random random = new Random(seed);
+        
+        // Each shape has a start position, a velocity and a size
+        for (int i = 0; i < SHAPES; i++)
+        {
+            shapes[i] = new double[] {
+                random.nextDouble() * width, random.nextDouble() * height,
+                (random.nextDouble() - 0.5) * width / 50, (random.nextDouble() - 0.5) * height / 50,
+                width / 10 + random.nextDouble() * width / 5, height / 10 + random.nextDouble() * height / 5
+            };
+            colors[i] = Color.getHSBColor(random.nextFloat(), 0.7f, 0.9f);
+        }
+        
+        produced = 0;
+        startNanos = System.nanoTime();
+        resetSequence();
+    }
+
+    @Override
+    public Frame grab() throws IOException
+    {
+        if ( frameCount > 0 && produced >= frameCount )
+        {
+            return null;
+        }
+        
+        if ( fps > 0 )
+        {
+            waitForFrame();
+        }
+        
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        
+        try
+        {
+            g.setColor(Color.DARK_GRAY);
+            g.fillRect(0, 0, width, height);
+            
+            for (int i = 0; i < SHAPES; i++)
+            {
+                double[] s = shapes[i];
+                int w = (int) s[4];
+                int h = (int) s[5];
+                int x = bounce(s[0] + s[2] * produced, width - w);
+                int y = bounce(s[1] + s[3] * produced, height - h);
+                
+                g.setColor(colors[i]);
+                
+                if ( i % 2 == 0 )
+                {
+                    g.fillRect(x, y, w, h);
+                }
+                else
+                {
+                    g.fillOval(x, y, w, h);
+                }
+            }
+        }
+        finally
+        {
+            g.dispose();
+        }
+        
+        produced++;
+        return newFrame(image);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+    
+    /**
+     * Sleep until it is time for the next frame at the configured rate
+     * @throws InterruptedIOException 
+     */
+    private void waitForFrame() throws InterruptedIOException
+    {
+        long due = startNanos + (long) (produced * 1_000_000_000L / fps);
+        long wait = due - System.nanoTime();
+        
+        if ( wait > 0 )
+        {
+            try
+            {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+    
+    /**
+     * Reflect a position back and forth between 0 and max so the shapes
+     * bounce off the edges
+     */
+    private static int bounce(double position, int max)
+    {
+        if ( max <= 0 )
+        {
+            return 0;
+        }
+        double p = Math.abs(position) % (2 * max);
+        return (int) (p > max ? 2 * max - p : p);
+    }
+}
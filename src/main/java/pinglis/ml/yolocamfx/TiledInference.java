@@ -0,0 +1,259 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Finds small objects in high resolution frames by running the detector 
+ * over overlapping tiles of the frame rather than the whole frame squashed 
+ * into the network input.
+ * <p>
+ * The frame is cut into tiles of the tile size, in frame pixels, that 
+ * overlap by the given fraction, plus optionally the whole frame so that 
+ * objects larger than a tile are still found. The tiles are run as 
+ * minibatches, or through a {@link DetectionPipeline} if one is set, and the
+ * boxes mapped back to the frame. Duplicates of an object found in more 
+ * than one tile are then removed with the detector's 
+ * {@link NonMaxSuppression}.
+ * <p>
+ * Settings are fixed once made so an instance may be shared between 
+ * threads.
+ */
+public class TiledInference
+{
+    private final int tileSize;
+    private final double overlap;
+    private final boolean fullFrame;
+    private final int batchSize;
+    private final DetectionPipeline pipeline;
+    private final ThreadLocal<CandidateBoxes> candidates = ThreadLocal.withInitial(CandidateBoxes::new);
+
+    /**
+     * Tiles the size of the network input overlapping by 20% with a full
+     * frame pass, in batches of 8
+     */
+    public TiledInference()
+    {
+        this(YoloDetector.INPUT_WIDTH, 0.2, true, 8, null);
+    }
+    
+    /**
+     * @param tileSize the width and height of a tile in frame pixels
+     * @param overlap the fraction of a tile shared with its neighbour, 0 to 
+     * less than 1
+     * @param fullFrame whether to run the whole frame as well
+     * @param batchSize the most tiles to run in one forward pass
+     * @param pipeline if not null, the tiles are run through this instead
+     * of in batches
+     */
+    public TiledInference(int tileSize, double overlap, boolean fullFrame, int batchSize, DetectionPipeline pipeline)
+    {
+        if ( tileSize < 32 || overlap < 0 || overlap >= 1 || batchSize < 1 )
+        {
+            throw new IllegalArgumentException("Tiles must be at least 32 pixels, overlap under 1 and batches at least 1");
+        }
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.fullFrame = fullFrame;
+        this.batchSize = batchSize;
+        this.pipeline = pipeline;
+    }
+
+    public int getTileSize()
+    {
+        return tileSize;
+    }
+
+    public double getOverlap()
+    {
+        return overlap;
+    }
+
+    public boolean isFullFrame()
+    {
+        return fullFrame;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+    
+    /**
+     * The tiles for a frame of the given size, not including the full frame
+     * @param width
+     * @param height
+     * @return List of Rectangle in frame pixels
+     */
+    public List<Rectangle> tiles(int width, int height)
+    {
+        int[] xs = starts(width);
+        int[] ys = starts(height);
+        List<Rectangle> tiles = new ArrayList<>(xs.length * ys.length);
+        
+        for (int y : ys)
+        {
+            for (int x : xs)
+            {
+                tiles.add(new Rectangle(x, y, Math.min(tileSize, width), Math.min(tileSize, height)));
+            }
+        }
+        return tiles;
+    }
+    
+    /**
+     * The start of each tile along an axis, spread evenly so the first and 
+     * last tiles sit on the edges and neighbours overlap by at least the 
+     * overlap
+     */
+    private int[] starts(int length)
+    {
+        if ( length <= tileSize )
+        {
+            return new int[] { 0 };
+        }
+        
+        int step = Math.max(1, (int) Math.floor(tileSize * (1 - overlap)));
+        int count = (int) Math.ceil((double) (length - tileSize) / step) + 1;
+        int[] starts = new int[count];
+        
+        for (int i = 0; i < count; i++)
+        {
+            starts[i] = (int) Math.round((double) i * (length - tileSize) / (count - 1));
+        }
+        return starts;
+    }
+    
+    /**
+     * Detect the objects in the frame tile by tile
+     * @param detector
+     * @param image
+     * @param threshold confidence threshold between 0 and 1
+     * @param filter whether to remove duplicates, within and across tiles
+     * @return List of BoundingBox in frame coordinates
+     * @throws IOException 
+     */
+    public List<BoundingBox> detect(YoloDetector detector, BufferedImage image, double threshold, boolean filter) 
+            throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        List<Rectangle> regions = tiles(width, height);
+        
+        // A frame no bigger than a tile is just run whole
+        if ( regions.size() == 1 )
+        {
+            return detector.detect(image, threshold, filter);
+        }
+        
+        if ( fullFrame )
+        {
+            regions.add(new Rectangle(0, 0, width, height));
+        }
+        
+        List<BufferedImage> crops = new ArrayList<>(regions.size());
+        for (Rectangle region : regions)
+        {
+            // Sub images share the frame's pixels so nothing is copied
+            crops.add(image.getSubimage(region.x, region.y, region.width, region.height));
+        }
+        
+        List<List<BoundingBox>> results = pipeline != null 
+                ? runPipeline(detector, crops, threshold, filter)
+                : runBatches(detector, crops, threshold, filter);
+        
+        // Map the boxes back to the frame and merge the duplicates across 
+        // the tiles
+        CandidateBoxes boxes = candidates.get();
+        boxes.clear();
+        
+        for (int i = 0; i < regions.size(); i++)
+        {
+            Rectangle region = regions.get(i);
+            double sx = (double) region.width / width;
+            double sy = (double) region.height / height;
+            double ox = (double) region.x / width;
+            double oy = (double) region.y / height;
+            
+            for (BoundingBox box : results.get(i))
+            {
+                boxes.add(box.getClassIndex(), (float) (box.getConfidence() / 100), 
+                        (float) (ox + box.getX1() * sx), (float) (oy + box.getY1() * sy), 
+                        (float) (ox + box.getX2() * sx), (float) (oy + box.getY2() * sy));
+            }
+        }
+        
+        if ( filter )
+        {
+            detector.getNonMaxSuppression().apply(boxes, (float) threshold);
+        }
+        return detector.convert(boxes);
+    }
+    
+    private List<List<BoundingBox>> runBatches(YoloDetector detector, List<BufferedImage> crops, double threshold, boolean filter) 
+            throws IOException
+    {
+        List<List<BoundingBox>> results = new ArrayList<>(crops.size());
+        
+        for (int start = 0; start < crops.size(); start += batchSize)
+        {
+            List<BufferedImage> batch = crops.subList(start, Math.min(crops.size(), start + batchSize));
+            double[] thresholds = new double[batch.size()];
+            boolean[] filters = new boolean[batch.size()];
+            Arrays.fill(thresholds, threshold);
+            Arrays.fill(filters, filter);
+            results.addAll(detector.detect(batch, thresholds, filters));
+        }
+        return results;
+    }
+    
+    private List<List<BoundingBox>> runPipeline(YoloDetector detector, List<BufferedImage> crops, double threshold, boolean filter) 
+            throws IOException
+    {
+        List<CompletableFuture<List<BoundingBox>>> futures = new ArrayList<>(crops.size());
+        List<List<BoundingBox>> results = new ArrayList<>(crops.size());
+        
+        try
+        {
+            for (BufferedImage crop : crops)
+            {
+                futures.add(pipeline.submit(detector, crop, threshold, filter));
+            }
+            for (CompletableFuture<List<BoundingBox>> future : futures)
+            {
+                results.add(future.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running tiles", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Tile detection failed", e.getCause());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+/**
+ * A bounding box that belongs to a track, so carries the id the tracker gave
+ * the object it follows.
+ */
+public class TrackedBox
+        extends BoundingBox
+{
+    private final int trackId;
+
+    public TrackedBox(int trackId, int classIndex, String label, double confidence, double x1, double y1, double x2, double y2)
+    {
+        super(classIndex, label, confidence, x1, y1, x2, y2);
+        this.trackId = trackId;
+    }
+
+    /**
+     * The id of the track, unique for the life of the tracker
+     * @return int
+     */
+    public int getTrackId()
+    {
+        return trackId;
+    }
+}
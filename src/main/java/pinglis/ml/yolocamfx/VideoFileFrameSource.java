@@ -0,0 +1,259 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Frame source that reads a Motion JPEG file.
+ * <p>
+ * The file is scanned for complete JPEG images (start of image marker
+ * through to the end of image marker) so this works for raw .mjpeg/.mjpg
+ * streams, for multipart HTTP captures saved to disk and for MJPEG encoded
+ * AVI files where each frame is stored as a whole JPEG. A frame that is
+ * corrupt or cannot be decoded is skipped and reading carries on from the 
+ * next start of image marker.
+ */
+public class VideoFileFrameSource
+        extends AbstractFrameSource
+{
+    private static final int MARKER = 0xFF;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int RST0 = 0xD0;
+    private static final int RST7 = 0xD7;
+    
+    private final File file;
+    private final boolean loop;
+    private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream(256 * 1024);
+    private InputStream in;
+    private boolean readAny;
+
+    /**
+     * @param file the MJPEG file to read
+     * @param loop if true start again from the beginning at the end of the file
+     */
+    public VideoFileFrameSource(File file, boolean loop)
+    {
+        this.file = file;
+        this.loop = loop;
+    }
+    
+    @Override
+    public void open() throws IOException
+    {
+        close();
+        in = new BufferedInputStream(new FileInputStream(file), 256 * 1024);
+        readAny = false;
+        resetSequence();
+    }
+
+    @Override
+    public Frame grab() throws IOException
+    {
+        if ( in == null )
+        {
+            return null;
+        }
+        
+        while (true)
+        {
+            BufferedImage image = nextImage();
+            
+            if ( image != null )
+            {
+                return newFrame(image);
+            }
+            
+            // End of file, only loop if we managed to read something
+            if ( !loop || !readAny )
+            {
+                return null;
+            }
+            
+            in.close();
+            in = new BufferedInputStream(new FileInputStream(file), 256 * 1024);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if ( in != null )
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(System.err);
+            }
+            in = null;
+        }
+    }
+    
+    /**
+     * Read the next decodable JPEG from the stream
+     * @return BufferedImage or null at the end of the stream
+     * @throws IOException 
+     */
+    private BufferedImage nextImage() throws IOException
+    {
+        try
+        {
+            while (true)
+            {
+                seekStartOfImage();
+                
+                // Resync on the next start of image after a corrupt header
+                if ( !readImage() )
+                {
+                    continue;
+                }
+                
+                BufferedImage image = decode();
+                
+                if ( image != null )
+                {
+                    readAny = true;
+                    return image;
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Decode the JPEG in the buffer
+     * @return BufferedImage or null if it cannot be decoded
+     */
+    private BufferedImage decode()
+    {
+        try
+        {
+            return ImageIO.read(new ByteArrayInputStream(jpeg.toByteArray()));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+    
+    private void seekStartOfImage() throws IOException
+    {
+        int previous = read();
+        
+        while (true)
+        {
+            int b = read();
+            
+            if ( previous == MARKER && b == SOI )
+            {
+                jpeg.reset();
+                jpeg.write(MARKER);
+                jpeg.write(SOI);
+                return;
+            }
+            previous = b;
+        }
+    }
+    
+    /**
+     * Copy one JPEG image into the buffer. Marker segments are skipped using
+     * their length so any thumbnail embedded in the header is not mistaken
+     * for the end of the image.
+     * @return false if the header is corrupt
+     * @throws IOException 
+     */
+    private boolean readImage() throws IOException
+    {
+        boolean inScan = false;
+        
+        while (true)
+        {
+            int b = read();
+            
+            if ( b != MARKER )
+            {
+                // Only entropy coded data may appear between markers
+                if ( !inScan )
+                {
+                    return false;
+                }
+                jpeg.write(b);
+                continue;
+            }
+            
+            int marker = read();
+            
+            // Fill bytes
+            while ( marker == MARKER )
+            {
+                marker = read();
+            }
+            jpeg.write(MARKER);
+            jpeg.write(marker);
+            
+            if ( marker == EOI )
+            {
+                return true;
+            }
+            
+            // Stuffed zero byte or restart marker inside the scan data
+            if ( marker == 0x00 || (marker >= RST0 && marker <= RST7) )
+            {
+                continue;
+            }
+            
+            int hi = read();
+            int lo = read();
+            jpeg.write(hi);
+            jpeg.write(lo);
+            
+            for (int i = ((hi << 8) | lo) - 2; i > 0; i--)
+            {
+                jpeg.write(read());
+            }
+            
+            inScan = marker == SOS;
+        }
+    }
+    
+    private int read() throws IOException
+    {
+        int b = in.read();
+        
+        if ( b < 0 )
+        {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,658 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Records frames with their detection boxes drawn on as a video or a 
+ * sequence of images.
+ * <p>
+ * Frames are handed over with {@link #offer(Frame, DetectionFrame)}, or 
+ * {@link #offer(Frame, List)} for a list of boxes, which only adds
+ * them to a bounded queue, dropping the oldest frame when it is full, so 
+ * recording never holds up capture or detection. A dedicated thread draws 
+ * the boxes over a copy of each frame, in images reused from a small pool,
+ * encodes it as a JPEG and writes it out. Where it goes depends on the 
+ * output:
+ * <ul>
+ * <li>{@code .avi} - an MJPEG AVI file that video players can open</li>
+ * <li>{@code .mjpeg} or {@code .mjpg} - a raw Motion JPEG stream</li>
+ * <li>anything else - a directory of numbered JPEG images</li>
+ * </ul>
+ * All three can be read back with {@link FrameSources}.
+ */
+public class VideoRecorder
+        implements AutoCloseable
+{
+    private static final int POOL_SIZE = 2;
+    private static final Font FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 12);
+    private static final BasicStroke STROKE = new BasicStroke(2);
+    
+    private final Sink sink;
+    private final ArrayBlockingQueue<Entry> queue;
+    private final ArrayDeque<BufferedImage> pool = new ArrayDeque<>(POOL_SIZE);
+    private final ImageWriter jpegWriter;
+    private final ImageWriteParam jpegParams;
+    private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream(256 * 1024);
+    private final RateMeter encodeRate = new RateMeter();
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closed;
+    private boolean finished;
+    private IOException failure;
+
+    /**
+     * Record at JPEG quality 0.85 with up to 8 frames waiting
+     * @param output the file or directory to write
+     * @throws IOException 
+     */
+    public VideoRecorder(File output) throws IOException
+    {
+        this(output, 8, 0.85f);
+    }
+    
+    /**
+     * @param output the file or directory to write
+     * @param queueDepth the most frames waiting to be encoded
+     * @param quality JPEG quality between 0 and 1
+     * @throws IOException 
+     */
+    public VideoRecorder(File output, int queueDepth, float quality) throws IOException
+    {
+        String name = output.getName().toLowerCase(Locale.ROOT);
+        
+        this.sink = name.endsWith(".avi") ? new AviSink(output)
+                : name.endsWith(".mjpeg") || name.endsWith(".mjpg") ? new StreamSink(output)
+                : new DirectorySink(output);
+        this.queue = new ArrayBlockingQueue<>(queueDepth);
+        this.jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        this.jpegParams = jpegWriter.getDefaultWriteParam();
+        this.jpegParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        this.jpegParams.setCompressionQuality(quality);
+        
+        this.thread = new Thread(this::run);
+        this.thread.setDaemon(true);
+        this.thread.setName("VideoRecorder");
+        this.thread.start();
+    }
+    
+    /**
+     * Queue a frame to be recorded with the given boxes drawn on it. Never 
+     * blocks, the oldest waiting frame is dropped if the queue is full.
+     * @param frame
+     * @param boxes the detections to draw, may be null
+     */
+    public void offer(Frame frame, List<? extends BoundingBox> boxes)
+    {
+        if ( closed )
+        {
+            return;
+        }
+        
+        enqueue(new Entry(frame, boxes, null));
+    }
+    
+    /**
+     * Queue a frame to be recorded with the given detections drawn on it. 
+     * The detections are retained until the frame has been drawn, so the 
+     * caller can release its own reference straight away. Never blocks, the
+     * oldest waiting frame is dropped if the queue is full.
+     * @param frame
+     * @param detections the detections to draw, may be null
+     */
+    public void offer(Frame frame, DetectionFrame detections)
+    {
+        if ( closed )
+        {
+            return;
+        }
+        
+        // Already recycled, record the frame without boxes
+        if ( detections != null && !detections.retain() )
+        {
+            detections = null;
+        }
+        enqueue(new Entry(frame, null, detections));
+    }
+    
+    private void enqueue(Entry entry)
+    {
+        // Under the lock the encode thread drains the queue with when it 
+        // stops, so an entry is never left behind unreleased
+        synchronized (queue)
+        {
+            if ( finished )
+            {
+                entry.release();
+                return;
+            }
+            
+            offered.incrementAndGet();
+            while (!queue.offer(entry))
+            {
+                Entry oldest = queue.poll();
+                if ( oldest != null )
+                {
+                    oldest.release();
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+    
+    /**
+     * The frames encoded per second
+     * @return double
+     */
+    public double getEncodeFps()
+    {
+        return encodeRate.getRate();
+    }
+    
+    public long getRecordedFrames()
+    {
+        return encodeRate.getTotal();
+    }
+    
+    public long getOfferedFrames()
+    {
+        return offered.get();
+    }
+    
+    /**
+     * The frames dropped because the encoder fell behind
+     * @return long
+     */
+    public long getDroppedFrames()
+    {
+        return dropped.get();
+    }
+    
+    /**
+     * Stop recording, finish encoding the frames already queued and close 
+     * the output
+     * @throws IOException if writing failed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+        closed = true;
+        
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format("Recorded %d of %d frames, %.1f frames/sec encoded, %d dropped", 
+                getRecordedFrames(), getOfferedFrames(), getEncodeFps(), getDroppedFrames());
+    }
+    
+    private void run()
+    {
+        try
+        {
+            while (!closed || !queue.isEmpty())
+            {
+                Entry entry = queue.poll(100, TimeUnit.MILLISECONDS);
+                if ( entry != null )
+                {
+                    BufferedImage image;
+                    try
+                    {
+                        image = composite(entry);
+                    }
+                    finally
+                    {
+                        entry.release();
+                    }
+                    sink.write(encode(image), image.getWidth(), image.getHeight(), entry.frame.getTimestamp());
+                    release(image);
+                    encodeRate.mark();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            failure = e;
+            closed = true;
+            e.printStackTrace(System.err);
+        }
+        catch (InterruptedException e)
+        {
+            // Stopped
+        }
+        finally
+        {
+            // Anything offered after the last poll, or left behind by a 
+            // failed write, still holds its detections
+            synchronized (queue)
+            {
+                finished = true;
+                Entry entry;
+                while ((entry = queue.poll()) != null)
+                {
+                    entry.release();
+                    dropped.incrementAndGet();
+                }
+            }
+            
+            jpegWriter.dispose();
+            try
+            {
+                sink.close();
+            }
+            catch (IOException e)
+            {
+                if ( failure == null )
+                {
+                    failure = e;
+                }
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+    
+    /**
+     * Draw the frame and its boxes into an image from the pool
+     */
+    private BufferedImage composite(Entry entry)
+    {
+        BufferedImage source = entry.frame.getImage();
+        int w = source.getWidth();
+        int h = source.getHeight();
+        BufferedImage image = acquire(w, h);
+        Graphics2D g = image.createGraphics();
+        
+        try
+        {
+            g.drawImage(source, 0, 0, null);
+            g.setStroke(STROKE);
+            g.setFont(FONT);
+            if ( entry.boxes != null )
+            {
+                for (BoundingBox box : entry.boxes)
+                {
+                    drawBox(g, w, h, box.getClassIndex(), box.getLabel(), box.getConfidence(), 
+                            box.getX1(), box.getY1(), box.getX2(), box.getY2());
+                }
+            }
+            
+            DetectionFrame detections = entry.detections;
+            if ( detections != null )
+            {
+                for (int i = 0; i < detections.size(); i++)
+                {
+                    drawBox(g, w, h, detections.getClassIndex(i), detections.getLabel(i), detections.getScore(i) * 100.0, 
+                            detections.getX1(i), detections.getY1(i), detections.getX2(i), detections.getY2(i));
+                }
+            }
+        }
+        finally
+        {
+            g.dispose();
+        }
+        return image;
+    }
+    
+    private static void drawBox(Graphics2D g, int w, int h, int classIndex, String label, double confidence, 
+            double left, double top, double right, double bottom)
+    {
+        int x1 = (int) Math.max(0, Math.round(left * w));
+        int y1 = (int) Math.max(15, Math.round(top * h));
+        int x2 = (int) Math.min(w - 1, Math.round(right * w));
+        int y2 = (int) Math.min(h - 1, Math.round(bottom * h));
+
+        g.setColor(colorFor(classIndex));
+        g.drawRect(x1, y1, x2 - x1, y2 - y1);
+        g.drawString(String.format("%s [%.2f%%]", label, confidence), x1, y1 - 3);
+    }
+    
+    /**
+     * The colour boxes of the class are drawn in on the screen, see 
+     * {@link LoadedModel#colorFor(int)}
+     */
+    static Color colorFor(int classIndex)
+    {
+        return Color.getHSBColor(((classIndex + 1) * 20 % 360) / 360f, 0.6f, 1.0f);
+    }
+    
+    private byte[] encode(BufferedImage image) throws IOException
+    {
+        jpeg.reset();
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(jpeg))
+        {
+            jpegWriter.setOutput(out);
+            jpegWriter.write(null, new IIOImage(image, null, null), jpegParams);
+        }
+        return jpeg.toByteArray();
+    }
+    
+    private BufferedImage acquire(int width, int height)
+    {
+        BufferedImage image;
+        while ((image = pool.poll()) != null)
+        {
+            if ( image.getWidth() == width && image.getHeight() == height )
+            {
+                return image;
+            }
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    }
+    
+    private void release(BufferedImage image)
+    {
+        if ( pool.size() < POOL_SIZE )
+        {
+            pool.push(image);
+        }
+    }
+    
+    private static class Entry
+    {
+        private final Frame frame;
+        private final List<? extends BoundingBox> boxes;
+        private final DetectionFrame detections;
+
+        Entry(Frame frame, List<? extends BoundingBox> boxes, DetectionFrame detections)
+        {
+            this.frame = frame;
+            this.boxes = boxes;
+            this.detections = detections;
+        }
+        
+        void release()
+        {
+            if ( detections != null )
+            {
+                detections.release();
+            }
+        }
+    }
+    
+    /**
+     * Where the encoded frames go
+     */
+    private interface Sink
+    {
+        void write(byte[] jpeg, int width, int height, long timestamp) throws IOException;
+        
+        void close() throws IOException;
+    }
+    
+    /**
+     * JPEG images one after another
+     */
+    private static class StreamSink
+            implements Sink
+    {
+        private final OutputStream out;
+
+        StreamSink(File file) throws IOException
+        {
+            this.out = new FileOutputStream(file);
+        }
+
+        @Override
+        public void write(byte[] jpeg, int width, int height, long timestamp) throws IOException
+        {
+            out.write(jpeg);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * A JPEG file per frame named by its position
+     */
+    private static class DirectorySink
+            implements Sink
+    {
+        private final File directory;
+        private long count;
+
+        DirectorySink(File directory) throws IOException
+        {
+            if ( !directory.isDirectory() && !directory.mkdirs() )
+            {
+                throw new IOException("Cannot create " + directory);
+            }
+            this.directory = directory;
+        }
+
+        @Override
+        public void write(byte[] jpeg, int width, int height, long timestamp) throws IOException
+        {
+            try (OutputStream out = new FileOutputStream(new File(directory, String.format("%08d.jpg", count++))))
+            {
+                out.write(jpeg);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+    
+    /**
+     * An AVI file with one MJPEG video stream. The headers are written last
+     * once the frame size, count and rate are known.
+     */
+    private static class AviSink
+            implements Sink
+    {
+        private static final int HEADER_BYTES = 224;
+        private static final int MOVI_OFFSET = HEADER_BYTES - 4;
+        private static final int KEYFRAME = 0x10;
+        private static final int HAS_INDEX = 0x10;
+        
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        private int[] offsets = new int[1024];
+        private int[] sizes = new int[1024];
+        private int frames;
+        private int width;
+        private int height;
+        private long firstTimestamp;
+        private long lastTimestamp;
+        private int largest;
+
+        AviSink(File file) throws IOException
+        {
+            this.file = new RandomAccessFile(file, "rw");
+            this.file.setLength(0);
+            this.channel = this.file.getChannel();
+            this.channel.position(HEADER_BYTES);
+        }
+
+        @Override
+        public void write(byte[] jpeg, int width, int height, long timestamp) throws IOException
+        {
+            if ( frames == 0 )
+            {
+                this.width = width;
+                this.height = height;
+                firstTimestamp = timestamp;
+            }
+            lastTimestamp = timestamp;
+            
+            if ( frames == offsets.length )
+            {
+                offsets = Arrays.copyOf(offsets, frames * 2);
+                sizes = Arrays.copyOf(sizes, frames * 2);
+            }
+            offsets[frames] = (int) (channel.position() - MOVI_OFFSET);
+            sizes[frames] = jpeg.length;
+            frames++;
+            largest = Math.max(largest, jpeg.length);
+            
+            chunk.clear();
+            chunk.put(fourcc("00dc")).putInt(jpeg.length).flip();
+            writeFully(chunk);
+            writeFully(ByteBuffer.wrap(jpeg));
+            
+            // Chunks start on even offsets
+            if ( (jpeg.length & 1) != 0 )
+            {
+                writeFully(ByteBuffer.wrap(new byte[1]));
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                long moviEnd = channel.position();
+                
+                ByteBuffer index = ByteBuffer.allocate(8 + frames * 16).order(ByteOrder.LITTLE_ENDIAN);
+                index.put(fourcc("idx1")).putInt(frames * 16);
+                for (int i = 0; i < frames; i++)
+                {
+                    index.put(fourcc("00dc")).putInt(KEYFRAME).putInt(offsets[i]).putInt(sizes[i]);
+                }
+                index.flip();
+                writeFully(index);
+                
+                long end = channel.position();
+                channel.position(0);
+                writeFully(headers(end, moviEnd));
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        
+        private ByteBuffer headers(long end, long moviEnd)
+        {
+            // The rate the frames arrived at, 25 if there is only one
+            double fps = frames > 1 && lastTimestamp > firstTimestamp 
+                    ? (frames - 1) * 1000.0 / (lastTimestamp - firstTimestamp) 
+                    : 25;
+            int rate = (int) Math.max(1, Math.round(fps * 1000));
+            ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            
+            b.put(fourcc("RIFF")).putInt((int) (end - 8)).put(fourcc("AVI "));
+            b.put(fourcc("LIST")).putInt(192).put(fourcc("hdrl"));
+            
+            b.put(fourcc("avih")).putInt(56);
+            b.putInt((int) Math.round(1e6 / fps));
+            b.putInt((int) Math.round(largest * fps));
+            b.putInt(0);
+            b.putInt(HAS_INDEX);
+            b.putInt(frames);
+            b.putInt(0);
+            b.putInt(1);
+            b.putInt(largest);
+            b.putInt(width);
+            b.putInt(height);
+            b.putInt(0).putInt(0).putInt(0).putInt(0);
+            
+            b.put(fourcc("LIST")).putInt(116).put(fourcc("strl"));
+            
+            b.put(fourcc("strh")).putInt(56);
+            b.put(fourcc("vids")).put(fourcc("MJPG"));
+            b.putInt(0);
+            b.putShort((short) 0).putShort((short) 0);
+            b.putInt(0);
+            b.putInt(1000).putInt(rate);
+            b.putInt(0);
+            b.putInt(frames);
+            b.putInt(largest);
+            b.putInt(-1);
+            b.putInt(0);
+            b.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+            
+            b.put(fourcc("strf")).putInt(40);
+            b.putInt(40);
+            b.putInt(width);
+            b.putInt(height);
+            b.putShort((short) 1).putShort((short) 24);
+            b.put(fourcc("MJPG"));
+            b.putInt(width * height * 3);
+            b.putInt(0).putInt(0).putInt(0).putInt(0);
+            
+            b.put(fourcc("LIST")).putInt((int) (moviEnd - MOVI_OFFSET)).put(fourcc("movi"));
+            b.flip();
+            return b;
+        }
+        
+        private void writeFully(ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+        
+        private static byte[] fourcc(String code)
+        {
+            return code.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
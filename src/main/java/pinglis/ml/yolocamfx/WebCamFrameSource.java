@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import com.github.sarxos.webcam.Webcam;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Frame source that reads from the default webcam at its largest view size.
+ * <p>
+ * Asking for a lower resolution switches the camera to the largest view 
+ * size that fits, so the camera does less work as well. The switch is made 
+ * by the capture thread before the next frame.
+ */
+public class WebCamFrameSource
+        extends AbstractFrameSource
+{
+    private Webcam webCam = null;
+    private volatile double resolutionScale = 1;
+    private double openScale = 1;
+    
+    @Override
+    public void open() throws IOException
+    {
+        webCam = Webcam.getDefault();
+        
+        if ( webCam == null )
+        {
+            throw new IOException("No webcam found");
+        }
+        
+        resetSequence();
+        openScale = resolutionScale;
+        webCam.setViewSize(viewSize(openScale));
+        webCam.open();
+    }
+    
+    @Override
+    public void setResolutionScale(double scale)
+    {
+        if ( scale <= 0 || scale > 1 )
+        {
+            throw new IllegalArgumentException("Scale must be greater than 0 and at most 1 but was " + scale);
+        }
+        this.resolutionScale = scale;
+    }
+
+    @Override
+    public double getResolutionScale()
+    {
+        return resolutionScale;
+    }
+    
+    /**
+     * The largest view size no bigger than the given fraction of the 
+     * largest, or the smallest if none are
+     */
+    private Dimension viewSize(double scale)
+    {
+        Dimension[] sizes = webCam.getViewSizes();
+        Dimension largest = sizes[sizes.length - 1];
+        Dimension best = null;
+        
+        for (Dimension size : sizes)
+        {
+            if ( size.width <= largest.width * scale + 0.5 && size.height <= largest.height * scale + 0.5
+                    && (best == null || size.width * size.height > best.width * best.height) )
+            {
+                best = size;
+            }
+        }
+        return best != null ? best : sizes[0];
+    }
+
+    @Override
+    public Frame grab() throws IOException
+    {
+        // The webcam can fail to return an image while it starts up so keep
+        // asking until we get one or the camera is closed
+        if ( webCam != null && resolutionScale != openScale )
+        {
+            // The view size can only be changed while the camera is closed
+            openScale = resolutionScale;
+            Dimension size = viewSize(openScale);
+            
+            if ( !size.equals(webCam.getViewSize()) )
+            {
+                webCam.close();
+                webCam.setViewSize(size);
+                webCam.open();
+            }
+        }
+        
+        while ( webCam != null && webCam.isOpen() )
+        {
+            BufferedImage image = webCam.getImage();
+            
+            if ( image != null )
+            {
+                return newFrame(image);
+            }
+        }
+        
+        return null;
+    }
+
+    @Override
+    public void close()
+    {
+        if ( webCam != null )
+        {
+            webCam.close();
+        }
+    }
+}
@@ -15,65 +15,59 @@
  */
 package pinglis.ml.yolocamfx;
 
-import com.github.sarxos.webcam.Webcam;
-import java.awt.image.BufferedImage;
+import javafx.beans.value.ChangeListener;
 import javafx.concurrent.Task;
 
 /**
- * Task that captures input from your default webcam
+ * Task that captures input from a frame source, by default your webcam.
+ * <p>
+ * While the view is paused the capture thread waits rather than grabbing
+ * frames that would only be thrown away. The source is only used on the 
+ * capture thread, which closes it once stopped.
  */
 public class WebCamTask 
 {
     private final WebCamView view;
-    private Webcam webCam = null;
-    private boolean stopCamera = false;
+    private final FrameSource source;
+    private final Object pauseLock = new Object();
+    private final ChangeListener<Boolean> pauseListener = (a,b,c)->setPaused(c);
+    private volatile boolean stopCamera = false;
+    private volatile boolean paused = false;
     
     public WebCamTask(WebCamView view)
     {
-        this.view = view;    
+        this(view, new WebCamFrameSource());
     }
     
-    public void start() 
+    public WebCamTask(WebCamView view, FrameSource source)
     {
-        if (webCam != null)
-        {
-            close();
-        }
+        this.view = view;
+        this.source = source;
+    }
     
+    public void start() 
+    {
+        paused = view.pausedProperty().get();
+        view.pausedProperty().addListener(pauseListener);
+        
         Task<Void> task = new Task<Void>()
         {
             @Override
             protected Void call() throws Exception
             {
-                webCam = Webcam.getDefault();
-                
-                if ( webCam != null )
+                try
                 {
-                    stopCamera = false;
-                    webCam.setViewSize(webCam.getViewSizes()[webCam.getViewSizes().length - 1]);
-                    webCam.open();
-                    
-                    while (!stopCamera)
-                    {
-                        try
-                        {
-                            BufferedImage grabbedImageBuffer=null;
-                            
-                            if ((grabbedImageBuffer = webCam.getImage()) != null)
-                            {
-                                if ( !view.pausedProperty().get() )
-                                {
-                                    view.imageBufferProperty().set(grabbedImageBuffer);
-                                }
-                            }
-                        }
-                        catch (Exception e)
-                        {
-                            e.printStackTrace();
-                        }
-                    }
+                    source.open();
+                    capture();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace(System.err);
+                }
+                finally
+                {
+                    source.close();
                 }
-                
                 return null;
             }
         };
@@ -84,12 +78,70 @@ public class WebCamTask
         th.start();
     }
     
+    /**
+     * Stop capturing, the capture thread closes the source once it finishes
+     * the frame it is grabbing
+     */
     public void close()
     {
-        if (webCam != null)
+        view.pausedProperty().removeListener(pauseListener);
+        stopCamera=true;
+        setPaused(false);
+    }
+    
+    private void capture()
+    {
+        while (!stopCamera)
         {
-            webCam.close();
+            try
+            {
+                waitWhilePaused();
+                
+                long start = System.nanoTime();
+                Frame frame = source.grab();
+                
+                // The source has run out of frames
+                if ( frame == null )
+                {
+                    break;
+                }
+                
+                DetectionMetrics.get().record(DetectionMetrics.Stage.CAPTURE, start);
+                DetectionMetrics.get().getCaptureRate().mark();
+                
+                if ( !paused && !stopCamera )
+                {
+                    view.publish(frame);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    private void setPaused(boolean paused)
+    {
+        synchronized (pauseLock)
+        {
+            this.paused = paused;
+            pauseLock.notifyAll();
+        }
+    }
+    
+    private void waitWhilePaused() throws InterruptedException
+    {
+        synchronized (pauseLock)
+        {
+            while (paused && !stopCamera)
+            {
+                pauseLock.wait();
+            }
         }
-        stopCamera=true;
     }   
 }
@@ -15,41 +15,88 @@
  */
 package pinglis.ml.yolocamfx;
 
-import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleObjectProperty;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 
 /**
  * Extension of a standard ImageView class where the image is set by your 
- * webcam.
+ * webcam or another frame source.
+ * <p>
+ * Other consumers of the frames, such as the yolo task, register a 
+ * {@link FrameMailbox} to be handed each new frame on the capture thread.
+ * <p>
+ * At most one display update is waiting on the FX thread at a time and it
+ * shows the latest frame, so a busy FX thread skips frames rather than 
+ * queueing them. The frames are written into one reused image.
  */
 public class WebCamView 
         extends ImageView
 {
-    private final ObjectProperty<BufferedImage> imageBufferProperty = new SimpleObjectProperty<>();
+    private final ObjectProperty<Frame> frameProperty = new SimpleObjectProperty<>();
     private final BooleanProperty pausedProperty = new SimpleBooleanProperty();
+    private final List<FrameMailbox> consumers = new CopyOnWriteArrayList<>();
+    private final AtomicReference<Frame> displayFrame = new AtomicReference<>();
+    private final FxImageWriter imageWriter = new FxImageWriter();
     private WebCamTask task;
  
     public WebCamView()
     {
-        this.imageBufferProperty.addListener((a,b,c)->{
-            setImage(SwingFXUtils.toFXImage(c,null));
+        this.frameProperty.addListener((a,b,c)->{
+            setImage(imageWriter.write(c.getImage()));
         });
     }
     
     /**
-     * A property containing a copy of the current Image object but in 
-     * BufferedImage format
+     * A property containing the current frame, with a copy of the current
+     * Image object but in BufferedImage format. Only updated on the FX 
+     * thread.
      * @return ObjectProperty
      */
-    public ObjectProperty<BufferedImage> imageBufferProperty()
+    public ObjectProperty<Frame> frameProperty()
     {
-        return imageBufferProperty;
+        return frameProperty;
+    }
+    
+    /**
+     * Register a mailbox to be given every new frame
+     * @param mailbox 
+     */
+    public void addConsumer(FrameMailbox mailbox)
+    {
+        consumers.add(mailbox);
+    }
+    
+    public void removeConsumer(FrameMailbox mailbox)
+    {
+        consumers.remove(mailbox);
+    }
+    
+    /**
+     * Pass a newly captured frame to the consumers and the display. Called 
+     * on the capture thread.
+     * @param frame 
+     */
+    void publish(Frame frame)
+    {
+        for (FrameMailbox mailbox : consumers)
+        {
+            mailbox.offer(frame);
+        }
+        
+        // Only schedule a display update if the last one has been shown, so
+        // a busy FX thread skips to the latest frame
+        if ( displayFrame.getAndSet(frame) == null )
+        {
+            Platform.runLater(()->frameProperty.set(displayFrame.getAndSet(null)));
+        }
     }
     
     /**
@@ -67,12 +114,22 @@ public class WebCamView
      */
     public void start()
     {
-        task = new WebCamTask(this);
+        start(new WebCamFrameSource());
+    }
+    
+    /**
+     * The the background thread which grabs the input from the given source
+     * and updates the view
+     * @param source
+     */
+    public void start(FrameSource source)
+    {
+        task = new WebCamTask(this, source);
         task.start();
     }
     
     /**
-     * Close the stream from the webcam
+     * Close the stream from the webcam or frame source
      */
     public void close()
     {
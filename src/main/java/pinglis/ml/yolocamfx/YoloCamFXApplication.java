@@ -15,8 +15,10 @@
  */
 package pinglis.ml.yolocamfx;
 
+import java.io.File;
 import java.io.IOException;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Label;
@@ -24,17 +26,16 @@ import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import javafx.animation.AnimationTimer;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Slider;
+import javafx.scene.control.Spinner;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.layout.StackPane;
-import javafx.scene.paint.Color;
-import javafx.scene.text.TextAlignment;
 
 /**
  * Main entry point for the YoloCamFX project. 
@@ -63,8 +64,13 @@ public class YoloCamFXApplication
         extends Application
 {
     private static final float DEFAULT_THRESHOLD = 0.45f;
-    private static final ObservableList<String> MODELS = FXCollections.observableArrayList("Tiny Yolo", "YOLO");
+    private static final ObservableList<YoloModel> MODELS = FXCollections.observableArrayList(YoloModel.values());
     private Scene scene;
+    private YoloTask yolo;
+    private DetectionLog detectionLog;
+    private DetectionServer detectionServer;
+    private final AtomicReference<VideoRecorder> recorder = new AtomicReference<>();
+    private boolean autoSelecting;
     
     /**
      * Start the application
@@ -74,11 +80,39 @@ public class YoloCamFXApplication
     public static void main(String[] args) 
             throws IOException
     {
-        launch();
+        launch(args);
     }
 
     /**
      * Set up the UI and start the webcam and yolo tasks.
+     * <p>
+     * The frames come from the webcam unless a different source is given
+     * with {@code --source=<spec>}, see {@link FrameSources}. All the models
+     * are preloaded and kept warm, within {@code --model-budget=<MB>} of 
+     * memory, so switching between them is instant. Detection runs as a 
+     * pipeline of overlapping stages unless {@code --pipeline=false}. The 
+     * timings of each stage are published over JMX, see 
+     * {@link DetectionMetrics}, and can be drawn over the video. The overlap
+     * of the tiles used to find small objects is set with
+     * {@code --tile-overlap=<0..1>}. Detection can be limited to regions of
+     * interest with {@code --roi=<shapes>} and areas ignored with 
+     * {@code --exclude=<shapes>}, see {@link RegionMask#parse(String, String)}.
+     * The <i>Auto</i> button hands the choice of model, input size and 
+     * capture resolution to a {@link QualityController} aiming for
+     * {@code --target-latency=<ms>}, 250 by default, or 
+     * {@code --target-fps=<n>}. It starts on if either is given. The 
+     * networks run in {@code --precision=half|float|double}, see 
+     * {@link Precision}. The detections are appended to a 
+     * {@link DetectionLog} with {@code --log=<dir>}, and a log is played back
+     * over the video instead of running a model with 
+     * {@code --replay=<dir>}, at {@code --replay-speed=<n>} times real time.
+     * With {@code --serve=<port>} the detections are streamed to other 
+     * processes, see {@link DetectionServer}. The <i>Record</i> button 
+     * records the video with the boxes drawn on to {@code --record=<path>},
+     * by default {@code recording.avi}, see {@link VideoRecorder}. Classes
+     * can be given their own thresholds with 
+     * {@code --class-thresholds=<class:t,...>} and detection limited to 
+     * {@code --classes=<class,...>}, see {@link YoloDecoder}.
      * 
      * @param stage
      * @throws Exception 
@@ -92,7 +126,8 @@ public class YoloCamFXApplication
         
         // Create the webcam view and start it running
         WebCamView camView = new WebCamView();
-        camView.start();
+        FrameSource source = FrameSources.create(getParameters().getNamed().get("source"), true);
+        camView.start(source);
         
         // Create a canvas for the yolo to draw on
         Canvas canvas = new Canvas();
@@ -104,7 +139,7 @@ public class YoloCamFXApplication
         root.setCenter(stack);
         
         // Create a combo to select the model to run
-        ComboBox modelCombo = new ComboBox();
+        ComboBox<YoloModel> modelCombo = new ComboBox<>();
         modelCombo.setItems(MODELS);
         modelCombo.getSelectionModel().select(0);
         
@@ -125,12 +160,42 @@ public class YoloCamFXApplication
         pauseButton.setText("Pause Camera");
         camView.pausedProperty().bind(pauseButton.selectedProperty());
         
+        // Create a button to skip frames where nothing has moved
+        ToggleButton motionButton = new ToggleButton();
+        motionButton.setText("Motion Gate");
+        
+        // Create a spinner to run the model on only every Nth frame
+        Spinner<Integer> strideSpinner = new Spinner<>(1, 10, 1);
+        strideSpinner.setPrefWidth(70);
+        
+        // Create a button to track the objects between detections
+        ToggleButton trackButton = new ToggleButton();
+        trackButton.setText("Track");
+        
+        // Create a button to run the frames as overlapping tiles
+        ToggleButton tilesButton = new ToggleButton();
+        tilesButton.setText("Tiles");
+        
+        // Create a button to let the model and input size follow the load
+        ToggleButton autoButton = new ToggleButton();
+        autoButton.setText("Auto");
+        
+        // Create a button to record the video with the boxes drawn on
+        ToggleButton recordButton = new ToggleButton();
+        recordButton.setText("Record");
+        
+        // Create a button to show the frame rates and stage timings
+        ToggleButton statsButton = new ToggleButton();
+        statsButton.setText("Stats");
+        
         // Add the controls to the bottom pane
         HBox hbBottom = new HBox(10, 
                 new Label("Model:"), modelCombo, 
                 new Label("Filter duplicates:"), filterCombo,
                 new Label("Confidence Threshold: "), sldThreshold,
-                pauseButton
+                pauseButton, motionButton,
+                new Label("Detect every:"), strideSpinner, trackButton,
+                tilesButton, autoButton, recordButton, statsButton
         );
         hbBottom.setAlignment(Pos.CENTER);
         root.setBottom(hbBottom);
@@ -143,76 +208,318 @@ public class YoloCamFXApplication
         stage.setTitle("YoloWebCamFX");
         stage.show();
         
-        // Start the yolo algorithm running using the default selected model
-        YoloTask yolo = new YoloTask();
-        yolo.imageBufferProperty().bind(camView.imageBufferProperty());
+        DetectionMetrics metrics = DetectionMetrics.get();
+        metrics.register();
+        
+        // Play back a log rather than loading any models if asked
+        String replayDir = getParameters().getNamed().get("replay");
+        if ( replayDir != null )
+        {
+            DetectionReplay replay = new DetectionReplay(new File(replayDir), 
+                    Double.parseDouble(getParameters().getNamed().getOrDefault("replay-speed", "1")), true);
+            replay.setThreshold(sldThreshold.getValue());
+            sldThreshold.valueProperty().addListener((a,b,c)->replay.setThreshold(c.doubleValue()));
+            replay.start();
+            startReplayTimer(replay, new OverlayRenderer(canvas));
+            return;
+        }
+        
+        // Choose the precision before any model is loaded
+        String precision = getParameters().getNamed().get("precision");
+        if ( precision != null )
+        {
+            Precision.activate(Precision.forName(precision));
+        }
+        
+        // Start the yolo algorithm running using the default selected model,
+        // loading the others in the background
+        String budget = getParameters().getNamed().get("model-budget");
+        ModelRegistry registry = budget == null 
+                ? new ModelRegistry()
+                : new ModelRegistry(Long.parseLong(budget) * 1024 * 1024);
+        yolo = new YoloTask(new FrameMailbox(), registry);
+        if ( !"false".equals(getParameters().getNamed().get("pipeline")) )
+        {
+            yolo.setPipeline(new DetectionPipeline());
+        }
+        camView.addConsumer(yolo.getMailbox());
         yolo.thresholdProperty().bind(sldThreshold.valueProperty());
-        yolo.start(modelCombo.getSelectionModel().getSelectedIndex() == 0);
+        yolo.start(modelCombo.getSelectionModel().getSelectedItem());
         yolo.filterProperty().bind(filterCombo.valueProperty());
+        yolo.motionGateProperty().bind(motionButton.selectedProperty());
+        yolo.strideProperty().bind(strideSpinner.valueProperty());
+        for (YoloModel model : MODELS)
+        {
+            registry.preload(model);
+        }
         
-        // Monitor the combo and if select changes, change the yolo model running
-        modelCombo.getSelectionModel().selectedIndexProperty().addListener((a,b,c)->{
-            yolo.close();
-            yolo.start(c.intValue()==0);
+        // Give classes their own thresholds or only look for some of them,
+        // in the models that have those classes
+        String classThresholds = getParameters().getNamed().get("class-thresholds");
+        String classes = getParameters().getNamed().get("classes");
+        for (YoloModel model : MODELS)
+        {
+            try
+            {
+                yolo.setDecoder(model, YoloDecoder.parse(model, classThresholds, classes));
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println(e.getMessage() + ", detecting every class");
+            }
+        }
+        
+        // Tile the frames to find smaller objects when asked
+        String overlap = getParameters().getNamed().getOrDefault("tile-overlap", "0.2");
+        TiledInference tiling = new TiledInference(416, Double.parseDouble(overlap), true, 8, null);
+        tilesButton.selectedProperty().addListener((a,b,c)->{
+            yolo.setTiling(c ? tiling : null);
+        });
+        
+        // Only run the parts of the frame that matter if given regions
+        String roi = getParameters().getNamed().get("roi");
+        String exclude = getParameters().getNamed().get("exclude");
+        if ( roi != null || exclude != null )
+        {
+            yolo.setRegionMask(RegionMask.parse(roi, exclude));
+        }
+        
+        // Let the controller pick the model and input size to meet the 
+        // target when on, and go back to the chosen model at full quality 
+        // when off
+        String targetFps = getParameters().getNamed().get("target-fps");
+        String targetLatency = getParameters().getNamed().get("target-latency");
+        QualityController quality = targetFps != null 
+                ? QualityController.forFps(Double.parseDouble(targetFps))
+                : QualityController.forLatency(Double.parseDouble(targetLatency != null ? targetLatency : "250"));
+        quality.setFrameSource(source);
+        quality.setListener(level->{
+            yolo.setInputSize(level.getInputSize());
+            yolo.setModel(level.getModel());
+            Platform.runLater(()->{
+                autoSelecting = true;
+                modelCombo.getSelectionModel().select(level.getModel());
+                autoSelecting = false;
+            });
+        });
+        autoButton.selectedProperty().addListener((a,b,c)->{
+            if ( c )
+            {
+                quality.reset(modelCombo.getSelectionModel().getSelectedItem(), yolo.getInputSize());
+                yolo.setQualityController(quality);
+            }
+            else
+            {
+                yolo.setQualityController(null);
+                yolo.setInputSize(416);
+                source.setResolutionScale(1);
+            }
+        });
+        autoButton.setSelected(targetFps != null || targetLatency != null);
+        
+        // Record the detections if given a log directory
+        String logDir = getParameters().getNamed().get("log");
+        if ( logDir != null )
+        {
+            detectionLog = new DetectionLog(new File(logDir));
+            yolo.setDetectionLog(detectionLog);
+        }
+        
+        // Stream the detections to other processes if given a port
+        String port = getParameters().getNamed().get("serve");
+        if ( port != null )
+        {
+            detectionServer = new DetectionServer(Integer.parseInt(port));
+            detectionServer.register();
+            yolo.setDetectionServer(detectionServer);
+        }
+        
+        // Record each frame shown with the boxes found so far while the 
+        // button is down, finishing the recording off the FX thread
+        File recording = new File(getParameters().getNamed().getOrDefault("record", "recording.avi"));
+        recordButton.selectedProperty().addListener((a,b,c)->{
+            try
+            {
+                if ( c )
+                {
+                    recorder.set(new VideoRecorder(recording));
+                }
+                else
+                {
+                    stopRecording(recorder.getAndSet(null));
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(System.err);
+                recordButton.setSelected(false);
+            }
+        });
+        camView.frameProperty().addListener((a,b,c)->{
+            VideoRecorder current = recorder.get();
+            if ( current != null && c != null )
+            {
+                DetectionFrame detections = yolo.acquireDetections();
+                try
+                {
+                    current.offer(c, detections);
+                }
+                finally
+                {
+                    if ( detections != null )
+                    {
+                        detections.release();
+                    }
+                }
+            }
+        });
+        
+        // Monitor the combo and if select changes, swap to the new model
+        // when it is ready. A model picked by hand while on auto restarts 
+        // the controller from that model.
+        modelCombo.getSelectionModel().selectedItemProperty().addListener((a,b,c)->{
+            if ( autoButton.isSelected() && !autoSelecting )
+            {
+                quality.reset(c, yolo.getInputSize());
+            }
+            else
+            {
+                yolo.setModel(c);
+            }
         });
         
-        // Start a animation timer to draw the current bounding boxes on the screen
+        // Start a animation timer to draw the current bounding boxes on the 
+        // screen whenever they change
+        OverlayRenderer overlay = new OverlayRenderer(canvas);
         AnimationTimer timer = new AnimationTimer()
         {
             @Override
             public void handle(long now)
             {          
-                drawBoxes(yolo, canvas);
+                long start = System.nanoTime();
+                overlay.setMetrics(statsButton.isSelected() ? metrics : null);
+                if ( drawBoxes(yolo, camView, trackButton.isSelected(), overlay) )
+                {
+                    metrics.record(DetectionMetrics.Stage.RENDER, start);
+                    metrics.getRenderRate().mark();
+                }
             }
         };
         timer.start();    
     }
     
     /**
-     * Draw the current predictions from the yolo application on the given
-     * canvas with their scores
+     * Stop detecting and finish writing the log, the recording and the 
+     * stream to the clients
+     * @throws Exception 
+     */
+    @Override
+    public void stop() throws Exception
+    {
+        if ( yolo != null )
+        {
+            yolo.setDetectionLog(null);
+            yolo.setDetectionServer(null);
+            yolo.close();
+        }
+        
+        VideoRecorder current = recorder.getAndSet(null);
+        if ( current != null )
+        {
+            current.close();
+            System.err.println(current);
+        }
+        
+        if ( detectionServer != null )
+        {
+            detectionServer.close();
+        }
+        
+        if ( detectionLog != null )
+        {
+            detectionLog.close();
+        }
+    }
+    
+    /**
+     * Finish writing a recording in the background and report how it went
+     * @param recorder 
+     */
+    private void stopRecording(VideoRecorder recorder)
+    {
+        if ( recorder == null )
+        {
+            return;
+        }
+        
+        Thread thread = new Thread(()->{
+            try
+            {
+                recorder.close();
+                System.err.println(recorder);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(System.err);
+            }
+        });
+        thread.setName("VideoRecorder close");
+        thread.start();
+    }
+    
+    /**
+     * Draw the detections from the replay whenever they change
+     * @param replay
+     * @param overlay 
+     */
+    private void startReplayTimer(DetectionReplay replay, OverlayRenderer overlay)
+    {
+        AnimationTimer timer = new AnimationTimer()
+        {
+            @Override
+            public void handle(long now)
+            {
+                List<BoundingBox> boxes = replay.getDetectedBoxes();
+                overlay.draw(boxes, boxes, replay.getActiveModel());
+            }
+        };
+        timer.start();
+    }
+    
+    /**
+     * Draw the current predictions from the yolo application with their 
+     * scores, if they have changed since they were last drawn.
+     * <p>
+     * When tracking, the boxes are the tracked objects predicted to the time
+     * of the frame being shown and are labelled with their track ids, so 
+     * change with every frame.
      * @param yolo
-     * @param canvas 
+     * @param camView
+     * @param tracking
+     * @param overlay 
+     * @return true if the overlay was redrawn
      */
-    private void drawBoxes(YoloTask yolo, Canvas canvas)
+    private boolean drawBoxes(YoloTask yolo, WebCamView camView, boolean tracking, OverlayRenderer overlay)
     {
-        GraphicsContext ctx = canvas.getGraphicsContext2D();
-        ctx.setLineWidth(1);
-        ctx.setFill(Color.WHITE);
-        ctx.setTextAlign(TextAlignment.LEFT);
-            
-        double h = canvas.getHeight();
-        double w = canvas.getWidth();
-        List<BoundingBox> detectedBoxes = yolo.getDetectedBoxes();
-        
-        // First clear the canvas of the last image we wrote to it
-        ctx.clearRect(0, 0, w, h);
-        
-        // If the yolo has found some objects
-        if ( detectedBoxes != null )
-        {
-            // For detected object
-            for (BoundingBox box : detectedBoxes)
+        LoadedModel model = yolo.getActiveModel();
+        Frame frame = camView.frameProperty().get();
+        
+        if ( tracking && frame != null )
+        {
+            return overlay.needsRedraw(frame, model) 
+                    && overlay.draw(frame, yolo.getTrackedBoxes(frame.getTimestamp()), model);
+        }
+        
+        DetectionFrame detections = yolo.acquireDetections();
+        try
+        {
+            return overlay.draw(detections, model);
+        }
+        finally
+        {
+            if ( detections != null )
             {
-                int x1 = (int)Math.max(0, Math.round(box.getX1() * w));
-                int y1 = (int)Math.max(15, Math.round(box.getY1() * h));
-                int x2 = (int)Math.min(w-1, Math.round(box.getX2() * w));
-                int y2 = (int)Math.min(h-1, Math.round(box.getY2() * h));
-                
-                int rectW = x2 - x1;
-                int rectH = y2 - y1;
-                
-                int tx = x1;
-                int ty = y1 - 2;
-                        
-                ctx.setLineWidth(2);
-                ctx.setStroke(box.getPaint());
-                ctx.strokeRect(x1, y1, rectW, rectH);
-                
-                ctx.setLineWidth(1);
-                String text = String.format("%s [%.2f%%]", box.getLabel(), box.getConfidence());
-                ctx.strokeText(text, tx, ty);
-                ctx.fillText(text, tx, ty);
+                detections.release();
             }
         }
     }
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.util.Arrays;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * Reads the candidate boxes out of the output of a yolo network.
+ * <p>
+ * The score of a box is its objectness times the probability of its class,
+ * so no score can beat the highest objectness. That maximum is found with a
+ * single op on the output array and a frame where it is under the lowest 
+ * threshold, such as a background with nothing in it, is rejected without 
+ * reading anything more. Otherwise the output is copied out in one go and
+ * only the anchors whose objectness reaches the lowest threshold have their
+ * classes scored, with the boxes that pass written straight into 
+ * {@link CandidateBoxes}. Nothing is allocated per anchor or per box.
+ * <p>
+ * Each class can have its own threshold in place of the frame's, and 
+ * decoding can be limited to a set of allowed classes. A box takes the 
+ * highest scoring class that passes its threshold.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class YoloDecoder
+{
+    /** Above any score, for classes that are not allowed */
+    private static final float DISABLED = 2;
+    
+    private final float[] classThresholds;
+    private final boolean[] allowedClasses;
+
+    /**
+     * Every class at the frame's threshold
+     */
+    public YoloDecoder()
+    {
+        this(null, null);
+    }
+    
+    /**
+     * @param classThresholds the threshold of each class between 0 and 1, 
+     * NaN to use the frame's threshold, or null for the frame's threshold
+     * for every class
+     * @param allowedClasses whether each class may be detected, or null for
+     * all classes
+     */
+    public YoloDecoder(float[] classThresholds, boolean[] allowedClasses)
+    {
+        this.classThresholds = classThresholds == null ? null : classThresholds.clone();
+        this.allowedClasses = allowedClasses == null ? null : allowedClasses.clone();
+    }
+    
+    /**
+     * Build a decoder from lists of class names or indices
+     * @param model the model whose classes are named
+     * @param thresholds comma separated class:threshold pairs such as 
+     * {@code person:0.6,car:0.3}, or null
+     * @param classes comma separated classes to allow, or null for all
+     * @return YoloDecoder
+     */
+    public static YoloDecoder parse(YoloModel model, String thresholds, String classes)
+    {
+        int count = model.getClasses().length;
+        float[] classThresholds = null;
+        boolean[] allowedClasses = null;
+        
+        if ( thresholds != null && !thresholds.trim().isEmpty() )
+        {
+            classThresholds = new float[count];
+            Arrays.fill(classThresholds, Float.NaN);
+            
+            for (String pair : thresholds.split(","))
+            {
+                int colon = pair.lastIndexOf(':');
+                if ( colon < 0 )
+                {
+                    throw new IllegalArgumentException("Expected class:threshold but got " + pair);
+                }
+                classThresholds[classIndex(model, pair.substring(0, colon))] = 
+                        Float.parseFloat(pair.substring(colon + 1).trim());
+            }
+        }
+        
+        if ( classes != null && !classes.trim().isEmpty() )
+        {
+            allowedClasses = new boolean[count];
+            for (String name : classes.split(","))
+            {
+                allowedClasses[classIndex(model, name)] = true;
+            }
+        }
+        
+        return new YoloDecoder(classThresholds, allowedClasses);
+    }
+    
+    private static int classIndex(YoloModel model, String name)
+    {
+        String trimmed = name.trim();
+        String[] classes = model.getClasses();
+        
+        for (int i = 0; i < classes.length; i++)
+        {
+            if ( classes[i].equalsIgnoreCase(trimmed) )
+            {
+                return i;
+            }
+        }
+        
+        try
+        {
+            int index = Integer.parseInt(trimmed);
+            if ( index >= 0 && index < classes.length )
+            {
+                return index;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // Not an index either
+        }
+        throw new IllegalArgumentException(model + " has no class " + trimmed);
+    }
+    
+    /**
+     * The threshold of a class
+     * @param classIndex
+     * @param threshold the frame's threshold
+     * @return the class's own threshold, the frame's if it has none, or 
+     * more than 1 if the class is not allowed
+     */
+    public float getThreshold(int classIndex, double threshold)
+    {
+        if ( allowedClasses != null && (classIndex >= allowedClasses.length || !allowedClasses[classIndex]) )
+        {
+            return DISABLED;
+        }
+        if ( classThresholds != null && classIndex < classThresholds.length && !Float.isNaN(classThresholds[classIndex]) )
+        {
+            return classThresholds[classIndex];
+        }
+        return (float) threshold;
+    }
+    
+    /**
+     * Decode the output of one image
+     * @param output the network output, [1, anchors * (5 + classes), h, w]
+     * @param classCount the number of classes the network predicts
+     * @param threshold the frame's threshold
+     * @param into cleared then filled with the boxes that pass
+     */
+    public void decode(INDArray output, int classCount, double threshold, CandidateBoxes into)
+    {
+        decode(output, classCount, new double[] { threshold }, new CandidateBoxes[] { into });
+    }
+    
+    /**
+     * Decode the output of a minibatch of images
+     * @param output the network output, [n, anchors * (5 + classes), h, w]
+     * @param classCount the number of classes the network predicts
+     * @param thresholds the threshold of each image
+     * @param into the candidates of each image, cleared then filled with the
+     * boxes that pass
+     */
+    public void decode(INDArray output, int classCount, double[] thresholds, CandidateBoxes[] into)
+    {
+        int examples = (int) output.size(0);
+        int anchors = (int) (output.size(1) / (5 + classCount));
+        int h = (int) output.size(2);
+        int w = (int) output.size(3);
+        int cells = h * w;
+        
+        for (int i = 0; i < examples; i++)
+        {
+            into[i].clear();
+        }
+        
+        // The threshold of each class for each image, and the lowest of all
+        float[] limits = new float[examples * classCount];
+        float lowest = DISABLED;
+        for (int i = 0; i < examples; i++)
+        {
+            for (int c = 0; c < classCount; c++)
+            {
+                limits[i * classCount + c] = getThreshold(c, thresholds[i]);
+                lowest = Math.min(lowest, limits[i * classCount + c]);
+            }
+        }
+        
+        // [n, anchors, 5 + classes, cells] with x, y, w, h, objectness and
+        // then the class probabilities
+        INDArray anchored = contiguous(output).reshape('c', examples, anchors, 5 + classCount, cells);
+        INDArray objectness = anchored.get(NDArrayIndex.all(), NDArrayIndex.all(), 
+                NDArrayIndex.point(4), NDArrayIndex.all());
+        if ( lowest >= DISABLED || objectness.maxNumber().floatValue() < lowest )
+        {
+            return;
+        }
+        
+        // Something may pass so bring the output across in one copy and
+        // only score the classes of the anchors whose objectness could
+        float[] values = floats(anchored);
+        int stride = (5 + classCount) * cells;
+        
+        for (int k = 0; k < examples * anchors * cells; k++)
+        {
+            int cell = k % cells;
+            int base = (k / cells) * stride + cell;
+            float objectnessScore = values[base + 4 * cells];
+            if ( objectnessScore < lowest )
+            {
+                continue;
+            }
+            
+            int example = k / (anchors * cells);
+            int limit = example * classCount;
+            int bestClass = -1;
+            float bestScore = 0;
+            for (int c = 0; c < classCount; c++)
+            {
+                float score = objectnessScore * values[base + (5 + c) * cells];
+                if ( score >= limits[limit + c] && score > bestScore )
+                {
+                    bestClass = c;
+                    bestScore = score;
+                }
+            }
+            if ( bestClass < 0 )
+            {
+                continue;
+            }
+            
+            // The centre is in the cell, the size in grid cells
+            float cx = values[base] + cell % w;
+            float cy = values[base + cells] + cell / w;
+            float bw = values[base + 2 * cells] / 2;
+            float bh = values[base + 3 * cells] / 2;
+            
+            into[example].add(bestClass, bestScore, 
+                    (cx - bw) / w, (cy - bh) / h, (cx + bw) / w, (cy + bh) / h);
+        }
+    }
+    
+    private static INDArray contiguous(INDArray array)
+    {
+        return array.ordering() == 'c' && !array.isView() ? array : array.dup('c');
+    }
+    
+    private static float[] floats(INDArray array)
+    {
+        return contiguous(array).data().asFloat();
+    }
+}
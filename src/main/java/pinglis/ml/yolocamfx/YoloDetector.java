@@ -0,0 +1,398 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import pinglis.ml.yolocamfx.DetectionMetrics.Stage;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Runs a yolo network over images and returns what it finds as bounding 
+ * boxes. This has no dependency on JavaFX so can be used on a server.
+ * <p>
+ * A detector may be shared between threads. Image preprocessing runs on the
+ * calling thread and the forward pass through the network is serialised.
+ * <p>
+ * The networks are fully convolutional so the input size can be changed, 
+ * in multiples of 32, to trade accuracy for speed. The boxes are always 
+ * returned in coordinates between 0 and 1 of the image.
+ * <p>
+ * Boxes are read out of the network output by a {@link YoloDecoder}, which
+ * scores each by its objectness times its class probability and can hold 
+ * per class thresholds and a list of allowed classes.
+ */
+public class YoloDetector
+{
+    final static int INPUT_WIDTH = 416;
+    final static int INPUT_HEIGHT = 416;
+    private final static int STRIDE = 32;
+    
+    private final YoloModel model;
+    private final ComputationGraph graph;
+    private final ThreadLocal<ImagePreprocessor> fastPreprocessor = new ThreadLocal<>();
+    private final ThreadLocal<ImagePreprocessor> nativePreprocessor = new ThreadLocal<>();
+    private volatile int inputSize = INPUT_WIDTH;
+    private volatile double threshold = 0.45;
+    private volatile boolean filterDuplicates = true;
+    private volatile boolean fastPreprocessing = true;
+    private volatile NonMaxSuppression nonMaxSuppression = new NonMaxSuppression();
+    private volatile YoloDecoder decoder = new YoloDecoder();
+    private final ThreadLocal<CandidateBoxes> candidates = ThreadLocal.withInitial(CandidateBoxes::new);
+    private final ThreadLocal<CandidateBoxes[]> batchCandidates = ThreadLocal.withInitial(()->new CandidateBoxes[0]);
+    private final DetectionMetrics metrics = DetectionMetrics.get();
+    
+    /**
+     * Create a detector for the given model, loading its pretrained network
+     * @param model
+     * @throws IOException 
+     */
+    public YoloDetector(YoloModel model) throws IOException
+    {
+        this(model, model.load());
+    }
+    
+    /**
+     * Create a detector for the given model using an already loaded network
+     * @param model
+     * @param graph 
+     */
+    public YoloDetector(YoloModel model, ComputationGraph graph)
+    {
+        this.model = model;
+        this.graph = graph;
+    }
+
+    public YoloModel getModel()
+    {
+        return model;
+    }
+
+    public ComputationGraph getGraph()
+    {
+        return graph;
+    }
+
+    public double getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Set the confidence threshold, between 0 and 1, below which detections 
+     * are ignored
+     * @param threshold 
+     */
+    public void setThreshold(double threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    public boolean isFilterDuplicates()
+    {
+        return filterDuplicates;
+    }
+
+    public void setFilterDuplicates(boolean filterDuplicates)
+    {
+        this.filterDuplicates = filterDuplicates;
+    }
+    
+    public NonMaxSuppression getNonMaxSuppression()
+    {
+        return nonMaxSuppression;
+    }
+
+    /**
+     * Set how duplicates are removed when filtering is on
+     * @param nonMaxSuppression 
+     */
+    public void setNonMaxSuppression(NonMaxSuppression nonMaxSuppression)
+    {
+        this.nonMaxSuppression = nonMaxSuppression;
+    }
+    
+    public YoloDecoder getDecoder()
+    {
+        return decoder;
+    }
+    
+    /**
+     * Set the per class thresholds and allowed classes used to read boxes
+     * out of the network output
+     * @param decoder 
+     */
+    public void setDecoder(YoloDecoder decoder)
+    {
+        this.decoder = decoder;
+    }
+    
+    public int getInputSize()
+    {
+        return inputSize;
+    }
+
+    /**
+     * Set the width and height images are scaled to before going through 
+     * the network. Smaller is faster, larger finds smaller objects.
+     * @param inputSize a multiple of 32, 416 by default
+     */
+    public void setInputSize(int inputSize)
+    {
+        if ( inputSize < STRIDE || inputSize % STRIDE != 0 )
+        {
+            throw new IllegalArgumentException("Input size must be a multiple of " + STRIDE + " but was " + inputSize);
+        }
+        this.inputSize = inputSize;
+    }
+    
+    public boolean isFastPreprocessing()
+    {
+        return fastPreprocessing;
+    }
+
+    /**
+     * Choose between the fused {@link FastImagePreprocessor} and the 
+     * original {@link NativeImagePreprocessor}
+     * @param fastPreprocessing 
+     */
+    public void setFastPreprocessing(boolean fastPreprocessing)
+    {
+        this.fastPreprocessing = fastPreprocessing;
+    }
+    
+    /**
+     * The preprocessor for the calling thread
+     * @return ImagePreprocessor
+     */
+    private ImagePreprocessor preprocessor()
+    {
+        boolean fast = fastPreprocessing;
+        int size = inputSize;
+        ThreadLocal<ImagePreprocessor> local = fast ? fastPreprocessor : nativePreprocessor;
+        ImagePreprocessor preprocessor = local.get();
+        
+        if ( preprocessor == null || preprocessor.getWidth() != size || preprocessor.getHeight() != size )
+        {
+            preprocessor = newPreprocessor(fast, size);
+            local.set(preprocessor);
+        }
+        return preprocessor;
+    }
+    
+    /**
+     * Detect the objects in the image using the current threshold and 
+     * duplicate filter settings
+     * @param image
+     * @return List of BoundingBox
+     * @throws IOException 
+     */
+    public List<BoundingBox> detect(BufferedImage image) throws IOException
+    {
+        return detect(image, threshold, filterDuplicates);
+    }
+    
+    /**
+     * Detect the objects in the image
+     * @param image
+     * @param threshold confidence threshold between 0 and 1
+     * @param filter whether to remove duplicate detections of the same object
+     * @return List of BoundingBox
+     * @throws IOException 
+     */
+    public List<BoundingBox> detect(BufferedImage image, double threshold, boolean filter) throws IOException
+    {
+        long start = System.nanoTime();
+        INDArray input = preprocessor().preprocess(image);
+        metrics.record(Stage.PREPROCESS, start);
+        
+        return decode(forward(input), threshold, filter);
+    }
+    
+    /**
+     * Create a new preprocessor of the kind this detector is set to use, for
+     * callers that run the stages of detection separately. A preprocessor 
+     * may reuse its output array so must not be used again until the 
+     * previous input has been through {@link #forward(INDArray)}.
+     * @return ImagePreprocessor
+     */
+    public ImagePreprocessor newPreprocessor()
+    {
+        return newPreprocessor(fastPreprocessing, inputSize);
+    }
+    
+    private static ImagePreprocessor newPreprocessor(boolean fast, int size)
+    {
+        return fast 
+                ? new FastImagePreprocessor(size, size) 
+                : new NativeImagePreprocessor(size, size);
+    }
+    
+    /**
+     * Run preprocessed images through the network
+     * @param input
+     * @return the network output
+     */
+    public INDArray forward(INDArray input)
+    {
+        long start = System.nanoTime();
+        INDArray output = graph.outputSingle(input);
+        metrics.record(Stage.INFERENCE, start);
+        metrics.getInferenceRate().mark((int) input.size(0));
+        return output;
+    }
+    
+    /**
+     * Decode the network output for a single image into bounding boxes
+     * @param output
+     * @param threshold confidence threshold between 0 and 1
+     * @param filter whether to remove duplicate detections of the same object
+     * @return List of BoundingBox
+     */
+    public List<BoundingBox> decode(INDArray output, double threshold, boolean filter)
+    {
+        long start = System.nanoTime();
+        CandidateBoxes boxes = candidates.get();
+        decoder.decode(output, model.getClasses().length, threshold, boxes);
+        metrics.record(Stage.DECODE, start);
+        
+        return finish(boxes, threshold, filter);
+    }
+    
+    /**
+     * Detect the objects in several images with a single pass through the
+     * network using the current threshold and duplicate filter settings
+     * @param images
+     * @return a List of BoundingBox for each image, in the same order
+     * @throws IOException 
+     */
+    public List<List<BoundingBox>> detect(List<BufferedImage> images) throws IOException
+    {
+        double[] thresholds = new double[images.size()];
+        boolean[] filters = new boolean[images.size()];
+        
+        Arrays.fill(thresholds, threshold);
+        Arrays.fill(filters, filterDuplicates);
+        
+        return detect(images, thresholds, filters);
+    }
+    
+    /**
+     * Detect the objects in several images with a single pass through the
+     * network. The images are stacked into one minibatch and decoded 
+     * together, each with its own threshold and filter setting.
+     * 
+     * @param images
+     * @param thresholds confidence threshold for each image
+     * @param filters whether to remove duplicates for each image
+     * @return a List of BoundingBox for each image, in the same order
+     * @throws IOException 
+     */
+    public List<List<BoundingBox>> detect(List<BufferedImage> images, double[] thresholds, boolean[] filters) throws IOException
+    {
+        int count = images.size();
+        
+        long start = System.nanoTime();
+        INDArray batch = preprocessor().preprocess(images);
+        metrics.record(Stage.PREPROCESS, start);
+        INDArray output = forward(batch);
+        
+        // Decode the whole batch at once, each image at its own threshold
+        CandidateBoxes[] boxes = batchCandidates(count);
+        start = System.nanoTime();
+        decoder.decode(output, model.getClasses().length, thresholds, boxes);
+        metrics.record(Stage.DECODE, start);
+        
+        List<List<BoundingBox>> results = new ArrayList<>(count);
+        
+        for (int i = 0; i < count; i++)
+        {
+            results.add(finish(boxes[i], thresholds[i], filters[i]));
+        }
+        
+        return results;
+    }
+    
+    /**
+     * This thread's candidates for each image of a batch
+     */
+    private CandidateBoxes[] batchCandidates(int count)
+    {
+        CandidateBoxes[] boxes = batchCandidates.get();
+        
+        if ( boxes.length < count )
+        {
+            boxes = Arrays.copyOf(boxes, count);
+            for (int i = 0; i < count; i++)
+            {
+                if ( boxes[i] == null )
+                {
+                    boxes[i] = new CandidateBoxes();
+                }
+            }
+            batchCandidates.set(boxes);
+        }
+        return boxes;
+    }
+    
+    /**
+     * Remove duplicates from the candidates if asked and convert them into
+     * bounding boxes
+     */
+    private List<BoundingBox> finish(CandidateBoxes boxes, double threshold, boolean filter)
+    {
+        if ( filter )
+        {
+            long start = System.nanoTime();
+            nonMaxSuppression.apply(boxes, (float) threshold);
+            metrics.record(Stage.NMS, start);
+        }
+        
+        long start = System.nanoTime();
+        List<BoundingBox> converted = convert(boxes);
+        metrics.record(Stage.CONVERT, start);
+        return converted;
+    }
+    
+    /**
+     * Convert candidates into bounding boxes with their class labels
+     * @param candidates
+     * @return List of BoundingBox
+     */
+    List<BoundingBox> convert(CandidateBoxes candidates)
+    {
+        List<BoundingBox> boxes = new ArrayList<>(candidates.size());
+        
+        for (int i = 0; i < candidates.size(); i++)
+        {
+            // Get its class name (label)
+            int classIndex = candidates.getClassIndex(i);
+            String cls = model.getClassName(classIndex);
+            
+            // Get its confidence as a percentage
+            double confidence = candidates.getScore(i) * 100;
+            
+            boxes.add(new BoundingBox(classIndex, cls, confidence, 
+                    candidates.getX1(i), candidates.getY1(i), candidates.getX2(i), candidates.getY2(i)));
+        }
+        
+        return boxes;
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line entry point that runs yolo over a directory of images or a
+ * video file without any UI, as fast as it can, and writes what it finds
+ * as JSON Lines or CSV.
+ * <p>
+ * Usage:
+ * <pre>
+ * java pinglis.ml.yolocamfx.YoloHeadless --source=dir:images [options]
+ * 
+ *   --source=&lt;spec&gt;      frame source, see {@link FrameSources}
+ *   --model=tiny|yolo2    model to run (default tiny)
+ *   --threshold=&lt;0..1&gt;   confidence threshold (default 0.45)
+ *   --filter=true|false   filter duplicate detections (default true)
+ *   --format=jsonl|csv    output format (default jsonl)
+ *   --output=&lt;file&gt;      output file (default standard out)
+ *   --workers=&lt;n&gt;        worker threads (default number of processors)
+ *   --frames=&lt;n&gt;         stop after n frames (default all)
+ *   --batch=&lt;n&gt;          run up to n frames per forward pass (default 1)
+ *   --max-wait=&lt;ms&gt;      longest to wait for a batch to fill (default 50)
+ *   --preprocess=fast|native  image preprocessing path (default fast)
+ *   --iou=&lt;0..1&gt;         overlap at which duplicates are removed (default 0.5)
+ *   --nms-per-class=true|false  only remove duplicates of the same class (default true)
+ *   --soft-nms=true|false decay the scores of duplicates instead (default false)
+ *   --pipeline=true|false run preprocess, inference and decode as overlapping 
+ *                         stages instead of using workers (default false)
+ *   --preprocess-threads=&lt;n&gt;  pipeline preprocess threads (default 1)
+ *   --decode-threads=&lt;n&gt;  pipeline decode threads (default 1)
+ *   --queue-depth=&lt;n&gt;    frames queued between pipeline stages or for each
+ *                         replica (default 1)
+ *   --tiles=true|false    run each frame as overlapping tiles (default false)
+ *   --tile-size=&lt;px&gt;     tile width and height in frame pixels (default 416)
+ *   --tile-overlap=&lt;0..1&gt; fraction of a tile shared with its neighbour (default 0.2)
+ *   --tile-full-frame=true|false  also run the whole frame (default true)
+ *   --tile-batch=&lt;n&gt;     tiles per forward pass (default 8)
+ *   --roi=&lt;shapes&gt;      regions of interest to run instead of the whole 
+ *                         frame, see {@link RegionMask#parse(String, String)}
+ *   --exclude=&lt;shapes&gt;  areas where detections are ignored
+ *   --replicas=&lt;n&gt;       run frames on n copies of the network sharing its
+ *                         parameters, see {@link ReplicaPool} (default 1)
+ *   --replica-threads=&lt;n&gt;  threads each replica's forward pass may use 
+ *                         (default ND4J's choice)
+ *   --precision=half|float|double  precision the network runs in, falling
+ *                         back if the backend lacks it (default float)
+ *   --log=&lt;dir&gt;          also append the detections to a binary log that can
+ *                         be replayed or exported, see {@link DetectionLog}
+ *   --serve=&lt;port&gt;      also stream the detections to TCP clients on 
+ *                         localhost, see {@link DetectionServer}
+ *   --record=&lt;path&gt;     also record the frames with the boxes drawn on, as
+ *                         .avi, .mjpeg or a directory of images, see 
+ *                         {@link VideoRecorder}
+ *   --record-queue=&lt;n&gt;  frames waiting to be recorded before the oldest is
+ *                         dropped (default 8)
+ *   --class-thresholds=&lt;class:t,...&gt;  thresholds of particular classes, 
+ *                         by name or index, see {@link YoloDecoder}
+ *   --classes=&lt;class,...&gt; only detect these classes (default all)
+ * </pre>
+ * Only one of {@code --roi}/{@code --exclude}, {@code --tiles}, 
+ * {@code --replicas}, {@code --batch} and {@code --pipeline} may be used at
+ * a time.
+ * <p>
+ * The number of images processed per second and the latency of each stage 
+ * are reported on standard error at the end of the run. While running the 
+ * metrics are also available over JMX, see {@link DetectionMetrics}.
+ */
+public class YoloHeadless
+{
+    private final FrameSource source;
+    private final YoloDetector detector;
+    private final DetectionWriter writer;
+    private final int workers;
+    private final long maxFrames;
+    private BatchingDetector batcher;
+    private DetectionPipeline pipeline;
+    private TiledInference tiling;
+    private RegionMask regionMask;
+    private ReplicaPool replicaPool;
+    private DetectionLog detectionLog;
+    private DetectionServer detectionServer;
+    private VideoRecorder recorder;
+
+    public YoloHeadless(FrameSource source, YoloDetector detector, DetectionWriter writer, int workers, long maxFrames)
+    {
+        this.source = source;
+        this.detector = detector;
+        this.writer = writer;
+        this.workers = workers;
+        this.maxFrames = maxFrames;
+    }
+    
+    /**
+     * Run frames through the detector in minibatches rather than one at a
+     * time
+     * @param batcher 
+     */
+    public void setBatcher(BatchingDetector batcher)
+    {
+        this.batcher = batcher;
+    }
+    
+    /**
+     * Run frames through the stages of a pipeline rather than on workers
+     * @param pipeline 
+     */
+    public void setPipeline(DetectionPipeline pipeline)
+    {
+        this.pipeline = pipeline;
+    }
+    
+    /**
+     * Run each frame as tiles on the workers
+     * @param tiling 
+     */
+    public void setTiling(TiledInference tiling)
+    {
+        this.tiling = tiling;
+    }
+    
+    /**
+     * Run only the regions of each frame in the mask on the workers
+     * @param regionMask 
+     */
+    public void setRegionMask(RegionMask regionMask)
+    {
+        this.regionMask = regionMask;
+    }
+    
+    /**
+     * Run frames on the replicas of a pool rather than on workers
+     * @param replicaPool 
+     */
+    public void setReplicaPool(ReplicaPool replicaPool)
+    {
+        this.replicaPool = replicaPool;
+    }
+    
+    /**
+     * Also append the detections of every frame to a log
+     * @param detectionLog 
+     */
+    public void setDetectionLog(DetectionLog detectionLog)
+    {
+        this.detectionLog = detectionLog;
+    }
+    
+    /**
+     * Also stream the detections of every frame to the clients of a server
+     * @param detectionServer 
+     */
+    public void setDetectionServer(DetectionServer detectionServer)
+    {
+        this.detectionServer = detectionServer;
+    }
+    
+    /**
+     * Also record every frame with its detections drawn on
+     * @param recorder 
+     */
+    public void setRecorder(VideoRecorder recorder)
+    {
+        this.recorder = recorder;
+    }
+    
+    public static void main(String[] args) 
+            throws Exception
+    {
+        Map<String, String> options = parse(args);
+        
+        if ( !options.containsKey("source") )
+        {
+            System.err.println("Usage: YoloHeadless --source=<spec> [--model=tiny|yolo2] [--threshold=0.45] "
+                    + "[--filter=true|false] [--format=jsonl|csv] [--output=<file>] [--workers=<n>] [--frames=<n>] "
+                    + "[--batch=<n>] [--max-wait=<ms>] [--preprocess=fast|native] [--iou=0.5] "
+                    + "[--nms-per-class=true|false] [--soft-nms=true|false] [--pipeline=true|false] "
+                    + "[--preprocess-threads=<n>] [--decode-threads=<n>] [--queue-depth=<n>] "
+                    + "[--tiles=true|false] [--tile-size=<px>] [--tile-overlap=0.2] [--tile-full-frame=true|false] "
+                    + "[--tile-batch=<n>] [--roi=<shapes>] [--exclude=<shapes>] "
+                    + "[--replicas=<n>] [--replica-threads=<n>] [--precision=half|float|double] "
+                    + "[--log=<dir>] [--serve=<port>] [--record=<path>] [--record-queue=<n>] "
+                    + "[--class-thresholds=<class:t,...>] [--classes=<class,...>]");
+            System.exit(2);
+        }
+        
+        List<String> modes = modes(options);
+        if ( modes.size() > 1 )
+        {
+            System.err.println("Cannot combine " + String.join(", ", modes) 
+                    + ": use only one of --roi/--exclude, --tiles, --replicas, --batch and --pipeline");
+            System.exit(2);
+        }
+        
+        DetectionMetrics.get().register();
+        Precision.activate(Precision.forName(options.getOrDefault("precision", "float")));
+        
+        YoloDetector detector = new YoloDetector(YoloModel.forName(options.getOrDefault("model", "tiny")));
+        detector.setThreshold(Double.parseDouble(options.getOrDefault("threshold", "0.45")));
+        detector.setFilterDuplicates(Boolean.parseBoolean(options.getOrDefault("filter", "true")));
+        detector.setFastPreprocessing(!"native".equals(options.getOrDefault("preprocess", "fast")));
+        detector.setNonMaxSuppression(new NonMaxSuppression(
+                Float.parseFloat(options.getOrDefault("iou", "0.5")),
+                Boolean.parseBoolean(options.getOrDefault("nms-per-class", "true")),
+                Boolean.parseBoolean(options.getOrDefault("soft-nms", "false")), 0.5f));
+        detector.setDecoder(YoloDecoder.parse(detector.getModel(), 
+                options.get("class-thresholds"), options.get("classes")));
+        
+        OutputStream out = options.containsKey("output") ? new FileOutputStream(options.get("output")) : System.out;
+        
+        try (FrameSource source = FrameSources.create(options.get("source"), false);
+             DetectionLog log = options.containsKey("log") ? new DetectionLog(new File(options.get("log"))) : null;
+             DetectionServer server = options.containsKey("serve") 
+                     ? new DetectionServer(Integer.parseInt(options.get("serve"))) : null;
+             VideoRecorder recorder = options.containsKey("record") 
+                     ? new VideoRecorder(new File(options.get("record")), 
+                             Integer.parseInt(options.getOrDefault("record-queue", "8")), 0.85f) : null;
+             DetectionWriter writer = DetectionWriter.create(options.getOrDefault("format", "jsonl"),
+                     new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))))
+        {
+            int workers = Integer.parseInt(options.getOrDefault("workers", 
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            long frames = Long.parseLong(options.getOrDefault("frames", "0"));
+            int batchSize = Integer.parseInt(options.getOrDefault("batch", "1"));
+            YoloHeadless headless = new YoloHeadless(source, detector, writer, workers, frames);
+            headless.setDetectionLog(log);
+            headless.setDetectionServer(server);
+            headless.setRecorder(recorder);
+            if ( server != null )
+            {
+                server.register();
+            }
+            
+            if ( options.containsKey("roi") || options.containsKey("exclude") )
+            {
+                headless.setRegionMask(RegionMask.parse(options.get("roi"), options.get("exclude")));
+                headless.run();
+            }
+            else if ( Boolean.parseBoolean(options.getOrDefault("tiles", "false")) )
+            {
+                headless.setTiling(new TiledInference(
+                        Integer.parseInt(options.getOrDefault("tile-size", "416")),
+                        Double.parseDouble(options.getOrDefault("tile-overlap", "0.2")),
+                        Boolean.parseBoolean(options.getOrDefault("tile-full-frame", "true")),
+                        Integer.parseInt(options.getOrDefault("tile-batch", "8")), null));
+                headless.run();
+            }
+            else if ( Integer.parseInt(options.getOrDefault("replicas", "1")) > 1 )
+            {
+                try (ReplicaPool replicas = new ReplicaPool(detector, 
+                        Integer.parseInt(options.get("replicas")),
+                        Integer.parseInt(options.getOrDefault("replica-threads", "0")),
+                        Integer.parseInt(options.getOrDefault("queue-depth", "1"))))
+                {
+                    headless.setReplicaPool(replicas);
+                    headless.run();
+                }
+            }
+            else if ( batchSize > 1 )
+            {
+                try (BatchingDetector batcher = new BatchingDetector(detector, batchSize, 
+                        Long.parseLong(options.getOrDefault("max-wait", "50"))))
+                {
+                    headless.setBatcher(batcher);
+                    headless.run();
+                }
+            }
+            else if ( Boolean.parseBoolean(options.getOrDefault("pipeline", "false")) )
+            {
+                try (DetectionPipeline pipeline = new DetectionPipeline(
+                        Integer.parseInt(options.getOrDefault("preprocess-threads", "1")),
+                        Integer.parseInt(options.getOrDefault("decode-threads", "1")),
+                        Integer.parseInt(options.getOrDefault("queue-depth", "1"))))
+                {
+                    headless.setPipeline(pipeline);
+                    headless.run();
+                }
+            }
+            else
+            {
+                headless.run();
+            }
+        }
+    }
+    
+    /**
+     * The ways of running the detector asked for, of which only one can be 
+     * used
+     */
+    static List<String> modes(Map<String, String> options)
+    {
+        List<String> modes = new ArrayList<>();
+        
+        if ( options.containsKey("roi") || options.containsKey("exclude") )
+        {
+            modes.add(options.containsKey("roi") ? "--roi" : "--exclude");
+        }
+        if ( Boolean.parseBoolean(options.getOrDefault("tiles", "false")) )
+        {
+            modes.add("--tiles");
+        }
+        if ( Integer.parseInt(options.getOrDefault("replicas", "1")) > 1 )
+        {
+            modes.add("--replicas");
+        }
+        if ( Integer.parseInt(options.getOrDefault("batch", "1")) > 1 )
+        {
+            modes.add("--batch");
+        }
+        if ( Boolean.parseBoolean(options.getOrDefault("pipeline", "false")) )
+        {
+            modes.add("--pipeline");
+        }
+        return modes;
+    }
+    
+    /**
+     * Run the detector over every frame in the source. Frames are handed to 
+     * a bounded pool of workers and the results written out in frame order.
+     * 
+     * @return the number of frames processed
+     * @throws IOException 
+     * @throws InterruptedException 
+     */
+    public long run() throws IOException, InterruptedException
+    {
+        // Allow each worker one frame in hand and one waiting so the reader
+        // never gets too far ahead of the detector. When batching keep enough
+        // frames in flight to fill two batches, and in a pipeline enough to 
+        // fill every stage or every replica.
+        int inFlight = batcher != null ? batcher.getBatchSize() * 2 
+                : pipeline != null ? pipeline.getCapacity() 
+                : replicaPool != null ? replicaPool.getCapacity() 
+                : workers * 2;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS, 
+                new ArrayBlockingQueue<>(inFlight), new ThreadPoolExecutor.CallerRunsPolicy());
+        Deque<Future<List<BoundingBox>>> pending = new ArrayDeque<>(inFlight);
+        Deque<Frame> pendingFrames = new ArrayDeque<>(inFlight);
+        long count = 0;
+        long start = System.nanoTime();
+        
+        try
+        {
+            source.open();
+            DetectionMetrics metrics = DetectionMetrics.get();
+            long grabStart = System.nanoTime();
+            Frame frame;
+
+            while ((maxFrames <= 0 || count < maxFrames) && (frame = source.grab()) != null)
+            {
+                metrics.record(DetectionMetrics.Stage.CAPTURE, grabStart);
+                metrics.getCaptureRate().mark();
+                Frame current = frame;
+                
+                if ( regionMask != null )
+                {
+                    pending.add(pool.submit(() -> regionMask.detect(detector, current.getImage(), 
+                            detector.getThreshold(), detector.isFilterDuplicates())));
+                }
+                else if ( tiling != null )
+                {
+                    pending.add(pool.submit(() -> tiling.detect(detector, current.getImage(), 
+                            detector.getThreshold(), detector.isFilterDuplicates())));
+                }
+                else if ( batcher != null )
+                {
+                    pending.add(batcher.submit(current.getImage()));
+                }
+                else if ( pipeline != null )
+                {
+                    pending.add(pipeline.submit(detector, current.getImage()));
+                }
+                else if ( replicaPool != null )
+                {
+                    pending.add(replicaPool.submit(current.getImage()));
+                }
+                else
+                {
+                    pending.add(pool.submit(() -> detector.detect(current.getImage())));
+                }
+                pendingFrames.add(current);
+                count++;
+
+                if ( pending.size() >= inFlight )
+                {
+                    writeNext(pending, pendingFrames);
+                }
+                grabStart = System.nanoTime();
+            }
+
+            while (!pending.isEmpty())
+            {
+                writeNext(pending, pendingFrames);
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("Processed %d images in %.2f s (%.2f images/sec)%n", count, seconds, count / seconds);
+        for (StageStatistics stage : DetectionMetrics.get().getStages())
+        {
+            System.err.println(stage);
+        }
+        if ( recorder != null )
+        {
+            System.err.println(recorder);
+        }
+        
+        return count;
+    }
+    
+    private void writeNext(Deque<Future<List<BoundingBox>>> pending, Deque<Frame> pendingFrames) 
+            throws IOException, InterruptedException
+    {
+        Frame frame = pendingFrames.remove();
+        
+        try
+        {
+            List<BoundingBox> boxes = pending.remove().get();
+            writer.write(frame.getSequence(), frame.getTimestamp(), boxes);
+            if ( detectionLog != null )
+            {
+                detectionLog.append(frame.getSequence(), frame.getTimestamp(), detector.getModel(), boxes);
+            }
+            if ( detectionServer != null )
+            {
+                detectionServer.publish(DetectionServer.DEFAULT_STREAM, frame.getSequence(), frame.getTimestamp(), 
+                        detector.getModel(), boxes);
+            }
+            if ( recorder != null )
+            {
+                recorder.offer(frame, boxes);
+            }
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Detection failed on frame " + frame.getSequence(), e.getCause());
+        }
+    }
+    
+    /**
+     * Parse arguments of the form --name=value
+     */
+    static Map<String, String> parse(String[] args)
+    {
+        Map<String, String> options = new HashMap<>();
+        
+        for (String arg : args)
+        {
+            if ( !arg.startsWith("--") || arg.indexOf('=') < 0 )
+            {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+}
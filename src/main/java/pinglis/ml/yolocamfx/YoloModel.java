@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 pinglis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pinglis.ml.yolocamfx;
+
+import java.io.File;
+import java.io.IOException;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+import org.deeplearning4j.zoo.model.TinyYOLO;
+
+/**
+ * The pretrained yolo models from the dl4j model zoo along with the names of
+ * the classes they were trained on.
+ */
+public enum YoloModel
+{
+    TINY_YOLO("Tiny Yolo", new String[] {
+        "Aeroplane", "Bicycle", "Bird", 
+        "Boat", "Bottle", "Bus", 
+        "Car", "Cat", "Chair", 
+        "Cow", "Diningtable", "Dog", 
+        "Horse", "Motorbike", "Person", 
+        "Pottedplant", "Sheep", "Sofa",
+        "Train", "TV" 
+    }),
+    
+    YOLO2("YOLO", new String[] {
+        "Person", "Bicycle", "Car", 
+        "Motorbike", "Aeroplane", "Bus", 
+        "Train", "Truck", "Boat", 
+        "Traffic light", "Fire hydrant", "Stop sign", 
+        "Parking meter", "Bench", "Bird", 
+        "Cat", "Dog", "Horse", 
+        "Sheep", "Cow", "Elephant", 
+        "Bear", "Zebra", "Giraffe", 
+        "Backpack", "Umbrella", "Handbag",
+        "Tie", "Suitcase", "Frisbee", 
+        "Skis", "Snowboard", "Sports ball", 
+        "Kite", "Baseball bat", "Baseball glove",
+        "Skateboard", "Surfboard", "Tennis racket", 
+        "Bottle", "Wine glass", "Cup", 
+        "Fork", "Knife", "Spoon", 
+        "Bowl", "Banana", "Apple", 
+        "Sandwich", "Orange", "Broccoli", 
+        "Carrot", "Hot dog", "Pizza", 
+        "Donut", "Cake", "Chair",
+        "Sofa", "Potted plant", "Bed", 
+        "Dining Table", "Toilet", "TV", 
+        "Laptop", "Mouse", "Remote", 
+        "Keyboard", "Mobile phone", "Microwave", 
+        "Oven", "Toaster", "Sink", 
+        "Refrigerator", "Book", "Clock", 
+        "Vase", "Scissors", "Teddy bear", 
+        "Hair drier", "Toothbrush"
+    });
+    
+    private final String displayName;
+    private final String[] classes;
+
+    private YoloModel(String displayName, String[] classes)
+    {
+        this.displayName = displayName;
+        this.classes = classes;
+    }
+
+    public String getDisplayName()
+    {
+        return displayName;
+    }
+
+    /**
+     * The class labels indexed by the predicted class of a detected object
+     * @return String[]
+     */
+    public String[] getClasses()
+    {
+        return classes.clone();
+    }
+    
+    public String getClassName(int classIndex)
+    {
+        return classes[classIndex];
+    }
+    
+    public int getClassCount()
+    {
+        return classes.length;
+    }
+    
+    /**
+     * The system property that can name a local copy of the model's zoo 
+     * file, e.g. {@code -Dyolocamfx.model.tiny_yolo=tiny-yolo-voc_dl4j_inference.v2.zip}
+     * @return String
+     */
+    public String getFileProperty()
+    {
+        return "yolocamfx.model." + name().toLowerCase();
+    }
+    
+    /**
+     * Load the pretrained network. If the file property is set the network
+     * is read from that file, otherwise it is downloaded on first use. The
+     * network is converted to the {@link Precision} the process runs in.
+     * @return ComputationGraph
+     * @throws IOException 
+     */
+    public ComputationGraph load() throws IOException
+    {
+        String file = System.getProperty(getFileProperty());
+        if ( file != null )
+        {
+            return load(new File(file));
+        }
+        
+        switch (this)
+        {
+            case TINY_YOLO:
+                return Precision.current().convert((ComputationGraph) TinyYOLO.builder().build().initPretrained());
+            default:
+                // Fully qualified as the enum constant hides the zoo class
+                return Precision.current().convert(
+                        (ComputationGraph) org.deeplearning4j.zoo.model.YOLO2.builder().build().initPretrained());
+        }
+    }
+    
+    /**
+     * Load the pretrained network from a local copy of the zoo file, so no
+     * network access is needed
+     * @param file
+     * @return ComputationGraph
+     * @throws IOException 
+     */
+    public ComputationGraph load(File file) throws IOException
+    {
+        return Precision.current().convert(ModelSerializer.restoreComputationGraph(file, false));
+    }
+    
+    /**
+     * Find a model by name, accepting either the enum name or a short form
+     * such as "tiny" or "yolo2"
+     * @param name
+     * @return YoloModel
+     */
+    public static YoloModel forName(String name)
+    {
+        switch (name.toLowerCase())
+        {
+            case "tiny":
+            case "tiny_yolo":
+            case "tinyyolo":
+                return TINY_YOLO;
+            case "yolo":
+            case "yolo2":
+                return YOLO2;
+            default:
+                throw new IllegalArgumentException("Unknown model: " + name);
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        return displayName;
+    }
+}
@@ -15,95 +15,139 @@
  */
 package pinglis.ml.yolocamfx;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.DoubleProperty;
-import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleDoubleProperty;
-import javafx.beans.property.SimpleObjectProperty;
+import javafx.beans.property.SimpleIntegerProperty;
 import javafx.concurrent.Task;
-import javafx.scene.paint.Color;
 import javafx.scene.paint.Paint;
-import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGR2RGB;
-import org.datavec.image.loader.Java2DNativeImageLoader;
-import org.datavec.image.transform.ColorConversionTransform;
-import org.deeplearning4j.nn.graph.ComputationGraph;
-import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
-import org.deeplearning4j.nn.layers.objdetect.Yolo2OutputLayer;
-import org.deeplearning4j.zoo.model.TinyYOLO;
-import org.deeplearning4j.zoo.model.YOLO2;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 
 /**
- * 
+ * Runs a {@link YoloDetector} in the background over the frames posted to 
+ * its mailbox, keeping the latest detections for the UI to draw.
+ * <p>
+ * The task parks while there is no new frame. A frame is only run once, 
+ * unless the threshold or filter is changed in which case the last frame is
+ * run again with the new settings. If the motion gate is on, frames that have not
+ * changed much since the last frame that was run are skipped as well and
+ * the last detections kept.
+ * <p>
+ * With a stride greater than one, only every Nth camera frame is run. The
+ * detections are also fed to an {@link ObjectTracker} so the UI can draw
+ * boxes predicted for the frame it is showing rather than the frame that was
+ * last run.
+ * <p>
+ * Models come from a {@link ModelRegistry}. Changing the model swaps in the 
+ * new one once the registry has it loaded and warm, the old one carries on
+ * running until then so there is no gap in the detections.
+ * <p>
+ * If given a {@link DetectionPipeline} the frames are run through its stages
+ * rather than one at a time on the task's thread, so the next frame is 
+ * preprocessed while the last is in the network. Only the newest result is 
+ * kept if they complete out of order.
+ * <p>
+ * With tiling on, each frame is run as overlapping tiles by a 
+ * {@link TiledInference} to find smaller objects. A {@link RegionMask} 
+ * limits the run to the parts of the frame that matter instead, and takes
+ * precedence over tiling.
+ * <p>
+ * The time of each run is reported to a {@link QualityController}, if set,
+ * which changes the model and input size to meet its target.
+ * <p>
+ * The latest detections are published as an immutable {@link DetectionFrame}
+ * through an atomic reference, so the UI always sees a whole result.
  */
 public class YoloTask
 {
-    private final static int INPUT_WIDTH = 416;
-    private final static int INPUT_HEIGHT = 416;
-    private final static int INPUT_CHANNELS = 3;
-    private final static int GRID_W = 13;
-    private final static int GRID_H = 13;
-    
-    private static final String[] TINY_CLASSES = {
-        "Aeroplane", "Bicycle", "Bird", 
-        "Boat", "Bottle", "Bus", 
-        "Car", "Cat", "Chair", 
-        "Cow", "Diningtable", "Dog", 
-        "Horse", "Motorbike", "Person", 
-        "Pottedplant", "Sheep", "Sofa",
-        "Train", "TV" 
-    };
-    
-    private final String[] CLASSES =
-    {
-        "Person", "Bicycle", "Car", 
-        "Motorbike", "Aeroplane", "Bus", 
-        "Train", "Truck", "Boat", 
-        "Traffic light", "Fire hydrant", "Stop sign", 
-        "Parking meter", "Bench", "Bird", 
-        "Cat", "Dog", "Horse", 
-        "Sheep", "Cow", "Elephant", 
-        "Bear", "Zebra", "Giraffe", 
-        "Backpack", "Umbrella", "Handbag",
-        "Tie", "Suitcase", "Frisbee", 
-        "Skis", "Snowboard", "Sports ball", 
-        "Kite", "Baseball bat", "Baseball glove",
-        "Skateboard", "Surfboard", "Tennis racket", 
-        "Bottle", "Wine glass", "Cup", 
-        "Fork", "Knife", "Spoon", 
-        "Bowl", "Banana", "Apple", 
-        "Sandwich", "Orange", "Broccoli", 
-        "Carrot", "Hot dog", "Pizza", 
-        "Donut", "Cake", "Chair",
-        "Sofa", "Potted plant", "Bed", 
-        "Dining Table", "Toilet", "TV", 
-        "Laptop", "Mouse", "Remote", 
-        "Keyboard", "Mobile phone", "Microwave", 
-        "Oven", "Toaster", "Sink", 
-        "Refrigerator", "Book", "Clock", 
-        "Vase", "Scissors", "Teddy bear", 
-        "Hair drier", "Toothbrush"
-    };
-    
-    private final ObjectProperty<BufferedImage> imageBufferProperty = new SimpleObjectProperty<>();
+    private static final YoloDecoder DEFAULT_DECODER = new YoloDecoder();
+    
+    private final FrameMailbox mailbox;
+    private final ModelRegistry registry;
+    private final AtomicReference<LoadedModel> activeModel = new AtomicReference<>();
+    private volatile YoloModel requestedModel;
     private final BooleanProperty filterProperty = new SimpleBooleanProperty();
     private final DoubleProperty thresholdProperty = new SimpleDoubleProperty();
-    private final ImagePreProcessingScaler scaler = new ImagePreProcessingScaler(0, 1);
-    private List<BoundingBox> detectedObjects;
+    private final BooleanProperty motionGateProperty = new SimpleBooleanProperty();
+    private final IntegerProperty strideProperty = new SimpleIntegerProperty(1);
+    private final MotionGate motionGate = new MotionGate(0.02, 16);
+    private final ObjectTracker tracker = new ObjectTracker();
+    private final AtomicReference<DetectionFrame> detections = new AtomicReference<>();
+    private final DetectionFrame.Pool framePool = new DetectionFrame.Pool(4);
+    private long generation;
+    private volatile DetectionPipeline pipeline;
+    private volatile TiledInference tiling;
+    private volatile RegionMask regionMask;
+    private volatile QualityController qualityController;
+    private volatile DetectionLog detectionLog;
+    private volatile DetectionServer detectionServer;
+    private final Map<YoloModel, YoloDecoder> decoders = new ConcurrentHashMap<>();
+    private volatile int inputSize = YoloDetector.INPUT_WIDTH;
+    private final AtomicLong runs = new AtomicLong();
+    private long published;
+    private LoadedModel publishedModel;
+    private volatile long skippedFrames;
+    private volatile long stridedFrames;
     private Task<Void> task;
     
-    public ObjectProperty<BufferedImage> imageBufferProperty()
+    /**
+     * Create a task that always runs the latest frame
+     */
+    public YoloTask()
+    {
+        this(new FrameMailbox());
+    }
+    
+    /**
+     * Create a task that takes its frames from the given mailbox
+     * @param mailbox 
+     */
+    public YoloTask(FrameMailbox mailbox)
+    {
+        this(mailbox, new ModelRegistry());
+    }
+    
+    /**
+     * Create a task that takes its frames from the given mailbox and its 
+     * models from the given registry
+     * @param mailbox 
+     * @param registry 
+     */
+    public YoloTask(FrameMailbox mailbox, ModelRegistry registry)
+    {
+        this.mailbox = mailbox;
+        this.registry = registry;
+        
+        // Wake the task so it reruns the last frame with the new settings
+        this.thresholdProperty.addListener(o->mailbox.wake());
+        this.filterProperty.addListener(o->mailbox.wake());
+    }
+    
+    /**
+     * The mailbox to post frames to
+     * @return FrameMailbox
+     */
+    public FrameMailbox getMailbox()
     {
-        return imageBufferProperty;
+        return mailbox;
+    }
+    
+    /**
+     * The number of frames replaced by a newer frame before they could be
+     * run
+     * @return long
+     */
+    public long getDroppedFrames()
+    {
+        return mailbox.getDroppedCount();
     }
     
     public BooleanProperty filterProperty()
@@ -116,204 +160,502 @@ public class YoloTask
         return this.thresholdProperty;
     }
     
-    public List<BoundingBox> getDetectedBoxes()
+    /**
+     * If true, frames that have not changed since the last frame run are 
+     * skipped
+     * @return BooleanProperty
+     */
+    public BooleanProperty motionGateProperty()
     {
-        return detectedObjects;
+        return this.motionGateProperty;
     }
     
-    public void close()
+    /**
+     * Run only every Nth frame, 1 runs every frame
+     * @return IntegerProperty
+     */
+    public IntegerProperty strideProperty()
     {
-        if ( task != null)
-        {
-            task.cancel();
-            task = null;
-        }
+        return this.strideProperty;
+    }
+    
+    /**
+     * The motion gate, for adjusting its sensitivity
+     * @return MotionGate
+     */
+    public MotionGate getMotionGate()
+    {
+        return motionGate;
     }
     
-    public void start(boolean isTiny)
+    /**
+     * The number of new frames not run because the motion gate found
+     * nothing had changed
+     * @return long
+     */
+    public long getSkippedFrames()
     {
-        task = new Task<Void>()
+        return skippedFrames;
+    }
+    
+    /**
+     * The number of new frames not run because of the stride
+     * @return long
+     */
+    public long getStridedFrames()
+    {
+        return stridedFrames;
+    }
+    
+    /**
+     * The latest detections, retained for the caller who must 
+     * {@link DetectionFrame#release() release} them when done
+     * @return DetectionFrame or null before the first run
+     */
+    public DetectionFrame acquireDetections()
+    {
+        while (true)
         {
-            @Override
-            protected Void call() throws Exception
+            DetectionFrame current = detections.get();
+            
+            // Only fails if a newer frame replaced it since the get
+            if ( current == null || current.retain() )
             {
-                try
-                {
-                    ComputationGraph graph;
-                    Java2DNativeImageLoader bufferLoader;
-                    Map<String, Paint> colors = new HashMap<>();
-                    String[] classes;
-    
-                    if (isTiny)
-                    {
-                        graph = (ComputationGraph) TinyYOLO.builder().build().initPretrained();                      
-                        bufferLoader = new Java2DNativeImageLoader(INPUT_WIDTH, INPUT_HEIGHT, INPUT_CHANNELS, new ColorConversionTransform(COLOR_BGR2RGB));
-                        classes = TINY_CLASSES;
-                    }
-                    else
-                    {
-                        graph = (ComputationGraph) YOLO2.builder().build().initPretrained();
-                        bufferLoader = new Java2DNativeImageLoader(INPUT_WIDTH, INPUT_HEIGHT, INPUT_CHANNELS, new ColorConversionTransform(COLOR_BGR2RGB));
-                        classes = CLASSES;
-                    }
-
-                    for (int i = 0; i < classes.length; i++)
-                    {
-                        colors.put(classes[i], Color.hsb((i + 1) * 20, 0.6, 1.0));
-                    }
-                    while (!this.isCancelled())
-                    {
-                        BufferedImage imageBuffer = imageBufferProperty.getValue();
-                        double threshold = thresholdProperty.getValue();
-                        
-                        if ( imageBuffer != null )
-                        {
-                            List<DetectedObject> rawDetectedObjects = detect(graph, bufferLoader, imageBuffer, threshold);
-                            detectedObjects = convert(rawDetectedObjects, classes, colors);
-                        }
-                        else
-                        {
-                            detectedObjects = null;
-                        }
-                    }
-                }
-                catch (Exception e)
-                {
-                    e.printStackTrace(System.err);
-                }
-                return null;
+                return current;
             }
-        };
-
-        Thread th = new Thread(task);
-        th.setDaemon(true);
-        th.setName("YoloTask");
-        th.start();
+        }
     }
     
     /**
-     * Convert the detected objects into bounding boxes that can be overlayed
-     * on the image.
-     * 
-     * @param detectedObjects
-     * @return List of BoundingBox
+     * The number of results published so far, which changes whenever the
+     * detections do
+     * @return long
      */
-    private List<BoundingBox> convert(List<DetectedObject> detectedObjects, String[] classes, Map<String, Paint> colors)
+    public long getGeneration()
     {
-        if ( detectedObjects == null )
+        DetectionFrame current = detections.get();
+        return current == null ? 0 : current.getGeneration();
+    }
+    
+    /**
+     * The latest detections as bounding boxes. Creates the boxes on every 
+     * call, {@link #acquireDetections()} does not.
+     * @return List of BoundingBox or null before the first run
+     */
+    public List<BoundingBox> getDetectedBoxes()
+    {
+        DetectionFrame current = acquireDetections();
+        if ( current == null )
         {
             return null;
         }
-        List<BoundingBox> boxes = new ArrayList<>(detectedObjects.size());
         
-        for(DetectedObject obj : detectedObjects)
+        try
         {
-            // Get its class name (label) and wanted color
-            String cls = classes[obj.getPredictedClass()];
-            Paint color = colors.get(cls);
-                
-            // Get its confidence as a percentage
-            double confidence = obj.getConfidence()*100;
-            double[] xy1 = obj.getTopLeftXY();
-            double[] xy2 = obj.getBottomRightXY();
-            double x1 = xy1[0] / GRID_W;
-            double y1 = xy1[1] / GRID_H;
-            double x2 = xy2[0] / GRID_W;
-            double y2 = xy2[1] / GRID_H;
-            
-            boxes.add(new BoundingBox(cls, confidence, color, x1, y1, x2, y2));
+            return current.toBoxes();
+        }
+        finally
+        {
+            current.release();
         }
-        
-        return boxes;
     }
-
-    private List<DetectedObject> detect(ComputationGraph graph, Java2DNativeImageLoader bufferLoader, BufferedImage buffer, double threshold)
+    
+    /**
+     * The tracker following the detected objects
+     * @return ObjectTracker
+     */
+    public ObjectTracker getTracker()
     {
-        List<DetectedObject> predictions = null;
-        
-        try
+        return tracker;
+    }
+    
+    /**
+     * The tracked objects predicted to the given frame time
+     * @param timestamp the capture time of the frame being shown
+     * @return the tracked boxes
+     */
+    public List<TrackedBox> getTrackedBoxes(long timestamp)
+    {
+        return tracker.predict(timestamp);
+    }
+    
+    /**
+     * The colour used to draw boxes of the given class
+     * @param classIndex
+     * @return Paint
+     */
+    public static Paint getColor(int classIndex)
+    {
+        return LoadedModel.colorFor(classIndex);
+    }
+    
+    /**
+     * Run the frames through the given pipeline, or on the task's own thread
+     * if null
+     * @param pipeline 
+     */
+    public void setPipeline(DetectionPipeline pipeline)
+    {
+        this.pipeline = pipeline;
+    }
+    
+    public DetectionPipeline getPipeline()
+    {
+        return pipeline;
+    }
+    
+    /**
+     * Run each frame as tiles, or whole if null
+     * @param tiling 
+     */
+    public void setTiling(TiledInference tiling)
+    {
+        this.tiling = tiling;
+    }
+    
+    public TiledInference getTiling()
+    {
+        return tiling;
+    }
+    
+    /**
+     * Run only the regions of each frame in the mask, or the whole frame if
+     * null
+     * @param regionMask 
+     */
+    public void setRegionMask(RegionMask regionMask)
+    {
+        this.regionMask = regionMask;
+        mailbox.wake();
+    }
+    
+    public RegionMask getRegionMask()
+    {
+        return regionMask;
+    }
+    
+    /**
+     * Set the width and height the frames are scaled to for the network, 
+     * see {@link YoloDetector#setInputSize(int)}
+     * @param inputSize 
+     */
+    public void setInputSize(int inputSize)
+    {
+        if ( inputSize < 32 || inputSize % 32 != 0 )
         {
-            INDArray img = bufferLoader.asMatrix(buffer);
-            
-            scaler.transform(img);
-            
-            INDArray output = graph.outputSingle(img);
-            Yolo2OutputLayer outputLayer = (Yolo2OutputLayer) graph.getOutputLayer(0);
-        
-            predictions = outputLayer.getPredictedObjects(output, threshold);
-            
-            if ( this.filterProperty.get() )
+            throw new IllegalArgumentException("Input size must be a multiple of 32 but was " + inputSize);
+        }
+        this.inputSize = inputSize;
+    }
+    
+    public int getInputSize()
+    {
+        return inputSize;
+    }
+    
+    /**
+     * Read the boxes of the given model with the per class thresholds and 
+     * allowed classes of a decoder
+     * @param model
+     * @param decoder the decoder, or null for the default
+     */
+    public void setDecoder(YoloModel model, YoloDecoder decoder)
+    {
+        if ( decoder == null )
+        {
+            decoders.remove(model);
+        }
+        else
+        {
+            decoders.put(model, decoder);
+        }
+    }
+    
+    /**
+     * Report the time of each run to the given controller, or to nothing if 
+     * null
+     * @param qualityController 
+     */
+    public void setQualityController(QualityController qualityController)
+    {
+        this.qualityController = qualityController;
+    }
+    
+    public QualityController getQualityController()
+    {
+        return qualityController;
+    }
+    
+    /**
+     * Append the detections of each run to the given log, or to nothing if 
+     * null
+     * @param detectionLog 
+     */
+    public void setDetectionLog(DetectionLog detectionLog)
+    {
+        this.detectionLog = detectionLog;
+    }
+    
+    public DetectionLog getDetectionLog()
+    {
+        return detectionLog;
+    }
+    
+    /**
+     * Stream the detections of each run to the clients of the given server,
+     * or to nothing if null
+     * @param detectionServer 
+     */
+    public void setDetectionServer(DetectionServer detectionServer)
+    {
+        this.detectionServer = detectionServer;
+    }
+    
+    public DetectionServer getDetectionServer()
+    {
+        return detectionServer;
+    }
+    
+    /**
+     * The model currently running, null until the first model has loaded
+     * @return LoadedModel
+     */
+    public LoadedModel getActiveModel()
+    {
+        return activeModel.get();
+    }
+    
+    /**
+     * Switch to the given model. The current model keeps running until the 
+     * new one is loaded and warmed up, then they are swapped between frames.
+     * @param model 
+     */
+    public void setModel(YoloModel model)
+    {
+        requestedModel = model;
+        registry.load(model).whenComplete((loaded, e)->{
+            if ( e != null )
+            {
+                e.printStackTrace(System.err);
+            }
+            else if ( requestedModel == model )
             {
-                predictions = filterDuplicates(predictions);
+                // Only swap in the latest request, an earlier model that 
+                // finished loading late is kept warm but not used
+                activeModel.set(loaded);
+                mailbox.wake();
             }
+        });
+    }
+    
+    /**
+     * Run the frame through the model, in the pipeline if there is one
+     */
+    private void detect(LoadedModel loaded, Frame frame, double threshold, boolean filter) 
+            throws IOException, InterruptedException
+    {
+        long run = runs.incrementAndGet();
+        long started = System.nanoTime();
+        DetectionPipeline stages = pipeline;
+        TiledInference tiles = tiling;
+        RegionMask mask = regionMask;
+        YoloDetector detector = loaded.getDetector();
+        int size = inputSize;
+        
+        if ( detector.getInputSize() != size )
+        {
+            detector.setInputSize(size);
         }
-        catch (IOException e)
+        
+        YoloDecoder decoder = decoders.getOrDefault(loaded.getModel(), DEFAULT_DECODER);
+        if ( detector.getDecoder() != decoder )
         {
-            e.printStackTrace(System.err);
+            detector.setDecoder(decoder);
         }
         
-        return predictions;
+        if ( mask != null )
+        {
+            publish(run, loaded, size, started, frame, mask.detect(detector, frame.getImage(), threshold, filter));
+        }
+        else if ( tiles != null )
+        {
+            publish(run, loaded, size, started, frame, tiles.detect(detector, frame.getImage(), threshold, filter));
+        }
+        else if ( stages == null )
+        {
+            publish(run, loaded, size, started, frame, detector.detect(frame.getImage(), threshold, filter));
+        }
+        else
+        {
+            stages.submit(detector, frame.getImage(), threshold, filter).whenComplete((boxes, e)->{
+                if ( e == null )
+                {
+                    publish(run, loaded, size, started, frame, boxes);
+                }
+                else if ( !(e instanceof CancellationException) )
+                {
+                    e.printStackTrace(System.err);
+                }
+            });
+        }
     }
     
     /**
-     * Remove the duplicates from the predictions. Taken from: 
-     * 
-     * https://github.com/klevis/AutonomousDriving
-     * 
-     * @param predictedObjects
-     * @return List of DetectedObject
+     * Make the detections of a run the current ones, unless a later run has
+     * already completed
      */
-    private static List<DetectedObject> filterDuplicates(List<DetectedObject> predictedObjects) 
+    private synchronized void publish(long run, LoadedModel loaded, int size, long started, Frame frame, List<BoundingBox> boxes)
     {
-        if (predictedObjects == null) 
+        if ( run <= published )
         {
-            return new ArrayList<>();
+            return;
         }
-        List<DetectedObject> detectedObjects = new ArrayList<>();
-
-        while (!predictedObjects.isEmpty()) 
+        published = run;
+        
+        // The old tracks mean nothing to a new model
+        if ( loaded != publishedModel )
         {
-            Optional<DetectedObject> max = predictedObjects.stream().max((o1, o2) -> ((Double) o1.getConfidence()).compareTo(o2.getConfidence()));
-            
-            if (max.isPresent()) 
+            tracker.reset();
+            publishedModel = loaded;
+        }
+        DetectionFrame previous = detections.getAndSet(framePool.create(++generation, 
+                frame.getSequence(), frame.getTimestamp(), loaded.getModel(), boxes));
+        if ( previous != null )
+        {
+            previous.release();
+        }
+        tracker.update(boxes, frame.getTimestamp());
+        
+        QualityController controller = qualityController;
+        if ( controller != null )
+        {
+            controller.record(loaded.getModel(), size, System.currentTimeMillis() - frame.getTimestamp(), 
+                    (System.nanoTime() - started) / 1e6);
+        }
+        
+        DetectionLog log = detectionLog;
+        if ( log != null )
+        {
+            try
+            {
+                log.append(frame.getSequence(), frame.getTimestamp(), loaded.getModel(), boxes);
+            }
+            catch (IOException e)
             {
-                DetectedObject maxObjectDetect = max.get();
-                removeObjectsIntersectingWithMax(predictedObjects, maxObjectDetect);
-                detectedObjects.add(maxObjectDetect);
+                e.printStackTrace(System.err);
             }
         }
-        return detectedObjects;
+        
+        DetectionServer server = detectionServer;
+        if ( server != null )
+        {
+            server.publish(DetectionServer.DEFAULT_STREAM, frame.getSequence(), frame.getTimestamp(), 
+                    loaded.getModel(), boxes);
+        }
     }
-
-    private static void removeObjectsIntersectingWithMax(List<DetectedObject> predictedObjects, DetectedObject maxObjectDetect) 
+    
+    public void close()
     {
-        double[] bottomRightXY1 = maxObjectDetect.getBottomRightXY();
-        double[] topLeftXY1 = maxObjectDetect.getTopLeftXY();
-        List<DetectedObject> removeIntersectingObjects = new ArrayList<>();
-        
-        for (DetectedObject detectedObject : predictedObjects)
+        if ( task != null)
         {
-            double[] topLeftXY = detectedObject.getTopLeftXY();
-            double[] bottomRightXY = detectedObject.getBottomRightXY();
-            double iox1 = Math.max(topLeftXY[0], topLeftXY1[0]);
-            double ioy1 = Math.max(topLeftXY[1], topLeftXY1[1]);
-
-            double iox2 = Math.min(bottomRightXY[0], bottomRightXY1[0]);
-            double ioy2 = Math.min(bottomRightXY[1], bottomRightXY1[1]);
-
-            double inter_area = (ioy2 - ioy1) * (iox2 - iox1);
-
-            double box1_area = (bottomRightXY1[1] - topLeftXY1[1]) * (bottomRightXY1[0] - topLeftXY1[0]);
-            double box2_area = (bottomRightXY[1] - topLeftXY[1]) * (bottomRightXY[0] - topLeftXY[0]);
+            task.cancel();
+            task = null;
+        }
+    }
+    
+    /**
+     * Start running the given model, see {@link #setModel(YoloModel)}
+     * @param model 
+     */
+    public void start(YoloModel model)
+    {
+        setModel(model);
+        task = new Task<Void>()
+        {
+            @Override
+            protected Void call() throws Exception
+            {
+                try
+                {
+                    LoadedModel lastModel = null;
+                    Frame lastFrame = null;
+                    double lastThreshold = -1;
+                    boolean lastFilter = false;
+                    RegionMask lastMask = null;
+                    long lastRunSequence = -1;
+                    
+                    motionGate.reset();
 
-            double union_area = box1_area + box2_area - inter_area;
-            double iou = inter_area / union_area;
+                    while (!this.isCancelled())
+                    {
+                        Frame frame = mailbox.take();
+                        LoadedModel loaded = activeModel.get();
+                        double threshold = thresholdProperty.getValue();
+                        boolean filter = filterProperty.get();
+                        RegionMask mask = regionMask;
+                        
+                        // Woken without a new frame, so check the settings
+                        // against the last frame
+                        if ( frame == null )
+                        {
+                            frame = lastFrame;
+                        }
+                        
+                        if ( loaded == null || frame == null 
+                                || (frame == lastFrame && loaded == lastModel && threshold == lastThreshold && filter == lastFilter && mask == lastMask) )
+                        {
+                            // Nothing to do, or already run this frame with
+                            // this model and settings
+                            continue;
+                        }
+                        
+                        // A change of model or settings always needs a new run
+                        boolean settingsChanged = loaded != lastModel || threshold != lastThreshold || filter != lastFilter 
+                                || mask != lastMask;
+                        if ( settingsChanged || !motionGateProperty.get() )
+                        {
+                            motionGate.reset();
+                        }
+                        
+                        // Wait for the stride to pass, the tracker fills in
+                        // the frames between
+                        long sinceLastRun = frame.getSequence() - lastRunSequence;
+                        if ( !settingsChanged && lastRunSequence >= 0 && sinceLastRun > 0 && sinceLastRun < strideProperty.get() )
+                        {
+                            stridedFrames++;
+                        }
+                        else if ( !motionGateProperty.get() || motionGate.hasChanged(frame.getImage()) )
+                        {
+                            detect(loaded, frame, threshold, filter);
+                            lastRunSequence = frame.getSequence();
+                        }
+                        else
+                        {
+                            skippedFrames++;
+                        }
 
-            if (iou > 0.5) 
-            {
-                removeIntersectingObjects.add(detectedObject);
+                        lastModel = loaded;
+                        lastFrame = frame;
+                        lastThreshold = threshold;
+                        lastFilter = filter;
+                        lastMask = mask;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    // Cancelled
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace(System.err);
+                }
+                return null;
             }
-        }
-        predictedObjects.removeAll(removeIntersectingObjects);
+        };
+
+        Thread th = new Thread(task);
+        th.setDaemon(true);
+        th.setName("YoloTask");
+        th.start();
     }
 }